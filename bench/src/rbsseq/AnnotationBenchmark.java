@@ -0,0 +1,71 @@
+package rbsseq;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The flank and gene lookups of annotatePositions, as FeatureIndex queries at random positions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AnnotationBenchmark {
+	private static final int SEQUENCE_LENGTH = 100000000;
+	
+	@Param({"50000"})
+	public int features;
+	
+	@Param({"100000"})
+	public int queries;
+	
+	private ArrayList<Feature> featureList;
+	private FeatureIndex index;
+	private int[] positions;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(SyntheticData.SEED);
+		featureList = SyntheticData.randomFeatures(features, SEQUENCE_LENGTH, 5000, random);
+		index = new FeatureIndex(featureList);
+		positions = new int[queries];
+		for (int i=0; i<queries; i++) {
+			positions[i] = random.nextInt(SEQUENCE_LENGTH);
+		}
+	}
+	
+	@Benchmark
+	public FeatureIndex buildIndex() {
+		return new FeatureIndex(featureList);
+	}
+	
+	@Benchmark
+	public int contains() {
+		int found = 0;
+		for (int pos: positions) {
+			if (index.contains(pos)) {
+				found++;
+			}
+		}
+		return found;
+	}
+	
+	@Benchmark
+	public int getContaining() {
+		int found = 0;
+		for (int pos: positions) {
+			found += index.getContaining(pos).size();
+		}
+		return found;
+	}
+}
@@ -0,0 +1,396 @@
+package rbsseq;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * Writes a synthetic RBS-seq data set: a random reference, matching refFlat, RepBase and BioMart files, and
+ * coordinate sorted, indexed bisulfite and non-bisulfite alignments.  Deletions are planted at a set of sites
+ * in the bisulfite reads, and a few rRNA-like loci get much higher coverage.  The same seed and settings
+ * always give the same files, so throughput can be compared across commits.
+ */
+public class GenerateSyntheticData {
+	private static final char[] BASES = {'A', 'C', 'G', 'T'};
+	private static final int LINE_LENGTH = 60;
+	private static final int HOT_LENGTH = 2000;
+	//Reads don't start or end with a deletion
+	private static final int DELETION_MARGIN = 5;
+	private static final double MISMATCH_RATE = 0.005;
+	private static final double CONVERSION_RATE = 0.98;
+	private static final double CPG_METHYLATION = 0.7;
+
+	//Settings
+	private File outputDir = null;
+	private long seed = SyntheticData.SEED;
+	private int sequences = 4;
+	private int length = 1000000;
+	private int coverage = 30;
+	private int readLength = 50;
+	private double deletionRate = 0.002;
+	private int sites = 500;
+	private double siteFraction = 0.3;
+	private int hotLoci = 4;
+	private int hotFactor = 50;
+	private int genes = 100;
+	private int repeats = 100;
+
+	//Generated data
+	private Random random;
+	private byte[][] bases;
+	private boolean[][] planted;
+	private boolean[][] hot;
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			printDocs();
+			System.exit(0);
+		}
+		new GenerateSyntheticData(args);
+	}
+
+	public GenerateSyntheticData(String[] args) {
+		processArgs(args);
+		random = new Random(seed);
+		try {
+			outputDir.mkdirs();
+			System.out.println("Writing reference... ");
+			writeReference();
+			plantSites();
+			System.out.println("Writing annotations... ");
+			writeAnnotations();
+			System.out.println("Writing bisulfite alignments... ");
+			long bsReads = writeAlignments(new File(outputDir, "bs.bam"), true);
+			System.out.println("Writing non-bisulfite alignments... ");
+			long nbsReads = writeAlignments(new File(outputDir, "nbs.bam"), false);
+			writeProperties(bsReads, nbsReads);
+		} catch (IOException ioex) {
+			System.out.println("Error writing synthetic data: " + ioex.getMessage());
+			System.exit(1);
+		}
+		System.out.println("Finished!");
+	}
+
+	private String sequenceName(int index) {
+		return "chr" + (index + 1);
+	}
+
+	private void writeReference() throws IOException {
+		bases = new byte[sequences][length];
+		hot = new boolean[sequences][];
+		BufferedWriter bw = new BufferedWriter(new FileWriter(new File(outputDir, "reference.fa")));
+		for (int s=0; s<sequences; s++) {
+			for (int i=0; i<length; i++) {
+				bases[s][i] = (byte)BASES[random.nextInt(BASES.length)];
+			}
+			bw.write(">" + sequenceName(s) + "\n");
+			for (int i=0; i<length; i+=LINE_LENGTH) {
+				bw.write(new String(bases[s], i, Math.min(LINE_LENGTH, length - i), "US-ASCII"));
+				bw.write("\n");
+			}
+			hot[s] = new boolean[length];
+		}
+		bw.close();
+	}
+
+	/**
+	 * Picks the planted deletion sites, at Ts for forward and As for reverse strand sites, and the hot loci.
+	 */
+	private void plantSites() {
+		planted = new boolean[sequences][length];
+		int placed = 0;
+		while (placed < sites) {
+			int s = random.nextInt(sequences);
+			int pos = random.nextInt(length);
+			if ((bases[s][pos] == 'T' || bases[s][pos] == 'A') && !planted[s][pos]) {
+				planted[s][pos] = true;
+				placed++;
+			}
+		}
+		for (int h=0; h<hotLoci; h++) {
+			int s = h % sequences;
+			int start = random.nextInt(Math.max(1, length - HOT_LENGTH));
+			for (int i=start; i<Math.min(length, start + HOT_LENGTH); i++) {
+				hot[s][i] = true;
+			}
+		}
+	}
+
+	private void writeAnnotations() throws IOException {
+		BufferedWriter refFlat = new BufferedWriter(new FileWriter(new File(outputDir, "refflat.txt")));
+		BufferedWriter biomart = new BufferedWriter(new FileWriter(new File(outputDir, "biomart.txt")));
+		for (int g=0; g<genes; g++) {
+			int s = random.nextInt(sequences);
+			int exons = 1 + random.nextInt(6);
+			StringBuilder starts = new StringBuilder();
+			StringBuilder ends = new StringBuilder();
+			int start = random.nextInt(Math.max(1, length - exons * 1000));
+			int pos = start;
+			int end = start;
+			for (int e=0; e<exons; e++) {
+				starts.append(pos).append(',');
+				end = Math.min(length, pos + 100 + random.nextInt(400));
+				ends.append(end).append(',');
+				pos = Math.min(length, end + 50 + random.nextInt(500));
+			}
+			refFlat.write("GENE" + g + "\tTX" + g + "\t" + sequenceName(s) + "\t+\t" + start + "\t" + end + "\t" + start + "\t" + end
+					+ "\t" + exons + "\t" + starts + "\t" + ends + "\n");
+			if (g % 3 != 0) {
+				biomart.write("TX" + g + "\tENSG" + g + "\tName" + g + "\t" + (g % 2 == 0 ? "protein_coding" : "snRNA") + "\n");
+			}
+		}
+		//The hot loci are annotated as rRNA
+		for (int s=0; s<sequences; s++) {
+			int start = -1;
+			for (int i=0; i<=length; i++) {
+				boolean isHot = i < length && hot[s][i];
+				if (isHot && start == -1) {
+					start = i;
+				} else if (!isHot && start != -1) {
+					String name = "RRNA" + s + "_" + start;
+					refFlat.write(name + "\t" + name + "\t" + sequenceName(s) + "\t+\t" + start + "\t" + i + "\t" + start + "\t" + i
+							+ "\t1\t" + start + ",\t" + i + ",\n");
+					biomart.write(name + "\tENSR" + s + "_" + start + "\t" + name + "\trRNA\n");
+					start = -1;
+				}
+			}
+		}
+		refFlat.close();
+		biomart.close();
+
+		BufferedWriter repbase = new BufferedWriter(new FileWriter(new File(outputDir, "repbase.bed")));
+		for (int r=0; r<repeats; r++) {
+			int s = random.nextInt(sequences);
+			int start = random.nextInt(Math.max(1, length - 500));
+			repbase.write(sequenceName(s) + "\t" + start + "\t" + (start + 50 + random.nextInt(400)) + "\tRep" + r + "\n");
+		}
+		repbase.close();
+	}
+
+	/**
+	 * Writes the reads of one sample in coordinate order.  Bisulfite reads get C to T conversion outside
+	 * methylated CpGs and the planted deletions, both samples get the background deletions and mismatches.
+	 */
+	private long writeAlignments(File bam, boolean bisulfite) {
+		SAMFileHeader header = new SAMFileHeader();
+		for (int s=0; s<sequences; s++) {
+			header.addSequence(new SAMSequenceRecord(sequenceName(s), length));
+		}
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam);
+		String qualities = new String(new char[readLength]).replace('\0', 'I');
+		double readsPerStart = (double)coverage / readLength;
+		long written = 0;
+		StringBuilder read = new StringBuilder();
+		StringBuilder cigar = new StringBuilder();
+		for (int s=0; s<sequences; s++) {
+			for (int start=0; start<length-readLength; start++) {
+				int count = poisson(hot[s][start] ? readsPerStart * hotFactor : readsPerStart);
+				for (int c=0; c<count; c++) {
+					boolean reverse = random.nextBoolean();
+					read.setLength(0);
+					cigar.setLength(0);
+					int pos = start;
+					int matched = 0;
+					int deleted = 0;
+					while (read.length() < readLength && pos < length) {
+						int inRead = read.length();
+						if (inRead >= DELETION_MARGIN && inRead < readLength - DELETION_MARGIN && pos + readLength - inRead < length
+								&& ((bisulfite && planted[s][pos] && random.nextDouble() < siteFraction) || random.nextDouble() < deletionRate)) {
+							if (matched > 0) {
+								cigar.append(matched).append('M');
+								matched = 0;
+							}
+							deleted++;
+							pos++;
+							continue;
+						}
+						//Consecutive deleted bases are one element, htsjdk rejects D next to D
+						if (deleted > 0) {
+							cigar.append(deleted).append('D');
+							deleted = 0;
+						}
+						read.append(readBase(s, pos, reverse, bisulfite));
+						matched++;
+						pos++;
+					}
+					cigar.append(matched).append('M');
+					SAMRecord record = new SAMRecord(header);
+					record.setReadName((bisulfite ? "bs" : "nbs") + written);
+					record.setReferenceIndex(s);
+					record.setAlignmentStart(start + 1);
+					record.setCigarString(cigar.toString());
+					record.setReadString(read.toString());
+					record.setBaseQualityString(qualities.substring(0, read.length()));
+					record.setMappingQuality(60);
+					record.setReadNegativeStrandFlag(reverse);
+					writer.addAlignment(record);
+					written++;
+				}
+			}
+		}
+		writer.close();
+		return written;
+	}
+
+	private char readBase(int s, int pos, boolean reverse, boolean bisulfite) {
+		char base = (char)bases[s][pos];
+		if (random.nextDouble() < MISMATCH_RATE) {
+			return BASES[random.nextInt(BASES.length)];
+		}
+		if (bisulfite) {
+			if (!reverse && base == 'C' && !isMethylated(s, pos, pos + 1, 'G') && random.nextDouble() < CONVERSION_RATE) {
+				return 'T';
+			}
+			if (reverse && base == 'G' && !isMethylated(s, pos - 1, pos - 1, 'C') && random.nextDouble() < CONVERSION_RATE) {
+				return 'A';
+			}
+		}
+		return base;
+	}
+
+	/**
+	 * True if the base at mate is the CpG partner and the CpG starting at cpg is methylated.  Methylation is
+	 * a fixed property of the site, so every read agrees.
+	 */
+	private boolean isMethylated(int s, int cpg, int mate, char partner) {
+		if (mate < 0 || mate >= length || bases[s][mate] != partner) {
+			return false;
+		}
+		long h = (((long)s << 32) | cpg) * 0x9E3779B97F4A7C15L;
+		return ((h >>> 11) & 0xffff) < CPG_METHYLATION * 0x10000;
+	}
+
+	private int poisson(double mean) {
+		if (mean > 30) {
+			return Math.max(0, (int)Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+		}
+		double limit = Math.exp(-mean);
+		double product = random.nextDouble();
+		int count = 0;
+		while (product > limit) {
+			product *= random.nextDouble();
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Records the settings and sizes, which the throughput harness reads back.
+	 */
+	private void writeProperties(long bsReads, long nbsReads) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(new File(outputDir, "dataset.properties")));
+		bw.write("seed=" + seed + "\n");
+		bw.write("sequences=" + sequences + "\n");
+		bw.write("length=" + length + "\n");
+		bw.write("coverage=" + coverage + "\n");
+		bw.write("readLength=" + readLength + "\n");
+		bw.write("deletionRate=" + deletionRate + "\n");
+		bw.write("sites=" + sites + "\n");
+		bw.write("siteFraction=" + siteFraction + "\n");
+		bw.write("hotLoci=" + hotLoci + "\n");
+		bw.write("hotFactor=" + hotFactor + "\n");
+		bw.write("loci=" + ((long)sequences * length) + "\n");
+		bw.write("bsReads=" + bsReads + "\n");
+		bw.write("nbsReads=" + nbsReads + "\n");
+		bw.close();
+
+		bw = new BufferedWriter(new FileWriter(new File(outputDir, "planted.txt")));
+		for (int s=0; s<sequences; s++) {
+			for (int i=0; i<length; i++) {
+				if (planted[s][i]) {
+					bw.write(sequenceName(s) + "\t" + (i + 1) + "\t" + (bases[s][i] == 'T' ? "+" : "-") + "\n");
+				}
+			}
+		}
+		bw.close();
+	}
+
+	private void processArgs(String[] args) {
+		Pattern pat = Pattern.compile("-[a-z]");
+		for (int i = 0; i<args.length; i++){
+			String lcArg = args[i].toLowerCase();
+			Matcher mat = pat.matcher(lcArg);
+			if (mat.matches()){
+				char test = args[i].charAt(1);
+				try{
+					switch (test){
+					case 'o': outputDir = new File(args[++i]); break;
+					case 's': seed = Long.parseLong(args[++i]); break;
+					case 'n': sequences = Integer.parseInt(args[++i]); break;
+					case 'l': length = Integer.parseInt(args[++i]); break;
+					case 'c': coverage = Integer.parseInt(args[++i]); break;
+					case 'r': readLength = Integer.parseInt(args[++i]); break;
+					case 'd': deletionRate = Double.parseDouble(args[++i]); break;
+					case 'p': sites = Integer.parseInt(args[++i]); break;
+					case 'f': siteFraction = Double.parseDouble(args[++i]); break;
+					case 'k': hotLoci = Integer.parseInt(args[++i]); break;
+					case 'x': hotFactor = Integer.parseInt(args[++i]); break;
+					case 'g': genes = Integer.parseInt(args[++i]); break;
+					case 'e': repeats = Integer.parseInt(args[++i]); break;
+					default: printErrorAndExit("\nProblem, unknown option! " + mat.group());
+					}
+				}
+				catch (Exception e){
+					printErrorAndExit("\nSorry, something doesn't look right with this parameter: -"+test+"\n");
+				}
+			}
+		}
+
+		if (outputDir == null) {
+			printErrorAndExit("Output directory not specified: -o");
+		}
+		if (sequences < 1 || length < 2 * readLength || readLength <= 2 * DELETION_MARGIN) {
+			printErrorAndExit("Need at least one sequence, a read length over " + (2 * DELETION_MARGIN) + " and sequences at least twice the read length.");
+		}
+		if (sites > (long)sequences * length / 4) {
+			printErrorAndExit("Too many planted sites for the reference size: -p");
+		}
+	}
+
+	public static void printDocs() {
+		System.out.println("\n" +
+				"**************************************************************************************\n" +
+				"**                              Generate Synthetic Data                             **\n" +
+				"**************************************************************************************\n" +
+				"Writes a random reference with annotations and bisulfite and non-bisulfite alignments\n" +
+				"for throughput testing: reference.fa, refflat.txt, repbase.bed, biomart.txt, bs.bam,\n" +
+				"nbs.bam with their indexes, the planted sites in planted.txt and the settings in\n" +
+				"dataset.properties.\n" +
+
+				"\nRequired Options:\n"+
+				"-o output directory\n" +
+				"\nOptional Options:\n"+
+				"-s random seed. Default " + SyntheticData.SEED + ".\n" +
+				"-n number of reference sequences. Default 4.\n" +
+				"-l length of each reference sequence. Default 1000000.\n" +
+				"-c read coverage. Default 30.\n" +
+				"-r read length. Default 50.\n" +
+				"-d background deletion rate per base. Default 0.002.\n" +
+				"-p number of planted deletion sites. Default 500.\n" +
+				"-f fraction of bisulfite reads with a deletion at a planted site. Default 0.3.\n" +
+				"-k number of hot rRNA-like loci, " + HOT_LENGTH + " bp each. Default 4.\n" +
+				"-x coverage factor of the hot loci. Default 50.\n" +
+				"-g number of genes. Default 100.\n" +
+				"-e number of repeats. Default 100.\n" +
+
+				"\n"+
+
+		        "**************************************************************************************\n");
+	}
+
+	private void printErrorAndExit(String message) {
+		System.out.println(message);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,68 @@
+package rbsseq;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Runs the main method of a tool and then prints a line with the run time, peak resident set size, GC time
+ * and CPU time of the JVM.  The throughput harness starts every tool through this class in a fresh JVM and
+ * reads the line back.
+ * 
+ * Usage: MeasuredRun toolClass [tool arguments]
+ */
+public class MeasuredRun {
+	public static final String PREFIX = "MEASURED";
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.out.println("Usage: MeasuredRun toolClass [tool arguments]");
+			System.exit(1);
+		}
+		Method main = Class.forName(args[0]).getMethod("main", String[].class);
+		String[] toolArgs = Arrays.copyOfRange(args, 1, args.length);
+		
+		long start = System.nanoTime();
+		main.invoke(null, (Object)toolArgs);
+		long wall = (System.nanoTime() - start) / 1000000;
+		
+		long gc = 0;
+		for (GarbageCollectorMXBean bean: ManagementFactory.getGarbageCollectorMXBeans()) {
+			gc += Math.max(0, bean.getCollectionTime());
+		}
+		long cpu = -1;
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			cpu = ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime() / 1000000;
+		}
+		System.out.println(PREFIX + "\t" + wall + "\t" + peakRss() + "\t" + gc + "\t" + cpu);
+	}
+	
+	/**
+	 * Peak resident set size in kB from /proc/self/status, or -1 where that isn't available.
+	 */
+	private static long peakRss() {
+		try {
+			BufferedReader br = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String temp;
+				while ((temp = br.readLine()) != null) {
+					if (temp.startsWith("VmHWM:")) {
+						return Long.parseLong(temp.substring(6).replace("kB", "").trim());
+					}
+				}
+			} finally {
+				br.close();
+			}
+		} catch (IOException ioex) {
+			//Not on Linux
+		} catch (NumberFormatException nfex) {
+			//Unexpected format
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,79 @@
+package rbsseq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The per-locus loop of CreateMethTable.writeTable with every mode requested, fed with random strand counts
+ * instead of a pileup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MethTableBenchmark {
+	@Param({"1000000"})
+	public int loci;
+	
+	private File dir;
+	private PackedReference refSeq;
+	private int[][] forward;
+	private int[][] reverse;
+	private int[] deletions;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Random random = new Random(SyntheticData.SEED);
+		dir = SyntheticData.createTempDir();
+		refSeq = new PackedReference(SyntheticData.writeReference(dir, 1, loci, random));
+		forward = new int[loci][5];
+		reverse = new int[loci][5];
+		deletions = new int[loci];
+		for (int i=0; i<loci; i++) {
+			for (int b=0; b<5; b++) {
+				forward[i][b] = random.nextInt(60);
+				reverse[i][b] = random.nextInt(60);
+			}
+			deletions[i] = random.nextInt(5);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticData.deleteDir(dir);
+	}
+	
+	@Benchmark
+	public void writeLoci() throws IOException {
+		MethTableOutput[] outputs = new MethTableOutput[MethTableOutput.MODES.length];
+		for (int m=0; m<outputs.length; m++) {
+			outputs[m] = new MethTableOutput(MethTableOutput.MODES[m], new TsvEncoder(SyntheticData.discard()), new TsvEncoder(SyntheticData.discard()));
+		}
+		int refIndex = refSeq.getIndex("chr1");
+		for (int i=0; i<loci; i++) {
+			int[] f = forward[i];
+			int[] r = reverse[i];
+			char base = refSeq.baseAt(refIndex, i);
+			int covF = f[0] + f[1] + f[2] + f[3] + f[4];
+			int covR = r[0] + r[1] + r[2] + r[3] + r[4];
+			for (MethTableOutput output: outputs) {
+				output.writeLocus("chr1", i + 1, base, f, r, covF, covR, deletions[i]);
+			}
+		}
+		for (MethTableOutput output: outputs) {
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package rbsseq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The per-locus filtering and grouping of ScorePseudouridinePositions.processPosition, fed with random
+ * counts in which about one locus in twenty passes the default filters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+	@Param({"1000000"})
+	public int loci;
+	
+	private File dir;
+	private ScorePseudouridinePositions score;
+	private int[] covBS;
+	private int[] countBS;
+	private int[] covNBS;
+	private int[] countNBS;
+	private int[] forward;
+	private int[] reverse;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Random random = new Random(SyntheticData.SEED);
+		dir = SyntheticData.createTempDir();
+		score = new ScorePseudouridinePositions(new PackedReference(SyntheticData.writeReference(dir, 1, loci, random)));
+		covBS = new int[loci];
+		countBS = new int[loci];
+		covNBS = new int[loci];
+		countNBS = new int[loci];
+		forward = new int[loci];
+		reverse = new int[loci];
+		for (int i=0; i<loci; i++) {
+			covBS[i] = 5 + random.nextInt(200);
+			covNBS[i] = 5 + random.nextInt(200);
+			if (random.nextInt(20) == 0) {
+				countBS[i] = covBS[i] / (2 + random.nextInt(8));
+			} else {
+				countBS[i] = random.nextInt(3);
+			}
+			if (random.nextInt(100) == 0) {
+				countNBS[i] = covNBS[i] / 10;
+			}
+			forward[i] = random.nextInt(covBS[i] + 1);
+			reverse[i] = covBS[i] - forward[i];
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticData.deleteDir(dir);
+	}
+	
+	@Benchmark
+	public ParseState processPosition() throws IOException {
+		ParseState state = new ParseState(0.5, 6);
+		TsvEncoder bwParsed = new TsvEncoder(SyntheticData.discard());
+		for (int i=0; i<loci; i++) {
+			score.processPosition(state, covNBS[i], covBS[i], countBS[i], countNBS[i], forward[i], reverse[i], "chr1", i + 1, bwParsed);
+		}
+		bwParsed.flush();
+		return state;
+	}
+}
@@ -0,0 +1,117 @@
+package rbsseq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Building, splitting and base reporting of position groups.  The groups are runs of one to eight
+ * consecutive positions with random deletion fractions, separated by gaps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PositionGroupBenchmark {
+	private static final double SPLIT_THRESH = 0.5;
+	private static final int HP_LENGTH = 6;
+	
+	@Param({"100000"})
+	public int groups;
+	
+	private File dir;
+	private PackedReference refSeq;
+	private int[] pos;
+	private int[] strand;
+	private char[] base;
+	private int[] bsDepth;
+	private int[] bsDel;
+	private int[] groupEnds;
+	private ArrayList<PositionGroup> built;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Random random = new Random(SyntheticData.SEED);
+		groupEnds = new int[groups];
+		int count = 0;
+		for (int g=0; g<groups; g++) {
+			count += 1 + random.nextInt(8);
+			groupEnds[g] = count;
+		}
+		pos = new int[count];
+		strand = new int[count];
+		bsDepth = new int[count];
+		bsDel = new int[count];
+		int next = 100;
+		int g = 0;
+		for (int i=0; i<count; i++) {
+			if (i == groupEnds[g]) {
+				g++;
+				next += 10 + random.nextInt(100);
+			}
+			pos[i] = next++;
+			strand[i] = random.nextInt(4);
+			bsDepth[i] = 20 + random.nextInt(200);
+			bsDel[i] = 5 + random.nextInt(bsDepth[i] / 2);
+		}
+		dir = SyntheticData.createTempDir();
+		refSeq = new PackedReference(SyntheticData.writeReference(dir, 1, next + 100, random));
+		base = new char[count];
+		for (int i=0; i<count; i++) {
+			base[i] = refSeq.baseAt(0, pos[i]);
+		}
+		built = buildGroups();
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticData.deleteDir(dir);
+	}
+	
+	@Benchmark
+	public ArrayList<PositionGroup> buildGroups() {
+		PositionStore store = new PositionStore();
+		ArrayList<PositionGroup> result = new ArrayList<PositionGroup>(groups);
+		int i = 0;
+		for (int g=0; g<groups; g++) {
+			PositionGroup group = new PositionGroup(store, store.size(), SPLIT_THRESH, HP_LENGTH);
+			for (; i<groupEnds[g]; i++) {
+				store.add("chr1", pos[i], strand[i], base[i], bsDepth[i], bsDel[i], 100, 0);
+				group.extend();
+			}
+			result.add(group);
+		}
+		return result;
+	}
+	
+	@Benchmark
+	public int splitGroups() {
+		int split = 0;
+		for (PositionGroup group: built) {
+			split += group.splitGroup().size();
+		}
+		return split;
+	}
+	
+	@Benchmark
+	public long determineBaseToReport() {
+		long sum = 0;
+		for (PositionGroup group: built) {
+			group.determineBaseToReport(refSeq);
+			sum += group.getPredPos();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,66 @@
+package rbsseq;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benjamini-Hochberg correction of p-values sorted in descending order, and the binomial tests that produce them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class QvalueBenchmark {
+	@Param({"100000"})
+	public int pvalues;
+	
+	private double[] sorted;
+	private int[] depth;
+	private int[] deletions;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(SyntheticData.SEED);
+		sorted = new double[pvalues];
+		depth = new int[pvalues];
+		deletions = new int[pvalues];
+		for (int i=0; i<pvalues; i++) {
+			sorted[i] = random.nextDouble();
+			depth[i] = 10 + random.nextInt(1000);
+			deletions[i] = random.nextInt(depth[i] / 10 + 1);
+		}
+		Arrays.sort(sorted);
+		for (int i=0, j=pvalues-1; i<j; i++, j--) {
+			double swap = sorted[i];
+			sorted[i] = sorted[j];
+			sorted[j] = swap;
+		}
+	}
+	
+	@Benchmark
+	public double[] benjaminiHochbergCorrect() {
+		double[] qvalues = sorted.clone();
+		ScorePseudouridinePositions.benjaminiHochbergCorrect(qvalues);
+		return qvalues;
+	}
+	
+	@Benchmark
+	public double binomialTail() {
+		BinomialTail tail = new BinomialTail(0.001, 1 << 16);
+		double sum = 0;
+		for (int i=0; i<pvalues; i++) {
+			sum += tail.upperTail(depth[i], deletions[i]);
+		}
+		return sum;
+	}
+}
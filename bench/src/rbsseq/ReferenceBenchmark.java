@@ -0,0 +1,57 @@
+package rbsseq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Loading a reference fasta file with its index and decoding every sequence.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReferenceBenchmark {
+	@Param({"25"})
+	public int sequences;
+	
+	@Param({"4000000"})
+	public int length;
+	
+	private File dir;
+	private File fasta;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = SyntheticData.createTempDir();
+		fasta = SyntheticData.writeReference(dir, sequences, length, new Random(SyntheticData.SEED));
+		//Writes the fasta index, so the benchmark measures loading an indexed reference
+		new PackedReference(fasta);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SyntheticData.deleteDir(dir);
+	}
+	
+	@Benchmark
+	public int loadReference() throws IOException {
+		PackedReference refSeq = new PackedReference(fasta);
+		int sum = 0;
+		for (int i=0; i<refSeq.getSequenceCount(); i++) {
+			sum += refSeq.baseAt(i, refSeq.getLength(i) - 1);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,93 @@
+package rbsseq;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Random inputs for the benchmarks.  Everything is drawn from a seeded Random, so the same sizes give the
+ * same inputs on every run and results can be compared across commits.
+ */
+class SyntheticData {
+	public static final long SEED = 20160901L;
+	private static final char[] BASES = {'A', 'C', 'G', 'T'};
+	private static final int LINE_LENGTH = 60;
+	
+	/**
+	 * Creates an empty temporary directory.
+	 */
+	public static File createTempDir() throws IOException {
+		File dir = File.createTempFile("rbsseqbench.", ".tmp");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Could not create temporary directory " + dir.getPath());
+		}
+		return dir;
+	}
+	
+	/**
+	 * Deletes a directory and the files in it.
+	 */
+	public static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f: files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	/**
+	 * Writes a fasta file of random sequences named chr1, chr2 and so on.
+	 */
+	public static File writeReference(File dir, int sequences, int length, Random random) throws IOException {
+		File fasta = new File(dir, "reference.fa");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(fasta));
+		for (int s=1; s<=sequences; s++) {
+			bw.write(">chr" + s + "\n");
+			char[] line = new char[LINE_LENGTH];
+			for (int written=0; written<length; written+=LINE_LENGTH) {
+				int n = Math.min(LINE_LENGTH, length - written);
+				for (int i=0; i<n; i++) {
+					line[i] = BASES[random.nextInt(BASES.length)];
+				}
+				bw.write(line, 0, n);
+				bw.write("\n");
+			}
+		}
+		bw.close();
+		return fasta;
+	}
+	
+	/**
+	 * Random features on a sequence of the given length, with lengths up to maxLength.
+	 */
+	public static ArrayList<Feature> randomFeatures(int count, int length, int maxLength, Random random) {
+		ArrayList<Feature> features = new ArrayList<Feature>();
+		for (int i=0; i<count; i++) {
+			int start = random.nextInt(length);
+			int end = Math.min(length, start + 1 + random.nextInt(maxLength));
+			features.add(new Feature(start, end, "gene" + i, "protein_coding"));
+		}
+		return features;
+	}
+	
+	/**
+	 * Output stream that drops everything written to it.
+	 */
+	public static OutputStream discard() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+	}
+}
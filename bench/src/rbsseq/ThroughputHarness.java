@@ -0,0 +1,258 @@
+package rbsseq;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs ScorePseudouridinePositions and every CreateMethTable mode on a data set written by
+ * GenerateSyntheticData, each in a fresh JVM, and appends wall time, loci per second, peak resident set size,
+ * GC time and CPU time of every run to a tab separated results file.  Each line also records the commit, the
+ * Java version and the data set settings, so results of different commits can be put side by side.
+ */
+public class ThroughputHarness {
+	private static final String HEADER = "Date\tCommit\tJava\tDataset\tThreads\tRun\tExit\tWallSec\tToolSec\tLoci\tLociPerSec\tPeakRssMB\tGcMs\tCpuMs\n";
+
+	//Settings
+	private File dataDir = null;
+	private File resultsFile = null;
+	private File workDir = null;
+	private int threads = 1;
+	private String jvmArgs = "";
+	private int repeats = 1;
+
+	//Data set
+	private long loci;
+	private String dataset;
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			printDocs();
+			System.exit(0);
+		}
+		new ThroughputHarness(args);
+	}
+
+	public ThroughputHarness(String[] args) {
+		processArgs(args);
+		try {
+			readDataset();
+			String commit = commitId();
+			String java = System.getProperty("java.version");
+			String date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+
+			boolean newFile = !resultsFile.exists() || resultsFile.length() == 0;
+			BufferedWriter bw = new BufferedWriter(new FileWriter(resultsFile, true));
+			if (newFile) {
+				bw.write(HEADER);
+			}
+
+			workDir.mkdirs();
+			for (int r=0; r<repeats; r++) {
+				for (String mode: MethTableOutput.MODES) {
+					ArrayList<String> toolArgs = new ArrayList<String>(Arrays.asList("-a", data("bs.bam"), "-g", data("reference.fa"),
+							"-f", work(mode + ".F.txt"), "-r", work(mode + ".R.txt"), "-m", mode, "-t", String.valueOf(threads)));
+					runTool("CreateMethTable." + mode, "rbsseq.CreateMethTable", toolArgs, date, commit, java, bw);
+				}
+
+				ArrayList<String> scoreArgs = new ArrayList<String>(Arrays.asList("-a", data("bs.bam"), "-d", work("single"), "-e", data("refflat.txt"),
+						"-f", data("reference.fa"), "-g", data("repbase.bed"), "-h", data("biomart.txt"), "-t", String.valueOf(threads)));
+				runTool("ScorePseudouridinePositions.single", "rbsseq.ScorePseudouridinePositions", scoreArgs, date, commit, java, bw);
+
+				scoreArgs.addAll(Arrays.asList("-b", data("nbs.bam")));
+				scoreArgs.set(scoreArgs.indexOf("-d") + 1, work("paired"));
+				runTool("ScorePseudouridinePositions.paired", "rbsseq.ScorePseudouridinePositions", scoreArgs, date, commit, java, bw);
+			}
+			bw.close();
+		} catch (IOException ioex) {
+			System.out.println("Error running the harness: " + ioex.getMessage());
+			System.exit(1);
+		}
+		System.out.println("Finished!");
+	}
+
+	private String data(String name) {
+		return new File(dataDir, name).getPath();
+	}
+
+	private String work(String name) {
+		return new File(workDir, name).getPath();
+	}
+
+	private void readDataset() throws IOException {
+		File propertiesFile = new File(dataDir, "dataset.properties");
+		if (!propertiesFile.exists()) {
+			System.out.println("Data set settings not found, run GenerateSyntheticData first: " + propertiesFile.getPath());
+			System.exit(1);
+		}
+		Properties properties = new Properties();
+		FileReader fr = new FileReader(propertiesFile);
+		properties.load(fr);
+		fr.close();
+		loci = Long.parseLong(properties.getProperty("loci"));
+		dataset = "seed=" + properties.getProperty("seed") + ";sequences=" + properties.getProperty("sequences")
+				+ ";length=" + properties.getProperty("length") + ";coverage=" + properties.getProperty("coverage")
+				+ ";sites=" + properties.getProperty("sites") + ";hotLoci=" + properties.getProperty("hotLoci");
+	}
+
+	/**
+	 * Runs a tool in a fresh JVM through MeasuredRun and appends its result line.  The annotation cache is
+	 * removed first, so every scoring run parses the annotation files.
+	 */
+	private void runTool(String name, String toolClass, ArrayList<String> toolArgs, String date, String commit, String java, BufferedWriter bw) throws IOException {
+		System.out.println("Running " + name + "... ");
+		new File(data("refflat.txt") + ".anncache").delete();
+
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		for (String arg: jvmArgs.trim().split("\\s+")) {
+			if (arg.length() > 0) {
+				command.add(arg);
+			}
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("rbsseq.MeasuredRun");
+		command.add(toolClass);
+		command.addAll(toolArgs);
+
+		File log = new File(workDir, name + ".log");
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(log);
+		long start = System.nanoTime();
+		int exit;
+		try {
+			exit = pb.start().waitFor();
+		} catch (InterruptedException iex) {
+			throw new IOException("Interrupted while running " + name);
+		}
+		double wall = (System.nanoTime() - start) / 1e9;
+
+		String[] measured = readMeasured(log);
+		if (measured == null) {
+			System.out.println("No measurements from " + name + ", see " + log.getPath());
+			measured = new String[] {MeasuredRun.PREFIX, "-1", "-1", "-1", "-1"};
+		}
+		double toolSeconds = Long.parseLong(measured[1]) / 1000.0;
+		long rss = Long.parseLong(measured[2]);
+		bw.write(date + "\t" + commit + "\t" + java + "\t" + dataset + "\t" + threads + "\t" + name + "\t" + exit
+				+ "\t" + String.format("%.3f", wall) + "\t" + String.format("%.3f", toolSeconds) + "\t" + loci
+				+ "\t" + (toolSeconds > 0 ? String.format("%.0f", loci / toolSeconds) : "NA")
+				+ "\t" + (rss >= 0 ? String.format("%.1f", rss / 1024.0) : "NA")
+				+ "\t" + measured[3] + "\t" + measured[4] + "\n");
+		bw.flush();
+	}
+
+	private String[] readMeasured(File log) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(log));
+		String temp;
+		String[] measured = null;
+		while ((temp = br.readLine()) != null) {
+			if (temp.startsWith(MeasuredRun.PREFIX + "\t")) {
+				measured = temp.split("\t");
+			}
+		}
+		br.close();
+		return measured;
+	}
+
+	/**
+	 * Short id of the checked out commit, or NA when git isn't available.
+	 */
+	private String commitId() {
+		try {
+			Process p = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+			BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			String id = br.readLine();
+			br.close();
+			if (p.waitFor() == 0 && id != null) {
+				return id.trim();
+			}
+		} catch (IOException ioex) {
+			//No git
+		} catch (InterruptedException iex) {
+			//Not worth waiting for
+		}
+		return "NA";
+	}
+
+	private void processArgs(String[] args) {
+		Pattern pat = Pattern.compile("-[a-z]");
+		for (int i = 0; i<args.length; i++){
+			String lcArg = args[i].toLowerCase();
+			Matcher mat = pat.matcher(lcArg);
+			if (mat.matches()){
+				char test = args[i].charAt(1);
+				try{
+					switch (test){
+					case 'i': dataDir = new File(args[++i]); break;
+					case 'o': resultsFile = new File(args[++i]); break;
+					case 'w': workDir = new File(args[++i]); break;
+					case 't': threads = Integer.parseInt(args[++i]); break;
+					case 'j': jvmArgs = args[++i]; break;
+					case 'n': repeats = Integer.parseInt(args[++i]); break;
+					default: printErrorAndExit("\nProblem, unknown option! " + mat.group());
+					}
+				}
+				catch (Exception e){
+					printErrorAndExit("\nSorry, something doesn't look right with this parameter: -"+test+"\n");
+				}
+			}
+		}
+
+		if (dataDir == null || !dataDir.isDirectory()) {
+			printErrorAndExit("Data set directory not specified or not found: -i");
+		}
+		if (resultsFile == null) {
+			printErrorAndExit("Results file not specified: -o");
+		}
+		if (workDir == null) {
+			workDir = new File(dataDir, "runs");
+		}
+		if (threads < 1 || repeats < 1) {
+			printErrorAndExit("Threads and repeats must be at least 1.");
+		}
+	}
+
+	public static void printDocs() {
+		System.out.println("\n" +
+				"**************************************************************************************\n" +
+				"**                                Throughput Harness                                **\n" +
+				"**************************************************************************************\n" +
+				"Runs ScorePseudouridinePositions, single and paired, and every CreateMethTable mode on\n" +
+				"a GenerateSyntheticData data set, each in a fresh JVM, and appends one line per run to\n" +
+				"the results file: wall time, tool time, loci (reference bases) per second of tool\n" +
+				"time, peak resident set size, GC time and CPU time, with the commit and data set.\n" +
+				"Run it with the tools and LibraryJars on the class path.\n" +
+
+				"\nRequired Options:\n"+
+				"-i data set directory written by GenerateSyntheticData\n" +
+				"-o results file, created with a header or appended to\n" +
+				"\nOptional Options:\n"+
+				"-w directory for the tool outputs and logs. Default runs in the data set directory.\n" +
+				"-t number of threads passed to the tools. Default 1.\n" +
+				"-j JVM arguments of the tool runs, e.g. \"-Xmx4g\".\n" +
+				"-n number of times every run is repeated. Default 1.\n" +
+
+				"\n"+
+
+		        "**************************************************************************************\n");
+	}
+
+	private void printErrorAndExit(String message) {
+		System.out.println(message);
+		System.exit(1);
+	}
+}
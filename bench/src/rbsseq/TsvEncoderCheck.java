@@ -0,0 +1,70 @@
+package rbsseq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Checks that TsvEncoder.writeFixed writes the same text as String.format("%f") over every range the fast path
+ * covers: random values of each magnitude, values just around the rounding halves, and the ratios, scores and
+ * p-values the tools write.  Prints the first mismatches and exits with 1 if there are any.
+ */
+public class TsvEncoderCheck {
+	private static final int PER_MAGNITUDE = 200000;
+	private static final int MAX_REPORTED = 20;
+
+	private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private TsvEncoder encoder = new TsvEncoder(bytes);
+	private long checked = 0;
+	private long mismatches = 0;
+
+	public static void main(String[] args) {
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : SyntheticData.SEED;
+		try {
+			TsvEncoderCheck check = new TsvEncoderCheck();
+			check.run(new Random(seed));
+			System.out.println("Checked " + check.checked + " values, " + check.mismatches + " mismatches");
+			System.exit(check.mismatches == 0 ? 0 : 1);
+		} catch (IOException ioex) {
+			System.out.println("Error checking the encoder: " + ioex.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private void run(Random random) throws IOException {
+		check(0);
+		check(68550.8334755);
+		for (double magnitude=1e-7; magnitude<1e10; magnitude*=10) {
+			for (int i=0; i<PER_MAGNITUDE; i++) {
+				//Random values, and values written with seven decimals so the seventh is a rounding half
+				double value = random.nextDouble() * magnitude;
+				check(value);
+				double half = (Math.floor(value * 1000000) + 0.5) / 1000000;
+				check(half);
+				check(Math.nextUp(half));
+				check(Math.nextDown(half));
+			}
+		}
+		//Fractions of small counts, as in the ratio columns
+		for (int total=1; total<=2000; total++) {
+			for (int count=0; count<=total; count++) {
+				check((double)count / total);
+			}
+		}
+	}
+
+	private void check(double value) throws IOException {
+		bytes.reset();
+		encoder.writeFixed(value);
+		encoder.flush();
+		String encoded = bytes.toString("US-ASCII");
+		String formatted = String.format("%f", value);
+		checked++;
+		if (!encoded.equals(formatted)) {
+			if (mismatches < MAX_REPORTED) {
+				System.out.println("Mismatch for " + Double.toString(value) + ": " + encoded + " vs " + formatted);
+			}
+			mismatches++;
+		}
+	}
+}
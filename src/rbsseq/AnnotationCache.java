@@ -0,0 +1,205 @@
+package rbsseq;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary copy of the gene and flank features built from the refFlat, RepBase and BioMart files, stored next
+ * to the refFlat file.  The cache is keyed by the size, modification time and CRC32 of each annotation file
+ * and by the flank length, and is only used when all of them match.  Feature names are stored once in a
+ * string table, and features are stored per chromosome in the order they were read, so the loaded lists are
+ * identical to freshly parsed ones.  The cache is read through a memory map.
+ */
+class AnnotationCache {
+	private static final long MAGIC = 0x52425341_4E4E4F31L;
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File cacheFile;
+	private byte[] key;
+
+	public AnnotationCache(File ucscFile, File repbaseFile, File biomartFile, int flankLength) throws IOException {
+		this.cacheFile = new File(ucscFile.getPath() + ".anncache");
+
+		ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(keyBytes);
+		dos.writeInt(VERSION);
+		dos.writeInt(flankLength);
+		for (File file: new File[]{ucscFile, repbaseFile, biomartFile}) {
+			if (file == null) {
+				dos.writeLong(-1);
+			} else {
+				dos.writeLong(file.length());
+				dos.writeLong(file.lastModified());
+				dos.writeLong(checksum(file));
+			}
+		}
+		dos.close();
+		this.key = keyBytes.toByteArray();
+	}
+
+	public File getFile() {
+		return cacheFile;
+	}
+
+	private static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[1 << 20];
+		InputStream is = new FileInputStream(file);
+		try {
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+			}
+		} finally {
+			is.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Fills the dictionaries from the cache.  Returns false, leaving the dictionaries untouched, if there is
+	 * no cache, it was built from different annotation files or it can't be read.
+	 */
+	public boolean load(HashMap<String,ArrayList<Feature>> geneDict, HashMap<String,ArrayList<Feature>> flankDict) throws IOException {
+		if (!cacheFile.exists()) {
+			return false;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			if (buffer.getLong() != MAGIC) {
+				return false;
+			}
+			byte[] storedKey = new byte[buffer.getInt()];
+			buffer.get(storedKey);
+			if (!Arrays.equals(storedKey, key)) {
+				return false;
+			}
+
+			String[] strings = new String[buffer.getInt()];
+			for (int i=0; i<strings.length; i++) {
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				strings[i] = new String(bytes, UTF8);
+			}
+
+			HashMap<String,ArrayList<Feature>> genes = readFeatures(buffer, strings);
+			HashMap<String,ArrayList<Feature>> flanks = readFeatures(buffer, strings);
+			geneDict.putAll(genes);
+			flankDict.putAll(flanks);
+			return true;
+		} catch (BufferUnderflowException ex) {
+			System.out.println("Annotation cache " + cacheFile.getPath() + " is truncated, ignoring it.");
+			return false;
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			System.out.println("Annotation cache " + cacheFile.getPath() + " is corrupt, ignoring it.");
+			return false;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private HashMap<String,ArrayList<Feature>> readFeatures(MappedByteBuffer buffer, String[] strings) {
+		HashMap<String,ArrayList<Feature>> dict = new HashMap<String,ArrayList<Feature>>();
+		int chromCount = buffer.getInt();
+		for (int i=0; i<chromCount; i++) {
+			String chrom = strings[buffer.getInt()];
+			int count = buffer.getInt();
+			ArrayList<Feature> features = new ArrayList<Feature>(count);
+			for (int j=0; j<count; j++) {
+				int start = buffer.getInt();
+				int end = buffer.getInt();
+				String name = strings[buffer.getInt()];
+				String biotype = strings[buffer.getInt()];
+				features.add(new Feature(start, end, name, biotype));
+			}
+			dict.put(chrom, features);
+		}
+		return dict;
+	}
+
+	/**
+	 * Writes the dictionaries to the cache.  The cache is written to a temporary file first, so an
+	 * interrupted write never leaves a partial cache behind.
+	 */
+	public void save(HashMap<String,ArrayList<Feature>> geneDict, HashMap<String,ArrayList<Feature>> flankDict) throws IOException {
+		HashMap<String,Integer> stringIndex = new HashMap<String,Integer>();
+		ArrayList<String> strings = new ArrayList<String>();
+		addStrings(geneDict, stringIndex, strings);
+		addStrings(flankDict, stringIndex, strings);
+
+		File tempFile = new File(cacheFile.getPath() + ".tmp");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+		try {
+			dos.writeLong(MAGIC);
+			dos.writeInt(key.length);
+			dos.write(key);
+			dos.writeInt(strings.size());
+			for (String s: strings) {
+				byte[] bytes = s.getBytes(UTF8);
+				dos.writeInt(bytes.length);
+				dos.write(bytes);
+			}
+			writeFeatures(dos, geneDict, stringIndex);
+			writeFeatures(dos, flankDict, stringIndex);
+		} finally {
+			dos.close();
+		}
+
+		cacheFile.delete();
+		if (!tempFile.renameTo(cacheFile)) {
+			tempFile.delete();
+			throw new IOException("Could not rename " + tempFile.getPath() + " to " + cacheFile.getPath());
+		}
+	}
+
+	private void addStrings(HashMap<String,ArrayList<Feature>> dict, HashMap<String,Integer> stringIndex, ArrayList<String> strings) {
+		for (String chrom: dict.keySet()) {
+			addString(chrom, stringIndex, strings);
+			for (Feature f: dict.get(chrom)) {
+				addString(f.getName(), stringIndex, strings);
+				addString(f.getBiotype(), stringIndex, strings);
+			}
+		}
+	}
+
+	private void addString(String s, HashMap<String,Integer> stringIndex, ArrayList<String> strings) {
+		if (!stringIndex.containsKey(s)) {
+			stringIndex.put(s, strings.size());
+			strings.add(s);
+		}
+	}
+
+	private void writeFeatures(DataOutputStream dos, HashMap<String,ArrayList<Feature>> dict, HashMap<String,Integer> stringIndex) throws IOException {
+		dos.writeInt(dict.size());
+		for (String chrom: dict.keySet()) {
+			ArrayList<Feature> features = dict.get(chrom);
+			dos.writeInt(stringIndex.get(chrom));
+			dos.writeInt(features.size());
+			for (Feature f: features) {
+				dos.writeInt(f.getStart());
+				dos.writeInt(f.getEnd());
+				dos.writeInt(stringIndex.get(f.getName()));
+				dos.writeInt(stringIndex.get(f.getBiotype()));
+			}
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package rbsseq;
+
+/**
+ * Filter flag counters of the annotation stage.  Every annotation task counts into its own instance, and the
+ * instances are added up once all groups are annotated.
+ */
+class AnnotationCounts {
+	int lowConfidenceFlag = 0;
+	int highBackgroundExactFlag = 0;
+	int homopolymerFlag = 0;
+	int flankFlag = 0;
+	int passed = 0;
+	int annotated = 0;
+	int unannotated = 0;
+	
+	public void add(AnnotationCounts other) {
+		lowConfidenceFlag += other.lowConfidenceFlag;
+		highBackgroundExactFlag += other.highBackgroundExactFlag;
+		homopolymerFlag += other.homopolymerFlag;
+		flankFlag += other.flankFlag;
+		passed += other.passed;
+		annotated += other.annotated;
+		unannotated += other.unannotated;
+	}
+}
@@ -0,0 +1,87 @@
+package rbsseq;
+
+import org.apache.commons.math3.distribution.BinomialDistribution;
+import org.apache.commons.math3.stat.inference.AlternativeHypothesis;
+import org.apache.commons.math3.stat.inference.BinomialTest;
+
+/**
+ * Upper tail binomial test for a fixed success probability, the p-value of BinomialTest.binomialTest with
+ * AlternativeHypothesis.GREATER_THAN.  Most groups share a few (trials, successes) pairs, so results are kept in
+ * a bounded cache.
+ * 
+ * The tail is summed from the first term towards the far end, where the terms fall off geometrically, and the
+ * first term comes from the saddle point expansion of BinomialDistribution.logProbability.  This stays accurate
+ * for depths in the millions and gives tails down to the smallest double, where commons-math computes
+ * 1 - (1 - tail) and returns 0 below about 1e-16.  Results agree with commons-math to within 1e-10 absolute, the
+ * difference above 1e-15 being error of the commons-math continued fraction at depths over 100000.
+ * 
+ * Not thread safe.
+ */
+class BinomialTail {
+	//Relative size of the last term at which a sum is stopped
+	private static final double EPSILON = 1e-17;
+	
+	private double probability;
+	private double ratio;
+	private int cacheSize;
+	private LongDoubleMap cache;
+	
+	public BinomialTail(double probability, int cacheSize) {
+		this.probability = probability;
+		this.ratio = probability / (1 - probability);
+		this.cacheSize = cacheSize;
+		this.cache = new LongDoubleMap(cacheSize);
+	}
+	
+	/**
+	 * Probability of at least successes in trials.
+	 */
+	public double upperTail(int trials, int successes) {
+		if (trials < 0 || successes < 0 || successes > trials || probability <= 0 || probability >= 1) {
+			//Argument errors and the degenerate distributions are left to commons-math
+			return new BinomialTest().binomialTest(trials, successes, probability, AlternativeHypothesis.GREATER_THAN);
+		}
+		if (successes == 0) {
+			return 1;
+		}
+		long key = ((long)trials << 32) | successes;
+		double tail = cache.get(key, -1);
+		if (tail < 0) {
+			tail = computeUpperTail(trials, successes);
+			if (cache.size() >= cacheSize) {
+				cache.clear();
+			}
+			cache.put(key, tail);
+		}
+		return tail;
+	}
+	
+	private double computeUpperTail(int n, int k) {
+		BinomialDistribution dist = new BinomialDistribution(null, n, probability);
+		if (k >= (n + 1) * probability) {
+			//Terms fall off from k upwards
+			double term = 1;
+			double sum = 1;
+			for (int j=k; j<n; j++) {
+				term *= (double)(n - j) / (j + 1) * ratio;
+				sum += term;
+				if (term < sum * EPSILON) {
+					break;
+				}
+			}
+			return Math.min(1, Math.exp(dist.logProbability(k) + Math.log(sum)));
+		} else {
+			//Terms fall off from k-1 downwards, sum the lower tail instead
+			double term = 1;
+			double sum = 1;
+			for (int j=k-1; j>0; j--) {
+				term *= (double)j / (n - j + 1) / ratio;
+				sum += term;
+				if (term < sum * EPSILON) {
+					break;
+				}
+			}
+			return Math.max(0, 1 - Math.exp(dist.logProbability(k - 1) + Math.log(sum)));
+		}
+	}
+}
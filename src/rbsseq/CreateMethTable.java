@@ -1,17 +1,26 @@
 package rbsseq;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import htsjdk.samtools.util.SamLocusIterator; 
-import htsjdk.samtools.util.SamLocusIterator.LocusInfo;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
@@ -23,9 +32,19 @@ public class CreateMethTable {
 	private File forwardOut = null;
 	private File reverseOut = null;
 	private File referenceFile = null;
+	private File regionsFile = null;
 	private String mode = "nope";
+	private String[] modes = null;
+	private int threads = 1;
+	private int progressInterval = 30;
 	
-	private HashMap<String,String> refSeq = new HashMap<String,String>();
+	private static final String HEADER = "Chrom\tCoord\tStrand\tNuc\tDepth\t#A\t#C\t#G\t#T\t#N\t#-\t%Methylated\n";
+	
+	private PackedReference refSeq = null;
+	private Regions regions = null;
+	private ProgressReporter progress = null;
+	//Bases the pileups left out, logged once at the end
+	private LongAdder otherBases = new LongAdder();
 	
 	public static void main(String[] args) {
 		if (args.length ==0){
@@ -38,246 +57,268 @@ public class CreateMethTable {
 	
 	public CreateMethTable(String[] args) {
 		this.processArgs(args);
-		if (mode.equals("meth")) {
-			methTable(args);
-		} else if (mode.equals("allCG")) {
-			allCG(args);
-		} else if (mode.equals("allAT")) {
-			allAT(args);
-		} else if (mode.equals("highAT")) {
-			highAT(args);
-		} else {
-			System.out.println("Don't recognize mode: " + this.mode + ", exiting!");
-			System.exit(1);
-		}
-	}
-	
-	private void methTable(String args[]) {
 		
+		if (this.regionsFile != null) {
+			this.readRegions();
+		}
 		this.readReferenceSequence();
+		progress = new ProgressReporter(progressInterval);
+		progress.start();
 		try {
-			BufferedWriter bwF = new BufferedWriter(new FileWriter(this.forwardOut));
-			BufferedWriter bwR = new BufferedWriter(new FileWriter(this.reverseOut));
-			String header = "Chrom\tCoord\tStrand\tNuc\tDepth\t#A\t#C\t#G\t#T\t#N\t#-\t%Methylated\n";
-			bwF.write(header);
-			bwR.write(header);
-			SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(this.alignmentFile);
-			SamLocusIterator sli = new SamLocusIterator(sr);
-			int counter = 0;
-			for (LocusInfo li: sli) {
-				String chrom = li.getSequenceName();
-				int pos = li.getPosition();
-				if (counter % 5000000 == 0 && counter != 0) {
-					System.out.println(chrom + " " + pos );
-				}
-				counter += 1;
-				int[] forward = li.checkForward();
-				int[] reverse = li.checkReverse();
-				String base = refSeq.get(chrom).substring(pos-1, pos);
-				if (forward[1] > 0) {
-					int del = li.getDeletionCount();
-					int cov = forward[0] + forward[1] + forward[2] + forward[3] + forward[4];
-				   
-			    	double methylation = (double)forward[1] / (cov);
-					String result = String.format("%s\t%d\tF\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%f\n", chrom, pos, base, cov, forward[0], 
-							forward[1], forward[2], forward[3], forward[4], del, methylation);
-					bwF.write(result);
-				    
-					
-				} else if (reverse[2] > 0) {
-					int del = li.getDeletionCount();
-					int cov = reverse[0] + reverse[1] + reverse[2] + reverse[3] + reverse[4];
-					double methylation = (double)reverse[2] / (cov);
-					String result = String.format("%s\t%d\tR\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%f\n", chrom, pos, base, cov, reverse[0], 
-							reverse[1], reverse[2], reverse[3], reverse[4], del, methylation);
-					bwR.write(result);
-					
-					
-				}
+			if (threads > 1) {
+				parallelTable();
+			} else {
+				singleTable();
 			}
-			bwF.close();
-			bwR.close();
-			sli.close();
-		} catch (IOException ex) {
-			System.out.println(ex.getMessage());
+		} catch (UncheckedIOException uioex) {
+			//The reference is decoded as it is needed
+			System.out.println(uioex.getMessage());
+			System.exit(1);
+		}
+		progress.stop();
+		if (otherBases.sum() > 0) {
+			System.out.println(otherBases.sum() + " aligned bases other than A, C, G, T and N were not counted");
 		}
-		
 	}
 	
-	private void allCG(String args[]) {
-		this.readReferenceSequence();
+	/***************
+	 * Walks the whole alignment with a single pileup, writing every requested mode in the same pass.
+	 */
+	private void singleTable() {
 		try {
-			BufferedWriter bwF = new BufferedWriter(new FileWriter(this.forwardOut));
-			BufferedWriter bwR = new BufferedWriter(new FileWriter(this.reverseOut));
-			String header = "Chrom\tCoord\tStrand\tNuc\tDepth\t#A\t#C\t#G\t#T\t#N\t#-\t%Methylated\n";
-			bwF.write(header);
-			bwR.write(header);
+			MethTableOutput[] outputs = new MethTableOutput[modes.length];
+			for (int i=0; i<modes.length; i++) {
+				TsvEncoder bwF = new TsvEncoder(new FileOutputStream(getOutputFile(this.forwardOut, modes[i])));
+				TsvEncoder bwR = new TsvEncoder(new FileOutputStream(getOutputFile(this.reverseOut, modes[i])));
+				bwF.writeAscii(HEADER);
+				bwR.writeAscii(HEADER);
+				outputs[i] = new MethTableOutput(modes[i], bwF, bwR);
+			}
 			SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(this.alignmentFile);
-			SamLocusIterator sli = new SamLocusIterator(sr);
-			int counter = 0;
-			for (LocusInfo li: sli) {
-				String chrom = li.getSequenceName();
-				int pos = li.getPosition();
-				if (counter % 5000000 == 0 && counter != 0) {
-					System.out.println(chrom + " " + pos );
-				}
-				counter += 1;
-				int[] forward = li.checkForward();
-				int[] reverse = li.checkReverse();
-				String base = refSeq.get(chrom).substring(pos-1, pos);
-				if (base.equals("C")) {
-					int del = li.getDeletionCount();
-					int cov = forward[0] + forward[1] + forward[2] + forward[3] + forward[4];
-				    
-				    double methylation = (double)forward[1] / (cov);
-					String result = String.format("%s\t%d\tF\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%f\n", chrom, pos, base, cov, forward[0], 
-							forward[1], forward[2], forward[3], forward[4], del, methylation);
-					bwF.write(result);
-				    
-					
-				} else if (base.equals("G")) { 
-					
-					int del = li.getDeletionCount();
-					int cov = reverse[0] + reverse[1] + reverse[2] + reverse[3] + reverse[4];
-					
-					double methylation = (double)reverse[2] / (cov);
-					String result = String.format("%s\t%d\tR\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%f\n", chrom, pos, base, cov, reverse[0], 
-							reverse[1], reverse[2], reverse[3], reverse[4], del, methylation);
-					bwR.write(result);
-					
-					
-				}
+			StrandPileup pileup;
+			if (regions != null) {
+				pileup = new StrandPileup(sr, regions.getQueryIntervals(sr.getFileHeader().getSequenceDictionary(), null));
+			} else {
+				pileup = new StrandPileup(sr);
+			}
+			writeTable(pileup, outputs);
+			for (MethTableOutput output: outputs) {
+				output.close();
 			}
-			bwF.close();
-			bwR.close();
-			sli.close();
+			pileup.close();
 		} catch (IOException ex) {
 			System.out.println(ex.getMessage());
 		}
 	}
 	
-	private void highAT(String args[]) {
-		this.readReferenceSequence();
+	/***************
+	 * Uses the BAM index to run one pileup per reference sequence on a pool of threads.  Each worker
+	 * writes to its own temporary forward/reverse files, which are concatenated in sequence dictionary order
+	 * so the final tables match a single threaded run.
+	 */
+	private void parallelTable() {
+		ExecutorService pool = null;
+		ArrayList<Future<File[]>> results = new ArrayList<Future<File[]>>();
 		try {
-			BufferedWriter bwF = new BufferedWriter(new FileWriter(this.forwardOut));
-			BufferedWriter bwR = new BufferedWriter(new FileWriter(this.reverseOut));
-			String header = "Chrom\tCoord\tStrand\tNuc\tDepth\t#A\t#C\t#G\t#T\t#N\t#-\t%Methylated\n";
-			bwF.write(header);
-			bwR.write(header);
 			SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(this.alignmentFile);
-			SamLocusIterator sli = new SamLocusIterator(sr);
-			int counter = 0;
-			for (LocusInfo li: sli) {
-				String chrom = li.getSequenceName();
-				int pos = li.getPosition();
-				if (counter % 5000000 == 0 && counter != 0) {
-					System.out.println(chrom + " " + pos );
+			boolean indexed = sr.hasIndex();
+			final SAMFileHeader header = sr.getFileHeader();
+			sr.close();
+			
+			if (!indexed) {
+				System.out.println("Alignment file is not indexed, running with a single thread.");
+				singleTable();
+				return;
+			}
+			
+			pool = Executors.newFixedThreadPool(threads);
+			final File tempDir = this.forwardOut.getAbsoluteFile().getParentFile();
+			for (final SAMSequenceRecord ssr: header.getSequenceDictionary().getSequences()) {
+				if (regions != null && !regions.contains(ssr.getSequenceName())) {
+					continue;
 				}
-				counter += 1;
-				int[] forward = li.checkForward();
-				int[] reverse = li.checkReverse();
-				String base = refSeq.get(chrom).substring(pos-1, pos);
-				if (base.equals("A")) {
-					int del = li.getDeletionCount();
-					int cov = forward[0] + forward[1] + forward[2] + forward[3] + forward[4];
-				    if (cov >= 100){
-				    	double methylation = (double)forward[1] / (cov);
-						String result = String.format("%s\t%d\tF\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%f\n", chrom, pos, base, cov, forward[0], 
-								forward[1], forward[2], forward[3], forward[4], del, methylation);
-						bwF.write(result);
-				    }
-					
-				} else if (base.equals("T")) { 
-					int del = li.getDeletionCount();
-					int cov = reverse[0] + reverse[1] + reverse[2] + reverse[3] + reverse[4];
-					if (cov >= 100) {
-						double methylation = (double)reverse[2] / (cov);
-						String result = String.format("%s\t%d\tR\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%f\n", chrom, pos, base, cov, reverse[0], 
-								reverse[1], reverse[2], reverse[3], reverse[4], del, methylation);
-						bwR.write(result);
+				
+				results.add(pool.submit(new Callable<File[]>() {
+					public File[] call() throws IOException {
+						return tableSequence(header, ssr.getSequenceName(), tempDir);
 					}
-					
+				}));
+			}
+			pool.shutdown();
+			
+			OutputStream[] streams = new OutputStream[modes.length * 2];
+			for (int i=0; i<modes.length; i++) {
+				streams[i*2] = new BufferedOutputStream(new FileOutputStream(getOutputFile(this.forwardOut, modes[i])));
+				streams[i*2+1] = new BufferedOutputStream(new FileOutputStream(getOutputFile(this.reverseOut, modes[i])));
+			}
+			for (OutputStream os: streams) {
+				os.write(HEADER.getBytes());
+			}
+			for (Future<File[]> result: results) {
+				File[] parts = result.get();
+				for (int i=0; i<parts.length; i++) {
+					appendFile(parts[i], streams[i]);
+					parts[i].delete();
 				}
 			}
-			bwF.close();
-			bwR.close();
-			sli.close();
+			for (OutputStream os: streams) {
+				os.close();
+			}
 		} catch (IOException ex) {
 			System.out.println(ex.getMessage());
+		} catch (ExecutionException ex) {
+			System.out.println("Error processing alignment file: " + ex.getCause().getMessage());
+		} catch (InterruptedException ex) {
+			System.out.println("Interrupted while processing alignment file.");
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			deleteSequenceFiles(results);
 		}
 	}
 	
-	private void allAT(String args[]) {
-		this.readReferenceSequence();
+	/***************
+	 * Writes the tables of one reference sequence to temporary forward and reverse files for each mode, named
+	 * after the forward output file and the sequence.  The files are deleted again if the sequence fails.
+	 */
+	private File[] tableSequence(SAMFileHeader header, String sequence, File tempDir) throws IOException {
+		File[] parts = new File[modes.length * 2];
 		try {
-			BufferedWriter bwF = new BufferedWriter(new FileWriter(this.forwardOut));
-			BufferedWriter bwR = new BufferedWriter(new FileWriter(this.reverseOut));
-			String header = "Chrom\tCoord\tStrand\tNuc\tDepth\t#A\t#C\t#G\t#T\t#N\t#-\t%Methylated\n";
-			bwF.write(header);
-			bwR.write(header);
-			SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(this.alignmentFile);
-			SamLocusIterator sli = new SamLocusIterator(sr);
-			int counter = 0;
-			for (LocusInfo li: sli) {
-				String chrom = li.getSequenceName();
-				int pos = li.getPosition();
-				if (counter % 5000000 == 0 && counter != 0) {
-					System.out.println(chrom + " " + pos );
-				}
-				counter += 1;
-				int[] forward = li.checkForward();
-				int[] reverse = li.checkReverse();
-				String base = refSeq.get(chrom).substring(pos-1, pos);
-				if (base.equals("A")) {
-					int del = li.getDeletionCount();
-					int cov = forward[0] + forward[1] + forward[2] + forward[3] + forward[4];
-			    	double methylation = (double)forward[1] / (cov);
-					String result = String.format("%s\t%d\tF\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%f\n", chrom, pos, base, cov, forward[0], 
-							forward[1], forward[2], forward[3], forward[4], del, methylation);
-					bwF.write(result);
-				    
-					
-				} else if (base.equals("T")) { 
-					int del = li.getDeletionCount();
-					int cov = reverse[0] + reverse[1] + reverse[2] + reverse[3] + reverse[4];
-					double methylation = (double)reverse[2] / (cov);
-					String result = String.format("%s\t%d\tR\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%f\n", chrom, pos, base, cov, reverse[0], 
-							reverse[1], reverse[2], reverse[3], reverse[4], del, methylation);
-					bwR.write(result);
+			String prefix = this.forwardOut.getName() + "." + sequence + ".";
+			MethTableOutput[] outputs = new MethTableOutput[modes.length];
+			for (int i=0; i<modes.length; i++) {
+				parts[i*2] = File.createTempFile(prefix, "." + modes[i] + ".forward.tmp", tempDir);
+				parts[i*2].deleteOnExit();
+				parts[i*2+1] = File.createTempFile(prefix, "." + modes[i] + ".reverse.tmp", tempDir);
+				parts[i*2+1].deleteOnExit();
+				outputs[i] = new MethTableOutput(modes[i], new TsvEncoder(new FileOutputStream(parts[i*2])), new TsvEncoder(new FileOutputStream(parts[i*2+1])));
+			}
+			SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(alignmentFile);
+			StrandPileup pileup;
+			if (regions != null) {
+				pileup = new StrandPileup(sr, regions.getQueryIntervals(header.getSequenceDictionary(), sequence));
+			} else {
+				pileup = new StrandPileup(sr, sequence);
+			}
+			writeTable(pileup, outputs);
+			for (MethTableOutput output: outputs) {
+				output.close();
+			}
+			pileup.close();
+			sr.close();
+			//The run failed elsewhere and nothing will append this sequence
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("Interrupted while processing " + sequence);
+			}
+		} catch (IOException ioex) {
+			deleteFiles(parts);
+			throw ioex;
+		} catch (RuntimeException rex) {
+			deleteFiles(parts);
+			throw rex;
+		}
+		return parts;
+	}
+	
+	/***************
+	 * Deletes the temporary files of the sequences that weren't appended, when the run fails.
+	 */
+	private void deleteSequenceFiles(ArrayList<Future<File[]>> results) {
+		for (Future<File[]> result: results) {
+			if (result.isDone() && !result.isCancelled()) {
+				try {
+					deleteFiles(result.get());
+				} catch (ExecutionException ex) {
+					//The sequence deleted its own files
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
 				}
 			}
-			bwF.close();
-			bwR.close();
-			sli.close();
-		} catch (IOException ex) {
-			System.out.println(ex.getMessage());
 		}
 	}
 	
+	private void deleteFiles(File[] parts) {
+		for (File part: parts) {
+			if (part != null) {
+				part.delete();
+			}
+		}
+	}
+	
+	private void appendFile(File source, OutputStream os) throws IOException {
+		InputStream is = new FileInputStream(source);
+		byte[] buffer = new byte[1 << 16];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			os.write(buffer, 0, read);
+		}
+		is.close();
+	}
+	
+	/***************
+	 * With a single mode the output files are used as given, otherwise the mode name is inserted before
+	 * the file extension, e.g. sample_F.txt becomes sample_F.meth.txt.
+	 */
+	private File getOutputFile(File file, String mode) {
+		if (modes.length == 1) {
+			return file;
+		}
+		String name = file.getName();
+		int extension = name.lastIndexOf('.');
+		if (extension > 0) {
+			name = name.substring(0, extension) + "." + mode + name.substring(extension);
+		} else {
+			name = name + "." + mode;
+		}
+		return new File(file.getAbsoluteFile().getParentFile(), name);
+	}
 	
+	/***************
+	 * Reads each locus once and hands the strand counts, deletion count and reference base to every output.
+	 */
+	private void writeTable(StrandPileup pileup, MethTableOutput[] outputs) throws IOException {
+		int sequenceIndex = -1;
+		int refIndex = -1;
+		while (pileup.next()) {
+			String chrom = pileup.getSequenceName();
+			int pos = pileup.getPosition();
+			progress.addLoci(1, chrom);
+			int[] forward = pileup.getForward();
+			int[] reverse = pileup.getReverse();
+			if (pileup.getSequenceIndex() != sequenceIndex) {
+				sequenceIndex = pileup.getSequenceIndex();
+				refIndex = refSeq.getIndex(chrom);
+			}
+			char base = refSeq.baseAt(refIndex, pos-1);
+			int del = pileup.getDeletionCount();
+			int covF = forward[0] + forward[1] + forward[2] + forward[3] + forward[4];
+			int covR = reverse[0] + reverse[1] + reverse[2] + reverse[3] + reverse[4];
+			for (MethTableOutput output: outputs) {
+				output.writeLocus(chrom, pos, base, forward, reverse, covF, covR, del);
+			}
+		}
+		otherBases.add(pileup.getOtherBases());
+	}
 	
+
+	private void readRegions() {
+		try {
+			regions = new Regions(this.regionsFile);
+			System.out.println("Restricting the tables to " + regions.size() + " regions, " + regions.getBases() + " bases");
+		} catch (IOException ioex) {
+			System.out.println("Error reading regions file: " + ioex.getMessage());
+			System.exit(1);
+		}
+	}
+
 	private void readReferenceSequence() {
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(this.referenceFile));
-			String temp = null;
-			Pattern p = Pattern.compile(">(\\S+).*$");
-			String chrom = null;
-			StringBuilder seq = null;
-			while ((temp = br.readLine()) != null) {
-				
-				Matcher m = p.matcher(temp);
-				if (m.matches()) {
-					if (chrom != null) {
-						refSeq.put(chrom, seq.toString());
-					}
-					chrom = m.group(1);
-					seq = new StringBuilder("");
-				} else {
-					seq.append(temp.toUpperCase());
-				}
+			refSeq = new PackedReference(this.referenceFile, regions);
+			if (refSeq.getIndexWarning() != null) {
+				System.out.println(refSeq.getIndexWarning());
 			}
-			refSeq.put(chrom,seq.toString());
-			br.close();
 		} catch (IOException ioex) {
 			System.out.println("Error reading reference fasta file: " + ioex.getMessage());
 		}
@@ -299,10 +340,13 @@ public class CreateMethTable {
 				try{
 					switch (test){
 					case 'a': alignmentFile = new File(args[++i]); break;
+					case 'b': regionsFile = new File(args[++i]); break;
 					case 'g': referenceFile = new File(args[++i]); break;
 					case 'f': forwardOut = new File(args[++i]); break;
 					case 'r': reverseOut = new File(args[++i]); break;
 					case 'm': mode = args[++i]; break;
+					case 't': threads = Integer.parseInt(args[++i]); break;
+					case 'v': progressInterval = Integer.parseInt(args[++i]); break;
 					default: printErrorAndExit("\nProblem, unknown option! " + mat.group());
 					}
 				}
@@ -339,6 +383,41 @@ public class CreateMethTable {
 			System.exit(1);
 		}
 		
+		modes = mode.split(",");
+		for (String m: modes) {
+			if (!MethTableOutput.isMode(m)) {
+				System.out.println("Don't recognize mode: " + m + ", exiting!");
+				System.exit(1);
+			}
+		}
+		
+		if (this.regionsFile != null) {
+			if (!this.regionsFile.exists()) {
+				System.out.println("Specified regions file does not exist: " + this.regionsFile.getAbsolutePath());
+				System.exit(1);
+			}
+			SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(this.alignmentFile);
+			boolean indexed = sr.hasIndex();
+			try {
+				sr.close();
+			} catch (IOException ioex) {
+				//Only the header was read
+			}
+			if (!indexed) {
+				System.out.println("Regions require an indexed alignment file: " + this.alignmentFile.getAbsolutePath());
+				System.exit(1);
+			}
+		}
+		
+		if (this.threads < 1) {
+			System.out.println("Number of threads must be at least 1: -t");
+			System.exit(1);
+		}
+		if (this.progressInterval < 0) {
+			System.out.println("Progress interval can't be negative: -v");
+			System.exit(1);
+		}
+		
 
 	
 	}
@@ -357,11 +436,19 @@ public class CreateMethTable {
 				"-f full path to the forward strand output file\n" + 
 				"-r full path to the reverse strand output file\n" +
 				"-g full path to the reference file\n" +
-				"-m mode: \n" +
+				"-m mode, or a comma separated list of modes that are written in a single pass, e.g. meth,allCG.\n" +
+				"   With more than one mode the mode name is added before the extension of each output file: \n" +
 				"         meth = any observed C on forward or G on reverse.\n" +
 				"         allCG = all C positions on forward or G on reverse.\n" +
 				"         highAT = all A positions on forward or G on reverse, coverage 100x \n" +
 				"         allAT = all A positions on forward or G on reverse.\n" +
+				"\nOptional Options:\n"+
+				"-t number of threads. Requires an indexed alignment file, each reference sequence is\n" +
+				"   processed separately and the results are merged in sequence dictionary order. Default 1.\n" +
+				"-v seconds between progress reports, 0 turns them off. Default 30.\n" +
+				"-b bed file of regions. Only positions within the regions are written, their alignments are\n" +
+				"   found through the index, and only the reference bases around them are read. Requires an\n" +
+				"   indexed alignment file.\n" +
 
 				"\n"+
 
@@ -0,0 +1,178 @@
+package rbsseq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Overlap index over the features of one chromosome.  The features are sorted by start with
+ * FeatureComparator, and the sorted array is treated as an implicit binary search tree where every node also
+ * stores the largest end in its subtree, so a lookup only visits the subtrees that can contain a hit.
+ * A feature contains a position if start < pos < end, the same test annotatePositions has always used.
+ */
+class FeatureIndex {
+	//Subtrees this small are scanned directly
+	private static final int SCAN_LEVEL = 3;
+
+	private Feature[] features;
+	private int[] starts;
+	private int[] ends;
+	private int[] maxEnds;
+	private int maxLevel;
+
+	//Reused by lookups, one set per thread so an index can be searched from several threads at once
+	private static final ThreadLocal<Lookup> lookups = new ThreadLocal<Lookup>() {
+		@Override
+		protected Lookup initialValue() {
+			return new Lookup();
+		}
+	};
+
+	public FeatureIndex(ArrayList<Feature> featureList) {
+		ArrayList<Feature> sorted = new ArrayList<Feature>(featureList);
+		Collections.sort(sorted, new FeatureComparator());
+		int n = sorted.size();
+		features = sorted.toArray(new Feature[n]);
+		starts = new int[n];
+		ends = new int[n];
+		maxEnds = new int[n];
+		for (int i=0; i<n; i++) {
+			starts[i] = features[i].getStart();
+			ends[i] = features[i].getEnd();
+		}
+		maxLevel = buildMaxEnds();
+	}
+
+	/**
+	 * Fills in the largest end below each node.  Leaves are the even indexes, a node at level k has the k
+	 * lowest bits set, and nodes past the end of the array take the largest end of the last real subtree.
+	 */
+	private int buildMaxEnds() {
+		int n = starts.length;
+		if (n == 0) {
+			return 0;
+		}
+		int lastIndex = 0;
+		int last = 0;
+		for (int i=0; i<n; i+=2) {
+			lastIndex = i;
+			last = ends[i];
+			maxEnds[i] = ends[i];
+		}
+		int k;
+		for (k=1; (1L << k) <= n; k++) {
+			int x = 1 << (k - 1);
+			int first = (x << 1) - 1;
+			int step = x << 2;
+			for (int i=first; i<n; i+=step) {
+				int leftMax = maxEnds[i - x];
+				int rightMax = i + x < n ? maxEnds[i + x] : last;
+				int max = ends[i];
+				if (leftMax > max) {
+					max = leftMax;
+				}
+				if (rightMax > max) {
+					max = rightMax;
+				}
+				maxEnds[i] = max;
+			}
+			//Track the largest end of the partial subtree at the right edge
+			lastIndex = ((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x;
+			if (lastIndex < n && maxEnds[lastIndex] > last) {
+				last = maxEnds[lastIndex];
+			}
+		}
+		return k - 1;
+	}
+
+	/**
+	 * Returns true if any feature contains the position.
+	 */
+	public boolean contains(int pos) {
+		return findContaining(pos, lookups.get()) > 0;
+	}
+
+	/**
+	 * Returns the features that contain the position, in sorted order.
+	 */
+	public ArrayList<Feature> getContaining(int pos) {
+		Lookup lookup = lookups.get();
+		int count = findContaining(pos, lookup);
+		ArrayList<Feature> result = new ArrayList<Feature>(count);
+		for (int i=0; i<count; i++) {
+			result.add(features[lookup.hits[i]]);
+		}
+		return result;
+	}
+
+	/**
+	 * Collects the indexes of the features with start < pos < end into the hits of the lookup, sorted, and
+	 * returns how many there are.
+	 */
+	private int findContaining(int pos, Lookup lookup) {
+		int n = starts.length;
+		int count = 0;
+		if (n == 0) {
+			return 0;
+		}
+		int top = 0;
+		lookup.push(top++, (1 << maxLevel) - 1, maxLevel, false);
+		while (top > 0) {
+			top--;
+			int node = lookup.stackNode[top];
+			int level = lookup.stackLevel[top];
+			boolean leftDone = lookup.stackLeftDone[top];
+			if (level <= SCAN_LEVEL) {
+				int first = (node >> level) << level;
+				int last = Math.min(first + (1 << (level + 1)) - 1, n);
+				for (int i=first; i<last && starts[i] < pos; i++) {
+					if (pos < ends[i]) {
+						count = lookup.addHit(count, i);
+					}
+				}
+			} else if (!leftDone) {
+				int left = node - (1 << (level - 1));
+				lookup.push(top++, node, level, true);
+				if (left >= n || maxEnds[left] > pos) {
+					lookup.push(top++, left, level - 1, false);
+				}
+			} else if (node < n && starts[node] < pos) {
+				if (pos < ends[node]) {
+					count = lookup.addHit(count, node);
+				}
+				lookup.push(top++, node + (1 << (level - 1)), level - 1, false);
+			}
+		}
+		Arrays.sort(lookup.hits, 0, count);
+		return count;
+	}
+
+	/**
+	 * Search stack and hits of a lookup.
+	 */
+	private static class Lookup {
+		private int[] stackNode = new int[64];
+		private int[] stackLevel = new int[64];
+		private boolean[] stackLeftDone = new boolean[64];
+		private int[] hits = new int[16];
+
+		private void push(int top, int node, int level, boolean leftDone) {
+			if (top == stackNode.length) {
+				stackNode = Arrays.copyOf(stackNode, top * 2);
+				stackLevel = Arrays.copyOf(stackLevel, top * 2);
+				stackLeftDone = Arrays.copyOf(stackLeftDone, top * 2);
+			}
+			stackNode[top] = node;
+			stackLevel[top] = level;
+			stackLeftDone[top] = leftDone;
+		}
+
+		private int addHit(int count, int index) {
+			if (count == hits.length) {
+				hits = Arrays.copyOf(hits, count * 2);
+			}
+			hits[count] = index;
+			return count + 1;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package rbsseq;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Temporary file of scored position groups, written with PositionGroup.writeRecord and read back in the
+ * same order.  Used by the streaming mode so scored groups don't have to stay in memory until the q-values
+ * are known.  A streaming parse by reference sequence spills the groups of each sequence to a file of its own,
+ * which a checkpoint keeps a copy of.
+ */
+class GroupSpill {
+	private File file;
+	private double splitThresh;
+	private int hpLength;
+	private DataOutputStream out;
+	private DataInputStream in = null;
+	private int size = 0;
+	private int read = 0;
+
+	public GroupSpill(File dir, String prefix, double splitThresh, int hpLength) throws IOException {
+		this(File.createTempFile(prefix + ".", ".spill.tmp", dir), splitThresh, hpLength);
+		this.file.deleteOnExit();
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+	}
+
+	private GroupSpill(File file, double splitThresh, int hpLength) {
+		this.file = file;
+		this.splitThresh = splitThresh;
+		this.hpLength = hpLength;
+	}
+
+	/**
+	 * Opens a finished spill file holding the given number of groups for reading.
+	 */
+	public static GroupSpill open(File file, int size, double splitThresh, int hpLength) throws IOException {
+		GroupSpill spill = new GroupSpill(file, splitThresh, hpLength);
+		spill.size = size;
+		spill.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		return spill;
+	}
+
+	public void write(PositionGroup group) throws IOException {
+		group.writeRecord(out);
+		size++;
+	}
+
+	/**
+	 * Finishes writing, after which the groups can be read back with next.
+	 */
+	public void finish() throws IOException {
+		out.close();
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+	}
+
+	/**
+	 * Returns the next group, or null once all groups have been read.
+	 */
+	public PositionGroup next() throws IOException {
+		if (read == size) {
+			return null;
+		}
+		read++;
+		return PositionGroup.readRecord(in, splitThresh, hpLength);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Closes the file and keeps it.
+	 */
+	public void close() {
+		try {
+			if (in != null) {
+				in.close();
+			} else {
+				out.close();
+			}
+		} catch (IOException ioex) {
+			System.out.println("Error closing spill file " + file.getPath() + ": " + ioex.getMessage());
+		}
+	}
+
+	/**
+	 * Closes the file and deletes it.
+	 */
+	public void delete() {
+		close();
+		file.delete();
+	}
+}
@@ -0,0 +1,245 @@
+package rbsseq;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Writes text as BGZF blocks that end on a line break, so every block of the file can be decompressed and
+ * parsed on its own.  The output is still a regular multi-member gzip file.  A single line longer than a
+ * block is split across blocks.
+ *
+ * With compression threads, blocks are deflated on a pool of background threads and written in order by a
+ * writer thread, so the caller only waits when the bounded queue of pending blocks is full.  Without them
+ * blocks are deflated and written on the calling thread.
+ */
+class LineBlockOutputStream extends OutputStream {
+	//Stays well below the 64KB BGZF limit, so incompressible text still fits a stored block
+	private static final int BLOCK_SIZE = 60000;
+	private static final int COMPRESSION_LEVEL = 5;
+
+	private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+		protected Deflater initialValue() {
+			return new Deflater(COMPRESSION_LEVEL, true);
+		}
+	};
+	private static final ThreadLocal<Deflater> STORER = new ThreadLocal<Deflater>() {
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.NO_COMPRESSION, true);
+		}
+	};
+
+	private OutputStream os;
+	private byte[] buffer = new byte[BLOCK_SIZE];
+	private int length = 0;
+
+	//Background compression
+	private ExecutorService pool = null;
+	private Thread writer = null;
+	private ArrayBlockingQueue<Future<byte[]>> pending = null;
+	private volatile IOException writeError = null;
+
+	/**
+	 * Compresses and writes blocks on the calling thread.
+	 */
+	public LineBlockOutputStream(File file) throws IOException {
+		this.os = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+	}
+
+	/**
+	 * Compresses blocks on the given number of background threads.
+	 */
+	public LineBlockOutputStream(File file, int threads) throws IOException {
+		this(file);
+		ThreadFactory daemon = StageMetrics.countedThreads(true);
+		pool = Executors.newFixedThreadPool(Math.max(1, threads), daemon);
+		pending = new ArrayBlockingQueue<Future<byte[]>>(Math.max(1, threads) * 4);
+		writer = daemon.newThread(new Runnable() {
+			public void run() {
+				writeBlocks();
+			}
+		});
+		writer.start();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (length == BLOCK_SIZE) {
+			writeBlock();
+		}
+		buffer[length++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (length == BLOCK_SIZE) {
+				writeBlock();
+			}
+			int count = Math.min(len, BLOCK_SIZE - length);
+			System.arraycopy(b, off, buffer, length, count);
+			length += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Writes the buffered complete lines as one block and keeps the partial last line.
+	 */
+	private void writeBlock() throws IOException {
+		int end = length;
+		while (end > 0 && buffer[end-1] != '\n') {
+			end--;
+		}
+		if (end == 0) {
+			end = length;
+		}
+		submit(buffer, end);
+		System.arraycopy(buffer, end, buffer, 0, length - end);
+		length -= end;
+	}
+
+	private void submit(byte[] data, int count) throws IOException {
+		if (writeError != null) {
+			throw writeError;
+		}
+		if (pool == null) {
+			os.write(compress(data, count));
+			return;
+		}
+		final byte[] block = new byte[count];
+		System.arraycopy(data, 0, block, 0, count);
+		Future<byte[]> compressed = pool.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return compress(block, block.length);
+			}
+		});
+		putPending(compressed);
+	}
+
+	private void putPending(Future<byte[]> block) throws IOException {
+		try {
+			pending.put(block);
+		} catch (InterruptedException ex) {
+			throw new IOException("Interrupted while writing compressed blocks.");
+		}
+	}
+
+	/**
+	 * Runs on the writer thread, writing compressed blocks in submission order until the end marker.
+	 * After an error the remaining blocks are still taken off the queue, so the caller never blocks.
+	 */
+	private void writeBlocks() {
+		while (true) {
+			byte[] block;
+			try {
+				block = pending.take().get();
+			} catch (InterruptedException ex) {
+				writeError = new IOException("Interrupted while writing compressed blocks.");
+				return;
+			} catch (ExecutionException ex) {
+				writeError = new IOException("Error compressing block: " + ex.getCause().getMessage());
+				continue;
+			}
+			if (block == null) {
+				return;
+			}
+			if (writeError == null) {
+				try {
+					os.write(block);
+				} catch (IOException ioex) {
+					writeError = ioex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds a complete BGZF block: gzip header with the BC block size field, raw deflate data, CRC and size.
+	 */
+	private static byte[] compress(byte[] data, int count) {
+		int maxData = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+				- BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		byte[] deflated = new byte[maxData];
+		Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		deflater.setInput(data, 0, count);
+		deflater.finish();
+		int size = deflater.deflate(deflated, 0, deflated.length);
+		if (!deflater.finished()) {
+			//Incompressible data, store it instead
+			deflater = STORER.get();
+			deflater.reset();
+			deflater.setInput(data, 0, count);
+			deflater.finish();
+			size = deflater.deflate(deflated, 0, deflated.length);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, count);
+		int blockSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + size + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		byte[] block = new byte[blockSize];
+		System.arraycopy(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, 0, block, 0, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET);
+		writeShort(block, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, blockSize - 1);
+		System.arraycopy(deflated, 0, block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, size);
+		int footer = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + size;
+		writeInt(block, footer, (int)crc.getValue());
+		writeInt(block, footer + 4, count);
+		return block;
+	}
+
+	private static void writeShort(byte[] block, int offset, int value) {
+		block[offset] = (byte)value;
+		block[offset + 1] = (byte)(value >>> 8);
+	}
+
+	private static void writeInt(byte[] block, int offset, int value) {
+		writeShort(block, offset, value);
+		writeShort(block, offset + 2, value >>> 16);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (length > 0) {
+			submit(buffer, length);
+			length = 0;
+		}
+		if (pool != null) {
+			FutureTask<byte[]> end = new FutureTask<byte[]>(new Callable<byte[]>() {
+				public byte[] call() {
+					return null;
+				}
+			});
+			end.run();
+			putPending(end);
+			try {
+				writer.join();
+			} catch (InterruptedException ex) {
+				throw new IOException("Interrupted while writing compressed blocks.");
+			} finally {
+				pool.shutdown();
+			}
+			if (writeError != null) {
+				os.close();
+				throw writeError;
+			}
+		}
+		os.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		os.close();
+	}
+}
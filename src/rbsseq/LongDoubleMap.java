@@ -0,0 +1,101 @@
+package rbsseq;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long keys to double values, with linear probing.  Used for genomic
+ * positions packed into a long with positionKey, so lookups don't build string keys.
+ */
+class LongDoubleMap {
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private double[] values;
+	private boolean[] used;
+	private int mask;
+	private int size = 0;
+
+	public LongDoubleMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity *= 2;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * Packs a chromosome index and a position into a single key.
+	 */
+	public static long positionKey(int chromIndex, int pos) {
+		return ((long)chromIndex << 32) | (pos & 0xffffffffL);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new double[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		int index = (int)(h ^ (h >>> 32)) & mask;
+		while (used[index] && keys[index] != key) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	public boolean containsKey(long key) {
+		return used[slot(key)];
+	}
+
+	/**
+	 * Returns the value of the key, or missing if the map doesn't contain it.
+	 */
+	public double get(long key, double missing) {
+		int index = slot(key);
+		return used[index] ? values[index] : missing;
+	}
+
+	public void put(long key, double value) {
+		int index = slot(key);
+		if (!used[index]) {
+			if (size + 1 > keys.length * LOAD_FACTOR) {
+				grow();
+				index = slot(key);
+			}
+			used[index] = true;
+			keys[index] = key;
+			size++;
+		}
+		values[index] = value;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		double[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(keys.length * 2);
+		for (int i=0; i<oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int index = slot(oldKeys[i]);
+				used[index] = true;
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Removes every key, keeping the current capacity.
+	 */
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+}
@@ -0,0 +1,109 @@
+package rbsseq;
+
+import java.io.IOException;
+
+/**
+ * Forward and reverse table writers for one CreateMethTable mode.  The per-locus counts are computed once
+ * by the caller and handed to every requested mode, which decides whether the locus is reported.
+ */
+class MethTableOutput {
+	public static final String[] MODES = {"meth", "allCG", "allAT", "highAT"};
+
+	private static final int METH = 0;
+	private static final int ALL_CG = 1;
+	private static final int ALL_AT = 2;
+	private static final int HIGH_AT = 3;
+
+	private String mode;
+	private int modeIndex = -1;
+	private TsvEncoder bwF;
+	private TsvEncoder bwR;
+
+	public MethTableOutput(String mode, TsvEncoder bwF, TsvEncoder bwR) {
+		this.mode = mode;
+		this.bwF = bwF;
+		this.bwR = bwR;
+		for (int i=0; i<MODES.length; i++) {
+			if (MODES[i].equals(mode)) {
+				modeIndex = i;
+			}
+		}
+	}
+
+	public static boolean isMode(String mode) {
+		for (String m: MODES) {
+			if (m.equals(mode)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the locus to the forward or reverse table if this mode reports it.  covF and covR are the
+	 * summed base counts of the forward and reverse arrays.
+	 */
+	public void writeLocus(String chrom, int pos, char base, int[] forward, int[] reverse, int covF, int covR, int del) throws IOException {
+		switch (modeIndex) {
+		case METH:
+			if (forward[1] > 0) {
+				writeForward(chrom, pos, base, forward, covF, del);
+			} else if (reverse[2] > 0) {
+				writeReverse(chrom, pos, base, reverse, covR, del);
+			}
+			break;
+		case ALL_CG:
+			if (base == 'C') {
+				writeForward(chrom, pos, base, forward, covF, del);
+			} else if (base == 'G') {
+				writeReverse(chrom, pos, base, reverse, covR, del);
+			}
+			break;
+		case ALL_AT:
+			if (base == 'A') {
+				writeForward(chrom, pos, base, forward, covF, del);
+			} else if (base == 'T') {
+				writeReverse(chrom, pos, base, reverse, covR, del);
+			}
+			break;
+		case HIGH_AT:
+			if (base == 'A') {
+				if (covF >= 100) {
+					writeForward(chrom, pos, base, forward, covF, del);
+				}
+			} else if (base == 'T') {
+				if (covR >= 100) {
+					writeReverse(chrom, pos, base, reverse, covR, del);
+				}
+			}
+			break;
+		}
+	}
+
+	private void writeForward(String chrom, int pos, char base, int[] forward, int cov, int del) throws IOException {
+		double methylation = (double)forward[1] / (cov);
+		writeLine(bwF, chrom, pos, 'F', base, cov, forward, del, methylation);
+	}
+
+	private void writeReverse(String chrom, int pos, char base, int[] reverse, int cov, int del) throws IOException {
+		double methylation = (double)reverse[2] / (cov);
+		writeLine(bwR, chrom, pos, 'R', base, cov, reverse, del, methylation);
+	}
+
+	private void writeLine(TsvEncoder bw, String chrom, int pos, char strand, char base, int cov, int[] counts, int del, double methylation) throws IOException {
+		bw.writeString(chrom).tab().writeInt(pos).tab().writeChar(strand).tab().writeChar(base).tab().writeInt(cov);
+		for (int count: counts) {
+			bw.tab().writeInt(count);
+		}
+		bw.tab().writeInt(del).tab().writeFixed(methylation).newLine();
+	}
+
+	public void close() throws IOException {
+		bwF.close();
+		bwR.close();
+	}
+
+	public String getMode() {
+		return mode;
+	}
+}
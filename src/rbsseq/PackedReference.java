@@ -0,0 +1,579 @@
+package rbsseq;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reference sequence store that packs A, C, G and T into two bits per base.  All other characters (N and
+ * other IUPAC codes) are kept as runs in a side mask, with one bit per 64 base block marking the blocks that
+ * contain any of them, so a lookup only searches the runs when the block has one.  Bases are stored upper case.
+ * Sequences are addressed by their index in the fasta file, see getIndex.
+ * 
+ * Sequences are decoded on first use from the memory mapped fasta file, using a samtools style .fai index
+ * next to the fasta.  The index is built and written if it is missing or older than the fasta.  Fasta files 
+ * that can't be indexed, for example with uneven line lengths, are read completely up front.
+ * 
+ * With target regions, only the bases within REGION_MARGIN of a region are decoded, the rest of each
+ * sequence reads as N.  The margin covers the homopolymer and originating base checks next to a position.
+ */
+public class PackedReference {
+	private static final char[] BASES = {'A', 'C', 'G', 'T'};
+	private static final int REGION_MARGIN = 1 << 10;
+
+	private File fasta;
+	private ArrayList<IndexEntry> entries = new ArrayList<IndexEntry>();
+	private HashMap<String,Integer> nameIndex = new HashMap<String,Integer>();
+	private AtomicReferenceArray<PackedSequence> sequences;
+	private Regions regions;
+	private String indexWarning = null;
+
+	public PackedReference(File fasta) throws IOException {
+		this(fasta, null);
+	}
+	
+	/**
+	 * Creates a reference that only decodes the bases around the regions, or every base if regions is null.
+	 */
+	public PackedReference(File fasta, Regions regions) throws IOException {
+		this.fasta = fasta;
+		this.regions = regions;
+		File faiFile = new File(fasta.getPath() + ".fai");
+		ArrayList<IndexEntry> index = null;
+		if (faiFile.exists() && faiFile.lastModified() >= fasta.lastModified()) {
+			index = readIndex(faiFile);
+		}
+		if (index == null) {
+			index = buildIndex();
+			if (index != null) {
+				writeIndex(index, faiFile);
+			}
+		}
+		
+		if (index == null) {
+			readSequences();
+		} else {
+			for (IndexEntry entry: index) {
+				//A repeated name replaces the earlier sequence
+				nameIndex.put(entry.name, entries.size());
+				entries.add(entry);
+			}
+			sequences = new AtomicReferenceArray<PackedSequence>(entries.size());
+		}
+	}
+	
+	/**
+	 * Reads and packs the whole fasta file, used when the fasta can't be indexed.
+	 */
+	private void readSequences() throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(fasta));
+		String temp = null;
+		Pattern p = Pattern.compile(">(\\S+).*$");
+		ArrayList<PackedSequence> loaded = new ArrayList<PackedSequence>();
+		PackedSequence seq = null;
+		while ((temp = br.readLine()) != null) {
+			Matcher m = p.matcher(temp);
+			if (m.matches()) {
+				if (seq != null) {
+					seq.finish();
+				}
+				seq = new PackedSequence(0);
+				nameIndex.put(m.group(1), entries.size());
+				entries.add(new IndexEntry(m.group(1)));
+				loaded.add(seq);
+			} else {
+				seq.append(temp);
+			}
+		}
+		if (seq != null) {
+			seq.finish();
+		}
+		br.close();
+		
+		sequences = new AtomicReferenceArray<PackedSequence>(loaded.size());
+		for (int i=0; i<loaded.size(); i++) {
+			entries.get(i).length = loaded.get(i).length;
+			sequences.set(i, loaded.get(i));
+		}
+	}
+	
+	/**
+	 * Returns the entries of a samtools style fasta index, or null if the file can't be parsed.
+	 */
+	private ArrayList<IndexEntry> readIndex(File faiFile) throws IOException {
+		ArrayList<IndexEntry> index = new ArrayList<IndexEntry>();
+		BufferedReader br = new BufferedReader(new FileReader(faiFile));
+		String temp = null;
+		try {
+			while ((temp = br.readLine()) != null) {
+				String[] parts = temp.split("\t");
+				if (parts.length < 5) {
+					return null;
+				}
+				IndexEntry entry = new IndexEntry(parts[0]);
+				entry.length = Integer.parseInt(parts[1]);
+				entry.offset = Long.parseLong(parts[2]);
+				entry.lineBases = Integer.parseInt(parts[3]);
+				entry.lineWidth = Integer.parseInt(parts[4]);
+				if (entry.length > 0 && (entry.lineBases <= 0 || entry.lineWidth < entry.lineBases)) {
+					return null;
+				}
+				index.add(entry);
+			}
+		} catch (NumberFormatException nfex) {
+			return null;
+		} finally {
+			br.close();
+		}
+		return index;
+	}
+	
+	/**
+	 * Scans the fasta file for sequence names, lengths and line layout.  Returns null if the file doesn't
+	 * have the regular layout that a samtools style index requires, or has headers or characters that the
+	 * line based reader would treat differently.
+	 */
+	private ArrayList<IndexEntry> buildIndex() throws IOException {
+		ArrayList<IndexEntry> index = new ArrayList<IndexEntry>();
+		InputStream is = new FileInputStream(fasta);
+		byte[] buffer = new byte[1 << 20];
+		int count = 0;
+		int next = 0;
+		try {
+			IndexEntry entry = null;
+			boolean shortLine = false;
+			long offset = 0;
+			StringBuilder header = null;
+			int lineLength = 0;
+			boolean carriageReturn = false;
+			int b;
+			while (true) {
+				if (next == count && count != -1) {
+					count = is.read(buffer);
+					next = 0;
+				}
+				b = count == -1 ? -1 : buffer[next++] & 0xFF;
+				if (b == -1 || b == '\n') {
+					int terminator = (b == -1 ? 0 : 1) + (carriageReturn ? 1 : 0);
+					if (b == -1 && lineLength == 0 && header == null && !carriageReturn) {
+						break;
+					}
+					if (header != null) {
+						String name = headerName(header);
+						if (name == null) {
+							return null;
+						}
+						entry = new IndexEntry(name);
+						entry.offset = offset + 1;
+						index.add(entry);
+						shortLine = false;
+						header = null;
+					} else if (entry == null) {
+						return null;
+					} else if (entry.lineBases == -1) {
+						entry.lineBases = lineLength;
+						entry.lineWidth = lineLength + terminator;
+						entry.length += lineLength;
+						shortLine = lineLength == 0;
+					} else {
+						if (lineLength > entry.lineBases || (shortLine && lineLength > 0)) {
+							return null;
+						}
+						if (terminator > 0 && terminator != entry.lineWidth - entry.lineBases) {
+							return null;
+						}
+						if (lineLength < entry.lineBases) {
+							shortLine = true;
+						}
+						entry.length += lineLength;
+					}
+					if (b == -1) {
+						break;
+					}
+					lineLength = 0;
+					carriageReturn = false;
+				} else if (b > 127) {
+					return null;
+				} else if (lineLength == 0 && header == null && b == '>') {
+					header = new StringBuilder();
+				} else if (header != null) {
+					header.append((char)b);
+				} else if (carriageReturn) {
+					//A carriage return inside a line
+					return null;
+				} else if (b == '\r') {
+					carriageReturn = true;
+				} else {
+					lineLength++;
+				}
+				offset++;
+			}
+		} finally {
+			is.close();
+		}
+		
+		for (IndexEntry entry: index) {
+			if (entry.lineBases == -1) {
+				entry.lineBases = 0;
+				entry.lineWidth = 0;
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Returns the name the line based reader would take from the header, or null if it wouldn't see a header.
+	 */
+	private String headerName(StringBuilder header) {
+		if (header.length() > 0 && header.charAt(header.length()-1) == '\r') {
+			header.setLength(header.length()-1);
+		}
+		Matcher m = Pattern.compile("(\\S+).*$").matcher(header);
+		if (!m.matches()) {
+			return null;
+		}
+		return m.group(1);
+	}
+	
+	private void writeIndex(ArrayList<IndexEntry> index, File faiFile) {
+		try {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(faiFile));
+			for (IndexEntry entry: index) {
+				bw.write(entry.name + "\t" + entry.length + "\t" + entry.offset + "\t" + entry.lineBases + "\t" + entry.lineWidth + "\n");
+			}
+			bw.close();
+		} catch (IOException ioex) {
+			indexWarning = "Could not write fasta index " + faiFile.getPath() + ", continuing without it: " + ioex.getMessage();
+		}
+	}
+	
+	/**
+	 * Returns why the fasta index couldn't be written, or null if it was read or written.  The reference works
+	 * either way, the index is built again on the next run.
+	 */
+	public String getIndexWarning() {
+		return indexWarning;
+	}
+	
+	/**
+	 * Returns the packed sequence, decoding it from the fasta file on first use.  Each sequence is decoded under
+	 * the lock of its own entry, so threads that need other sequences don't wait.  A read error is thrown as an
+	 * UncheckedIOException with the message for the tool to log.
+	 */
+	private PackedSequence getSequence(int index) {
+		PackedSequence seq = sequences.get(index);
+		if (seq == null) {
+			IndexEntry entry = entries.get(index);
+			synchronized (entry) {
+				seq = sequences.get(index);
+				if (seq == null) {
+					try {
+						seq = readSequence(entry);
+					} catch (IOException ioex) {
+						throw new UncheckedIOException("Error reading reference fasta file: " + ioex.getMessage(), ioex);
+					}
+					sequences.set(index, seq);
+				}
+			}
+		}
+		return seq;
+	}
+	
+	private PackedSequence readSequence(IndexEntry entry) throws IOException {
+		PackedSequence seq = new PackedSequence(entry.length);
+		if (regions != null) {
+			readRegions(entry, seq);
+		} else if (entry.length > 0) {
+			RandomAccessFile raf = new RandomAccessFile(fasta, "r");
+			try {
+				FileChannel fc = raf.getChannel();
+				long size = (long)(entry.length / entry.lineBases) * entry.lineWidth + entry.length % entry.lineBases;
+				size = Math.min(size, fc.size() - entry.offset);
+				MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, entry.offset, size);
+				while (seq.length < entry.length && buffer.hasRemaining()) {
+					char c = (char)buffer.get();
+					if (c != '\n' && c != '\r') {
+						seq.append(Character.toUpperCase(c));
+					}
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		seq.finish();
+		return seq;
+	}
+
+	/**
+	 * Decodes the bases within REGION_MARGIN of the regions on the sequence, filling the rest with N.
+	 */
+	private void readRegions(IndexEntry entry, PackedSequence seq) throws IOException {
+		int[] starts = regions.getStarts(entry.name);
+		int[] ends = regions.getEnds(entry.name);
+		if (starts != null && entry.length > 0) {
+			RandomAccessFile raf = new RandomAccessFile(fasta, "r");
+			try {
+				FileChannel fc = raf.getChannel();
+				long size = (long)(entry.length / entry.lineBases) * entry.lineWidth + entry.length % entry.lineBases;
+				size = Math.min(size, fc.size() - entry.offset);
+				MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, entry.offset, size);
+				for (int i=0; i<starts.length; i++) {
+					//Zero based, end exclusive window around the one based region
+					int from = Math.max(seq.length, starts[i] - 1 - REGION_MARGIN);
+					int to = (int)Math.min(entry.length, (long)ends[i] + REGION_MARGIN);
+					if (from >= to) {
+						continue;
+					}
+					seq.appendRun('N', from - seq.length);
+					long offset = (long)(from / entry.lineBases) * entry.lineWidth + from % entry.lineBases;
+					if (offset >= size) {
+						break;
+					}
+					buffer.position((int)offset);
+					while (seq.length < to && buffer.hasRemaining()) {
+						char c = (char)buffer.get();
+						if (c != '\n' && c != '\r') {
+							seq.append(Character.toUpperCase(c));
+						}
+					}
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		seq.appendRun('N', entry.length - seq.length);
+	}
+
+	/**
+	 * Returns the index of the named sequence, or -1 if the reference doesn't contain it.
+	 */
+	public int getIndex(String name) {
+		Integer index = nameIndex.get(name);
+		if (index == null) {
+			return -1;
+		}
+		return index;
+	}
+
+	public boolean contains(String name) {
+		return nameIndex.containsKey(name);
+	}
+
+	public String getName(int index) {
+		return entries.get(index).name;
+	}
+
+	public int getSequenceCount() {
+		return entries.size();
+	}
+
+	public int getLength(int index) {
+		return entries.get(index).length;
+	}
+
+	/**
+	 * Returns the upper case base at the zero based position.
+	 */
+	public char baseAt(int index, int pos) {
+		return getSequence(index).baseAt(pos);
+	}
+
+	/**
+	 * Returns the upper case bases from start (inclusive) to end (exclusive), with the same bounds checks as
+	 * String.substring.
+	 */
+	public String getSubSequence(int index, int start, int end) {
+		PackedSequence seq = getSequence(index);
+		if (start < 0 || end > seq.length || start > end) {
+			throw new StringIndexOutOfBoundsException("begin " + start + ", end " + end + ", length " + seq.length);
+		}
+		char[] bases = new char[end - start];
+		for (int i=start; i<end; i++) {
+			bases[i - start] = seq.baseAt(i);
+		}
+		return new String(bases);
+	}
+
+	private static class IndexEntry {
+		private String name;
+		private int length = 0;
+		private long offset = 0;
+		private int lineBases = -1;
+		private int lineWidth = -1;
+		
+		private IndexEntry(String name) {
+			this.name = name;
+		}
+	}
+
+	private static class PackedSequence {
+		private int length = 0;
+		private long[] packed;
+
+		//Runs of bases that aren't A, C, G or T, sorted by start
+		private int[] runStart = new int[16];
+		private int[] runEnd = new int[16];
+		private byte[] runBase = new byte[16];
+		private int runCount = 0;
+		//One bit for every 64 bases, set if the block overlaps a run
+		private long[] runBlocks = new long[16];
+
+		private PackedSequence(int capacity) {
+			packed = new long[Math.max(1024, (capacity + 31) >>> 5)];
+		}
+
+		private void append(String line) {
+			for (int i=0; i<line.length(); i++) {
+				append(Character.toUpperCase(line.charAt(i)));
+			}
+		}
+
+		private void append(char base) {
+			int code;
+			switch (base) {
+				case 'A': code = 0; break;
+				case 'C': code = 1; break;
+				case 'G': code = 2; break;
+				case 'T': code = 3; break;
+				default: code = -1;
+			}
+
+			if ((length >>> 5) >= packed.length) {
+				packed = grow(packed);
+			}
+			if (code >= 0) {
+				packed[length >>> 5] |= (long)code << ((length & 31) << 1);
+			} else {
+				addException(base);
+			}
+			length++;
+		}
+
+		/**
+		 * Appends count copies of a base that isn't A, C, G or T as a single run.
+		 */
+		private void appendRun(char base, int count) {
+			if (count <= 0) {
+				return;
+			}
+			while (((length + count - 1) >>> 5) >= packed.length) {
+				packed = grow(packed);
+			}
+			addException(base);
+			runEnd[runCount-1] = length + count;
+			int lastBlock = (length + count - 1) >>> 6;
+			while ((lastBlock >>> 6) >= runBlocks.length) {
+				runBlocks = grow(runBlocks);
+			}
+			for (int block=length >>> 6; block<=lastBlock; block++) {
+				runBlocks[block >>> 6] |= 1L << (block & 63);
+			}
+			length += count;
+		}
+
+		private void addException(char base) {
+			if (runCount > 0 && runEnd[runCount-1] == length && runBase[runCount-1] == (byte)base) {
+				runEnd[runCount-1]++;
+			} else {
+				if (runCount == runStart.length) {
+					runStart = grow(runStart);
+					runEnd = grow(runEnd);
+					runBase = grow(runBase);
+				}
+				runStart[runCount] = length;
+				runEnd[runCount] = length + 1;
+				runBase[runCount] = (byte)base;
+				runCount++;
+			}
+			int block = length >>> 6;
+			if ((block >>> 6) >= runBlocks.length) {
+				runBlocks = grow(runBlocks);
+			}
+			runBlocks[block >>> 6] |= 1L << (block & 63);
+		}
+
+		/**
+		 * Trims the growth slack once the sequence is complete.
+		 */
+		private void finish() {
+			long[] trimmed = new long[(length + 31) >>> 5];
+			System.arraycopy(packed, 0, trimmed, 0, trimmed.length);
+			packed = trimmed;
+
+			int[] starts = new int[runCount];
+			int[] ends = new int[runCount];
+			byte[] runBases = new byte[runCount];
+			System.arraycopy(runStart, 0, starts, 0, runCount);
+			System.arraycopy(runEnd, 0, ends, 0, runCount);
+			System.arraycopy(runBase, 0, runBases, 0, runCount);
+			runStart = starts;
+			runEnd = ends;
+			runBase = runBases;
+		}
+
+		private char baseAt(int pos) {
+			if (pos < 0 || pos >= length) {
+				throw new StringIndexOutOfBoundsException("index " + pos + ", length " + length);
+			}
+			int block = pos >>> 6;
+			if ((block >>> 6) < runBlocks.length && (runBlocks[block >>> 6] & (1L << (block & 63))) != 0) {
+				int run = findRun(pos);
+				if (run >= 0) {
+					return (char)(runBase[run] & 0xFF);
+				}
+			}
+			return BASES[(int)(packed[pos >>> 5] >>> ((pos & 31) << 1)) & 3];
+		}
+
+		/**
+		 * Binary search for the run that covers the position, -1 if there is none.
+		 */
+		private int findRun(int pos) {
+			int low = 0;
+			int high = runCount - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (runEnd[mid] <= pos) {
+					low = mid + 1;
+				} else if (runStart[mid] > pos) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		private static long[] grow(long[] array) {
+			long[] larger = new long[array.length * 2];
+			System.arraycopy(array, 0, larger, 0, array.length);
+			return larger;
+		}
+
+		private static int[] grow(int[] array) {
+			int[] larger = new int[array.length * 2];
+			System.arraycopy(array, 0, larger, 0, array.length);
+			return larger;
+		}
+
+		private static byte[] grow(byte[] array) {
+			byte[] larger = new byte[array.length * 2];
+			System.arraycopy(array, 0, larger, 0, array.length);
+			return larger;
+		}
+	}
+}
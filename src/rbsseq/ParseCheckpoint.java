@@ -0,0 +1,298 @@
+package rbsseq;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * Checkpoint of a parse by reference sequence, so a killed run can go on where it stopped.  After each
+ * sequence is parsed and its lines are appended to the parsed file, its parse state (the closed groups, the
+ * potential NBS deletions and the filter counters) is appended to the checkpoint with the length of the parsed
+ * file at that point.  Each record is synced to disk before the next sequence is merged.
+ *
+ * The file starts with the settings of the run that wrote it.  A checkpoint with other settings, or a record
+ * cut short by a kill, is dropped, so only complete sequences of the same run are skipped.
+ *
+ * The groups a streaming parse spilled are copied to <checkpoint>.<record>.spill next to the checkpoint, and
+ * the record holds their count and annotation counts.
+ */
+class ParseCheckpoint {
+	private static final String MAGIC = "RBSSeqTools parse checkpoint 2";
+
+	private File file;
+	private String settings;
+	private double splitThresh;
+	private int hpLength;
+
+	//Complete records
+	private ArrayList<String> sequences = new ArrayList<String>();
+	private ArrayList<Long> parsedLengths = new ArrayList<Long>();
+	private ArrayList<Long> recordOffsets = new ArrayList<Long>();
+	private long validLength = 0;
+
+	private FileOutputStream fos = null;
+	private DataOutputStream out = null;
+
+	/**
+	 * Reads the complete records of an existing checkpoint written with the same settings.
+	 */
+	public ParseCheckpoint(File file, String settings, double splitThresh, int hpLength) throws IOException {
+		this.file = file;
+		this.settings = settings;
+		this.splitThresh = splitThresh;
+		this.hpLength = hpLength;
+		if (file.exists()) {
+			readRecords();
+		}
+	}
+
+	private void readRecords() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (!in.readUTF().equals(MAGIC) || !in.readUTF().equals(settings)) {
+				return;
+			}
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			writeHeader(new DataOutputStream(header));
+			long offset = header.size();
+			validLength = offset;
+			while (true) {
+				int length = in.readInt();
+				byte[] record = new byte[length];
+				in.readFully(record);
+				DataInputStream recordStart = new DataInputStream(new ByteArrayInputStream(record));
+				sequences.add(recordStart.readUTF());
+				parsedLengths.add(recordStart.readLong());
+				recordOffsets.add(offset + 4);
+				offset += 4 + length;
+				validLength = offset;
+			}
+		} catch (EOFException eofex) {
+			//End of the file, or of the complete records
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeHeader(DataOutputStream dos) throws IOException {
+		dos.writeUTF(MAGIC);
+		dos.writeUTF(settings);
+	}
+
+	/**
+	 * Reference sequences of the complete records, in the order they were parsed.
+	 */
+	public ArrayList<String> getSequences() {
+		return sequences;
+	}
+
+	/**
+	 * Length of the parsed file once the lines of the first count sequences were appended to it.
+	 */
+	public long getParsedLength(int count) {
+		return count == 0 ? 0 : parsedLengths.get(count - 1);
+	}
+
+	/**
+	 * Reads the parse state of the i-th complete sequence.  Its groups are all closed.
+	 */
+	public ParseState readState(int index) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(recordOffsets.get(index));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD()), 1 << 16));
+			in.readUTF();
+			in.readLong();
+
+			ParseState state = new ParseState(splitThresh, hpLength);
+			state.minCovBsFilter = in.readInt();
+			state.minCovNbsFilter = in.readInt();
+			state.minDelBsFilter = in.readInt();
+			state.maxNbsFractionFilter = in.readInt();
+			state.minBsFractionFilter = in.readInt();
+			state.minObsOK = in.readInt();
+			state.totalPositions = in.readInt();
+			state.nbsPositions.read(in);
+			int groups = in.readInt();
+			for (int i=0; i<groups; i++) {
+				state.closedGroups.add(PositionGroup.readPositions(in, state.store, splitThresh, hpLength));
+			}
+			int spilled = in.readInt();
+			if (spilled >= 0) {
+				state.spilledCounts = new AnnotationCounts();
+				state.spilledCounts.lowConfidenceFlag = in.readInt();
+				state.spilledCounts.highBackgroundExactFlag = in.readInt();
+				state.spilledCounts.homopolymerFlag = in.readInt();
+				state.spilledCounts.flankFlag = in.readInt();
+				state.spilledCounts.passed = in.readInt();
+				state.spilledCounts.annotated = in.readInt();
+				state.spilledCounts.unannotated = in.readInt();
+				state.spilled = GroupSpill.open(getSpillFile(index), spilled, splitThresh, hpLength);
+			}
+			return state;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Drops the records from the index on, and any record cut short, so new records follow the kept ones.
+	 * Without kept records the file is started over with the settings of this run.
+	 */
+	public void truncate(int keep) throws IOException {
+		if (keep == 0) {
+			validLength = 0;
+		} else if (keep < sequences.size()) {
+			validLength = recordOffsets.get(keep) - 4;
+		}
+		while (sequences.size() > keep) {
+			sequences.remove(keep);
+			parsedLengths.remove(keep);
+			recordOffsets.remove(keep);
+		}
+		deleteSpillFiles(keep);
+
+		if (validLength == 0) {
+			fos = new FileOutputStream(file);
+			out = new DataOutputStream(fos);
+			writeHeader(out);
+			out.flush();
+			validLength = out.size();
+		} else {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(validLength);
+			raf.close();
+			fos = new FileOutputStream(file, true);
+			out = new DataOutputStream(fos);
+		}
+	}
+
+	/**
+	 * Appends the parse state of a sequence and the length of the parsed file after its lines, and syncs the
+	 * record to disk.  The spilled groups of a streaming state are copied first.  Must follow truncate.
+	 */
+	public void add(String sequence, ParseState state, long parsedLength) throws IOException {
+		int index = sequences.size();
+		if (state.spilled != null) {
+			copySpillFile(state.spilled.getFile(), getSpillFile(index));
+		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeUTF(sequence);
+		record.writeLong(parsedLength);
+		record.writeInt(state.minCovBsFilter);
+		record.writeInt(state.minCovNbsFilter);
+		record.writeInt(state.minDelBsFilter);
+		record.writeInt(state.maxNbsFractionFilter);
+		record.writeInt(state.minBsFractionFilter);
+		record.writeInt(state.minObsOK);
+		record.writeInt(state.totalPositions);
+		state.nbsPositions.write(record);
+		ArrayList<PositionGroup> groups = state.getGroups();
+		record.writeInt(groups.size());
+		for (PositionGroup group: groups) {
+			group.writePositions(record);
+		}
+		if (state.spilled == null) {
+			record.writeInt(-1);
+		} else {
+			record.writeInt(state.spilled.size());
+			record.writeInt(state.spilledCounts.lowConfidenceFlag);
+			record.writeInt(state.spilledCounts.highBackgroundExactFlag);
+			record.writeInt(state.spilledCounts.homopolymerFlag);
+			record.writeInt(state.spilledCounts.flankFlag);
+			record.writeInt(state.spilledCounts.passed);
+			record.writeInt(state.spilledCounts.annotated);
+			record.writeInt(state.spilledCounts.unannotated);
+		}
+		record.close();
+
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+		out.flush();
+		fos.getFD().sync();
+
+		sequences.add(sequence);
+		parsedLengths.add(parsedLength);
+		recordOffsets.add(validLength + 4);
+		validLength += 4 + bytes.size();
+	}
+
+	private File getSpillFile(int index) {
+		return new File(file.getPath() + "." + index + ".spill");
+	}
+
+	private void copySpillFile(File source, File target) throws IOException {
+		InputStream is = new FileInputStream(source);
+		FileOutputStream os = new FileOutputStream(target);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				os.write(buffer, 0, read);
+			}
+			os.getFD().sync();
+		} finally {
+			is.close();
+			os.close();
+		}
+	}
+
+	/**
+	 * Deletes the spill files of the records from the index on, including ones of a record a kill cut short.
+	 */
+	private void deleteSpillFiles(int from) {
+		File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		String prefix = file.getName() + ".";
+		for (File spillFile: files) {
+			String name = spillFile.getName();
+			if (name.startsWith(prefix) && name.endsWith(".spill")) {
+				String index = name.substring(prefix.length(), name.length() - ".spill".length());
+				if (index.matches("\\d{1,9}") && Integer.parseInt(index) >= from) {
+					spillFile.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the checkpoint once parsing is done.  It is kept until the run finishes.
+	 */
+	public void close() {
+		try {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		} catch (IOException ioex) {
+			System.out.println("Error closing checkpoint file " + file.getPath() + ": " + ioex.getMessage());
+		}
+	}
+
+	/**
+	 * Closes and deletes the checkpoint once the run is done.
+	 */
+	public void delete() {
+		close();
+		file.delete();
+		deleteSpillFiles(0);
+	}
+
+	public File getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,73 @@
+package rbsseq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Working state of the locus parse loop: the passing positions, the open group, the groups closed so far,
+ * the potential NBS deletions and the threshold filter counters.  A serial parse uses a single instance, the parallel parse
+ * one instance per reference sequence, which are stitched back together in sequence dictionary order.
+ *
+ * A streaming parse by sequence only keeps the first and the last closed group, which may be stitched onto the
+ * neighbouring sequences.  The groups closed in between are split, annotated and spilled as they close.
+ */
+class ParseState {
+	PositionStore store = new PositionStore();
+	PositionGroup currentGroup;
+	ArrayList<PositionGroup> closedGroups = new ArrayList<PositionGroup>();
+	PositionSet nbsPositions = new PositionSet();
+
+	//Streaming parse by sequence: the groups between the first and last closed group, and their annotation counts
+	GroupSpill spilled = null;
+	AnnotationCounts spilledCounts = null;
+	//Parse by sequence: the temporary file of the sequence's parsed lines
+	File parsedPart = null;
+
+	//Counters
+	int minCovBsFilter = 0;
+	int minCovNbsFilter = 0;
+	int minDelBsFilter = 0;
+	int maxNbsFractionFilter = 0;
+	int minBsFractionFilter = 0;
+	int minObsOK = 0;
+	int totalPositions = 0;
+
+	//Threshold sweep: a state per sweep point, fed the same loci, and a sink for their parsed lines
+	ParseState[] sweepStates = null;
+	TsvEncoder sweepParsed = null;
+
+	public ParseState(double splitThresh, int hpLength) {
+		currentGroup = new PositionGroup(store, 0, splitThresh, hpLength);
+	}
+
+	/**
+	 * Called when the open group is closed.  Keeps the group, a streaming parse hands it on instead.
+	 */
+	void closeGroup(PositionGroup group) throws IOException {
+		closedGroups.add(group);
+	}
+
+	/**
+	 * Deletes the temporary files of a parse by sequence once the state is merged or given up.
+	 */
+	void deleteFiles() {
+		if (parsedPart != null) {
+			parsedPart.delete();
+		}
+		if (spilled != null) {
+			spilled.delete();
+		}
+	}
+
+	/**
+	 * Returns the closed groups followed by the open group, if it holds any positions.
+	 */
+	public ArrayList<PositionGroup> getGroups() {
+		ArrayList<PositionGroup> groups = new ArrayList<PositionGroup>(closedGroups);
+		if (currentGroup.size() > 0) {
+			groups.add(currentGroup);
+		}
+		return groups;
+	}
+}
@@ -0,0 +1,403 @@
+package rbsseq;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the records of a .parsed.txt.gz file in order.  Files written as BGZF blocks are decompressed and
+ * parsed on a pool of threads, a bounded number of blocks ahead of the reader.  Other gzip files are read on
+ * the calling thread.  Lines that span two blocks are joined on the calling thread.
+ */
+class ParsedFileReader {
+	//Values stored per record: position, countBS, covBS, countNBS, covNBS, forward, reverse
+	private static final int FIELDS = 7;
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private InputStream is;
+	private boolean blocked;
+	private ExecutorService pool = null;
+	private ArrayDeque<Future<DecodedBlock>> decoding = new ArrayDeque<Future<DecodedBlock>>();
+	private int maxDecoding;
+	private boolean inputDone = false;
+
+	//Lines waiting to be returned, and the partial line carried over from the last block
+	private ArrayDeque<ParsedLines> ready = new ArrayDeque<ParsedLines>();
+	private ByteArrayOutputStream fragment = new ByteArrayOutputStream();
+	private ParsedLines current = null;
+	private int cursor = 0;
+
+	public ParsedFileReader(File file, int threads) throws IOException {
+		is = new BufferedInputStream(new FileInputStream(file), CHUNK_SIZE);
+		blocked = isBlockCompressed(is);
+		if (blocked && threads > 1) {
+			pool = Executors.newFixedThreadPool(threads, StageMetrics.countedThreads(false));
+			maxDecoding = threads * 4;
+		} else {
+			is = new GZIPInputStream(is, CHUNK_SIZE);
+			blocked = false;
+		}
+	}
+
+	/**
+	 * Checks whether the file starts with a gzip header carrying the BGZF block size field.
+	 */
+	private static boolean isBlockCompressed(InputStream is) throws IOException {
+		is.mark(18);
+		byte[] header = new byte[18];
+		int read = 0;
+		int count;
+		while (read < header.length && (count = is.read(header, read, header.length - read)) != -1) {
+			read += count;
+		}
+		is.reset();
+		return read == 18 && (header[0] & 0xFF) == 31 && (header[1] & 0xFF) == 139 && header[2] == 8 && (header[3] & 4) != 0
+				&& header[10] == 6 && header[11] == 0 && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+	}
+
+	/**
+	 * Moves to the next record, returns false at the end of the file.
+	 */
+	public boolean next() throws IOException {
+		cursor++;
+		while (current == null || cursor >= current.count) {
+			current = nextLines();
+			cursor = 0;
+			if (current == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private ParsedLines nextLines() throws IOException {
+		while (ready.isEmpty()) {
+			DecodedBlock block = nextBlock();
+			if (block == null) {
+				if (fragment.size() > 0) {
+					//Last line without a line break
+					ready.add(parseFragment());
+				}
+				break;
+			}
+			if (!block.complete) {
+				fragment.write(block.head, 0, block.head.length);
+				continue;
+			}
+			fragment.write(block.head, 0, block.head.length);
+			ready.add(parseFragment());
+			ready.add(block.lines);
+			fragment.write(block.tail, 0, block.tail.length);
+		}
+		return ready.poll();
+	}
+
+	private ParsedLines parseFragment() {
+		byte[] line = fragment.toByteArray();
+		fragment.reset();
+		ParsedLines parsed = new ParsedLines(1);
+		parsed.add(line, 0, line.length);
+		return parsed;
+	}
+
+	/**
+	 * Returns the next decoded block in file order, or null at the end of the file.
+	 */
+	private DecodedBlock nextBlock() throws IOException {
+		if (!blocked) {
+			byte[] chunk = new byte[CHUNK_SIZE];
+			int read = 0;
+			int count;
+			while (read < chunk.length && (count = is.read(chunk, read, chunk.length - read)) != -1) {
+				read += count;
+			}
+			if (read == 0) {
+				return null;
+			}
+			return decode(chunk, read);
+		}
+
+		while (!inputDone && decoding.size() < maxDecoding) {
+			final byte[] raw = readRawBlock();
+			if (raw == null) {
+				inputDone = true;
+			} else {
+				decoding.add(pool.submit(new Callable<DecodedBlock>() {
+					public DecodedBlock call() throws IOException {
+						byte[] data = inflate(raw);
+						return decode(data, data.length);
+					}
+				}));
+			}
+		}
+		if (decoding.isEmpty()) {
+			return null;
+		}
+		try {
+			return decoding.poll().get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException)ex.getCause();
+			}
+			throw new IOException("Error decoding parsed file: " + ex.getCause().getMessage());
+		} catch (InterruptedException ex) {
+			throw new IOException("Interrupted while decoding parsed file.");
+		}
+	}
+
+	/**
+	 * Reads the next complete BGZF block, header included, or returns null at the end of the file.
+	 */
+	private byte[] readRawBlock() throws IOException {
+		byte[] header = new byte[18];
+		int read = 0;
+		int count;
+		while (read < header.length && (count = is.read(header, read, header.length - read)) != -1) {
+			read += count;
+		}
+		if (read == 0) {
+			return null;
+		}
+		if (read < header.length || header[12] != 'B' || header[13] != 'C') {
+			throw new IOException("Parsed file is not in BGZF format or is truncated.");
+		}
+		int blockSize = ((header[16] & 0xFF) | ((header[17] & 0xFF) << 8)) + 1;
+		byte[] raw = new byte[blockSize];
+		System.arraycopy(header, 0, raw, 0, header.length);
+		try {
+			new DataInputStream(is).readFully(raw, header.length, blockSize - header.length);
+		} catch (EOFException ex) {
+			throw new IOException("Parsed file is truncated.");
+		}
+		return raw;
+	}
+
+	private static byte[] inflate(byte[] raw) throws IOException {
+		int footer = raw.length - 8;
+		int size = (raw[footer + 4] & 0xFF) | ((raw[footer + 5] & 0xFF) << 8) | ((raw[footer + 6] & 0xFF) << 16) | ((raw[footer + 7] & 0xFF) << 24);
+		long crc = ((raw[footer] & 0xFFL) | ((raw[footer + 1] & 0xFFL) << 8) | ((raw[footer + 2] & 0xFFL) << 16) | ((raw[footer + 3] & 0xFFL) << 24));
+		byte[] data = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(raw, 18, footer - 18);
+			int inflated = 0;
+			while (inflated < size) {
+				int count = inflater.inflate(data, inflated, size - inflated);
+				if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				inflated += count;
+			}
+			if (inflated != size) {
+				throw new IOException("Parsed file block is corrupt.");
+			}
+		} catch (DataFormatException ex) {
+			throw new IOException("Parsed file block is corrupt: " + ex.getMessage());
+		} finally {
+			inflater.end();
+		}
+		CRC32 crc32 = new CRC32();
+		crc32.update(data, 0, size);
+		if (crc32.getValue() != crc) {
+			throw new IOException("Parsed file block failed the CRC check.");
+		}
+		return data;
+	}
+
+	/**
+	 * Splits decompressed text into the part before the first line break, the complete lines, which are
+	 * parsed, and the part after the last line break.
+	 */
+	private static DecodedBlock decode(byte[] data, int length) {
+		DecodedBlock block = new DecodedBlock();
+		int first = -1;
+		int last = -1;
+		for (int i=0; i<length; i++) {
+			if (data[i] == '\n') {
+				if (first == -1) {
+					first = i;
+				}
+				last = i;
+			}
+		}
+		if (first == -1) {
+			block.head = copy(data, 0, length);
+			return block;
+		}
+		block.complete = true;
+		block.head = copy(data, 0, first);
+		block.tail = copy(data, last + 1, length);
+		block.lines = new ParsedLines(Math.max(1, (last - first) / 32));
+		int start = first + 1;
+		for (int i=start; i<=last; i++) {
+			if (data[i] == '\n') {
+				block.lines.add(data, start, i);
+				start = i + 1;
+			}
+		}
+		return block;
+	}
+
+	private static byte[] copy(byte[] data, int start, int end) {
+		byte[] part = new byte[end - start];
+		System.arraycopy(data, start, part, 0, part.length);
+		return part;
+	}
+
+	public void close() throws IOException {
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+		is.close();
+	}
+
+	public String getChrom() {
+		return current.chroms[cursor];
+	}
+
+	public int getPosition() {
+		return current.values[cursor * FIELDS];
+	}
+
+	public int getCountBS() {
+		return current.values[cursor * FIELDS + 1];
+	}
+
+	public int getCovBS() {
+		return current.values[cursor * FIELDS + 2];
+	}
+
+	public int getCountNBS() {
+		return current.values[cursor * FIELDS + 3];
+	}
+
+	public int getCovNBS() {
+		return current.values[cursor * FIELDS + 4];
+	}
+
+	public int getForward() {
+		return current.values[cursor * FIELDS + 5];
+	}
+
+	public int getReverse() {
+		return current.values[cursor * FIELDS + 6];
+	}
+
+	private static class DecodedBlock {
+		private boolean complete = false;
+		private byte[] head;
+		private byte[] tail;
+		private ParsedLines lines;
+	}
+
+	/**
+	 * Chromosome and numeric fields of a run of lines.  Consecutive lines share the chromosome string.
+	 */
+	private static class ParsedLines {
+		private String[] chroms;
+		private int[] values;
+		private int count = 0;
+
+		private ParsedLines(int capacity) {
+			chroms = new String[capacity];
+			values = new int[capacity * FIELDS];
+		}
+
+		/**
+		 * Parses the line from start to end (exclusive), the same fields that split("\t") and
+		 * Integer.parseInt would read.
+		 */
+		private void add(byte[] data, int start, int end) {
+			if (end > start && data[end-1] == '\r') {
+				end--;
+			}
+			if (count == chroms.length) {
+				String[] largerChroms = new String[count * 2];
+				System.arraycopy(chroms, 0, largerChroms, 0, count);
+				chroms = largerChroms;
+				int[] largerValues = new int[count * 2 * FIELDS];
+				System.arraycopy(values, 0, largerValues, 0, count * FIELDS);
+				values = largerValues;
+			}
+
+			int tab = start;
+			while (tab < end && data[tab] != '\t') {
+				tab++;
+			}
+			String previous = count > 0 ? chroms[count-1] : null;
+			if (previous != null && sameChrom(previous, data, start, tab)) {
+				chroms[count] = previous;
+			} else {
+				chroms[count] = new String(data, start, tab - start);
+			}
+
+			int pos = tab + 1;
+			for (int field=0; field<FIELDS; field++) {
+				if (pos > end) {
+					throw new ArrayIndexOutOfBoundsException("Parsed file line has too few fields: " + new String(data, start, end - start));
+				}
+				int fieldEnd = pos;
+				while (fieldEnd < end && data[fieldEnd] != '\t') {
+					fieldEnd++;
+				}
+				values[count * FIELDS + field] = parseInt(data, pos, fieldEnd);
+				pos = fieldEnd + 1;
+			}
+			count++;
+		}
+
+		private static boolean sameChrom(String chrom, byte[] data, int start, int end) {
+			if (chrom.length() != end - start) {
+				return false;
+			}
+			for (int i=0; i<chrom.length(); i++) {
+				if (chrom.charAt(i) != (char)data[start + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int parseInt(byte[] data, int start, int end) {
+			int i = start;
+			boolean negative = false;
+			if (i < end && (data[i] == '-' || data[i] == '+')) {
+				negative = data[i] == '-';
+				i++;
+			}
+			if (i == end || end - i > 10) {
+				return Integer.parseInt(new String(data, start, end - start));
+			}
+			long value = 0;
+			for (; i<end; i++) {
+				int digit = data[i] - '0';
+				if (digit < 0 || digit > 9) {
+					throw new NumberFormatException("For input string: \"" + new String(data, start, end - start) + "\"");
+				}
+				value = value * 10 + digit;
+			}
+			if (negative) {
+				value = -value;
+			}
+			if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+				return Integer.parseInt(new String(data, start, end - start));
+			}
+			return (int)value;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package rbsseq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.util.SamLocusIterator;
+import htsjdk.samtools.util.SamLocusIterator.LocusInfo;
+
+/**
+ * Merges the loci of several locus iterators over replicate alignment files, which share a sequence
+ * dictionary, into one stream ordered by sequence dictionary index and position.  Loci of the same position
+ * are pooled by summing their deletions, coverage and strand counts, so replicates don't have to be merged
+ * into one alignment file first.  With a single iterator the loci are passed on unchanged.
+ */
+class PooledLocusIterator {
+	private ArrayList<SamReader> readers;
+	private ArrayList<SamLocusIterator> iterators;
+	private PriorityQueue<Source> queue = new PriorityQueue<Source>();
+
+	/**
+	 * Creates an iterator over the given locus iterators, closing them and their readers when it is closed.
+	 */
+	public PooledLocusIterator(ArrayList<SamReader> readers, ArrayList<SamLocusIterator> iterators) {
+		this.readers = readers;
+		this.iterators = iterators;
+		for (int i=0; i<iterators.size(); i++) {
+			Source source = new Source(iterators.get(i), i);
+			if (source.advance()) {
+				queue.add(source);
+			}
+		}
+	}
+
+	public boolean hasNext() {
+		return !queue.isEmpty();
+	}
+
+	/**
+	 * Returns the next position, pooled over every iterator that covers it.
+	 */
+	public PooledLocus next() {
+		Source first = queue.poll();
+		PooledLocus locus = new PooledLocus(first.locus);
+		if (first.advance()) {
+			queue.add(first);
+		}
+		while (!queue.isEmpty() && queue.peek().sequenceIndex == locus.sequenceIndex && queue.peek().locus.getPosition() == locus.position) {
+			Source other = queue.poll();
+			locus.add(other.locus);
+			if (other.advance()) {
+				queue.add(other);
+			}
+		}
+		return locus;
+	}
+
+	public void close() throws IOException {
+		for (SamLocusIterator sli: iterators) {
+			sli.close();
+		}
+		for (SamReader sr: readers) {
+			sr.close();
+		}
+	}
+
+	/**
+	 * The current locus of one of the iterators.  Equal positions are ordered by iterator, so the pooled locus
+	 * takes its sequence name from the first replicate.
+	 */
+	private static class Source implements Comparable<Source> {
+		private SamLocusIterator sli;
+		private int order;
+		private LocusInfo locus;
+		private int sequenceIndex;
+
+		public Source(SamLocusIterator sli, int order) {
+			this.sli = sli;
+			this.order = order;
+		}
+
+		public boolean advance() {
+			if (!sli.hasNext()) {
+				locus = null;
+				return false;
+			}
+			locus = sli.next();
+			sequenceIndex = locus.getSequenceIndex();
+			return true;
+		}
+
+		public int compareTo(Source other) {
+			if (sequenceIndex != other.sequenceIndex) {
+				return sequenceIndex < other.sequenceIndex ? -1 : 1;
+			}
+			if (locus.getPosition() != other.locus.getPosition()) {
+				return locus.getPosition() < other.locus.getPosition() ? -1 : 1;
+			}
+			return order - other.order;
+		}
+	}
+
+	/**
+	 * Counts of one position, summed over the replicates that cover it.
+	 */
+	public static class PooledLocus {
+		private String sequenceName;
+		private int sequenceIndex;
+		private int position;
+		private int deletionCount;
+		private int coverage;
+		private int forwardCount;
+		private int reverseCount;
+
+		private PooledLocus(LocusInfo locus) {
+			this.sequenceName = locus.getSequenceName();
+			this.sequenceIndex = locus.getSequenceIndex();
+			this.position = locus.getPosition();
+			add(locus);
+		}
+
+		private void add(LocusInfo locus) {
+			deletionCount += locus.getDeletionCount();
+			coverage += locus.getLocusCoverage();
+			forwardCount += locus.getFowardCount();
+			reverseCount += locus.getReverseCount();
+		}
+
+		public String getSequenceName() {
+			return sequenceName;
+		}
+
+		public int getPosition() {
+			return position;
+		}
+
+		public int getDeletionCount() {
+			return deletionCount;
+		}
+
+		public int getLocusCoverage() {
+			return coverage;
+		}
+
+		public int getForwardCount() {
+			return forwardCount;
+		}
+
+		public int getReverseCount() {
+			return reverseCount;
+		}
+	}
+}
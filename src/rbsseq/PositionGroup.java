@@ -1,20 +1,34 @@
 package rbsseq;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.math3.stat.inference.AlternativeHypothesis;
-import org.apache.commons.math3.stat.inference.BinomialTest;
-
 
+/**
+ * A run of consecutive positions, stored as a range of indexes into a PositionStore.  The max position, the
+ * first position with the highest bisulfite deletion fraction, is tracked as positions are added.  The base,
+ * predicted position and base flag reported for the max position are kept here, the store isn't changed.
+ */
 public class PositionGroup {
-	private ArrayList<Position> posList;
-	private Position maxPos;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private PositionStore store;
+	private int start;
+	private int end;
+	private int maxIndex = -1;
+	private double maxVal = 0;
 	private int lastPos;
 	
+	//Reported for the max position
+	private char base;
+	private int predPos;
+	private String baseFlag;
+	
 	//Group stats
 	private double bsPval;
 	private double nbsPval;
@@ -28,31 +42,81 @@ public class PositionGroup {
 	private String geneName = "NA";
 	private String biotype = "NA";
 	
-	//Pattern matchers
-	public final Pattern pF = Pattern.compile("^[CT]+");
-	public final Pattern pR = Pattern.compile("^[GA]+");
+	//Pattern matchers, shared by all groups
+	public static final Pattern pF = Pattern.compile("^[CT]+");
+	public static final Pattern pR = Pattern.compile("^[GA]+");
 	
 	//Settings
 	double splitThresh;
 	int hpLength;
 	
+	/**
+	 * Creates an empty group that isn't attached to a store yet.
+	 */
 	public PositionGroup(double splitThresh, int hpLength) {
-		posList = new ArrayList<Position>();
+		this(null, 0, splitThresh, hpLength);
+	}
+	
+	/**
+	 * Creates an empty group starting at the given index of the store.
+	 */
+	public PositionGroup(PositionStore store, int start, double splitThresh, int hpLength) {
+		this.store = store;
+		this.start = start;
+		this.end = start;
 		this.splitThresh = splitThresh;
 		this.hpLength = hpLength;
 	}
 	
-	public void addPosition(Position pos) {
-		posList.add(pos);
-		double maxVal = 0;
-		
-		for (Position p: posList) {
-			if (p.getBsPer() > maxVal) {
-				maxPos = p;
-				maxVal = p.getBsPer();
+	/**
+	 * Adds the next position of the store to the group.
+	 */
+	public void extend() {
+		double bsPer = store.getBsPer(end);
+		if (bsPer > maxVal) {
+			maxIndex = end;
+			maxVal = bsPer;
+			base = store.getBase(end);
+		}
+		lastPos = store.getPos(end);
+		end++;
+	}
+	
+	/**
+	 * Returns a copy of the group in a store of its own, so the store of this group can be cleared.
+	 */
+	public PositionGroup copy() {
+		PositionStore copyStore = new PositionStore();
+		PositionGroup copy = new PositionGroup(copyStore, 0, splitThresh, hpLength);
+		for (int i=start; i<end; i++) {
+			copyStore.add(store, i);
+			copy.extend();
+		}
+		return copy;
+	}
+	
+	/**
+	 * Adds the positions of another group, which directly follow this one.  An empty group takes over the
+	 * other group's range, otherwise the positions are copied to the end of this group's store, where this
+	 * group has to end.
+	 */
+	public void append(PositionGroup other) {
+		if (size() == 0) {
+			store = other.store;
+			start = other.start;
+			end = start;
+			for (int i=other.start; i<other.end; i++) {
+				extend();
+			}
+		} else {
+			if (end != store.size()) {
+				throw new IllegalStateException("Group can only be extended at the end of its store.");
+			}
+			for (int i=other.start; i<other.end; i++) {
+				store.add(other.store, i);
+				extend();
 			}
 		}
-		lastPos = pos.getPos();
 	}
 	
 	public void addAnnotation(String geneName, String filterFlag, String biotype) {
@@ -61,45 +125,40 @@ public class PositionGroup {
 		this.biotype = biotype;
 	}
 	
-	public String outputString(HashMap<String,String> refSeq) {
+	public String outputString(PackedReference refSeq) {
 		/********** 
 		 * This method finalizes the position information and returns a formatted string
 		 **********/
 		
-		 //Generate position list
-		 String allPosString = "";
-		 
-		 ArrayList<Integer> posLocList = new ArrayList<Integer>();
-		 for (Position p: posList) {
-			 posLocList.add(p.getPos());
-		 }
-		 
-		 Collections.sort(posLocList);
-		 for (Integer ap: posLocList) {
-			 allPosString += ";" + String.valueOf(ap+1);
+		 //Generate position list, the positions of a group are consecutive so they're already sorted
+		 StringBuilder allPosString = new StringBuilder();
+		 for (int i=start; i<end; i++) {
+			 if (i > start) {
+				 allPosString.append(';');
+			 }
+			 allPosString.append(store.getPos(i)+1);
 		 }
-		 allPosString = allPosString.substring(1);
 		 
 		 String outputString = String.format("%s\t%d\t%s\t%s\t%d\t%s\t%s\t%d\t%d\t%f\t%f\t%f\t%d\t%d\t%f\t%f\t%s\t%s\t%s\t%s\t%s\n",
-				 maxPos.getChrom(),
-				 maxPos.getPos()+1,
-				 maxPos.getPredPos()+1,
-				 allPosString,
-				 posList.size(),
-				 maxPos.getDirection(),
-				 maxPos.getBase(),
-				 maxPos.getBsDepth(),
-				 maxPos.getBsDel(),
-				 maxPos.getBsPer(),
+				 getChrom(),
+				 getPos()+1,
+				 predPos+1,
+				 allPosString.toString(),
+				 size(),
+				 store.getDirection(maxIndex),
+				 base,
+				 store.getBsDepth(maxIndex),
+				 store.getBsDel(maxIndex),
+				 getBsPer(),
 				 bsPval,
 				 qvalue,
-				 maxPos.getNbsDepth(),
-				 maxPos.getNbsDel(),
-				 maxPos.getNbsPer(),
+				 store.getNbsDepth(maxIndex),
+				 store.getNbsDel(maxIndex),
+				 store.getNbsPer(maxIndex),
 				 nbsPval,
 				 filterFlag,
 				 qvalueFlag,
-				 maxPos.getBaseFlag(),
+				 baseFlag,
 				 geneName,
 				 biotype
 				 );
@@ -123,87 +182,170 @@ public class PositionGroup {
 		}
 	}
 	
-	public void calculateBinomal(double errorRate, BinomialTest bt) {
-		bsPval = bt.binomialTest(maxPos.getBsDepth(), maxPos.getBsDel(), errorRate, AlternativeHypothesis.GREATER_THAN);
-		nbsPval = bt.binomialTest(maxPos.getNbsDepth(), maxPos.getNbsDel(), errorRate, AlternativeHypothesis.GREATER_THAN);
+	public void calculateBinomal(BinomialTail binomialTail) {
+		bsPval = binomialTail.upperTail(store.getBsDepth(maxIndex), store.getBsDel(maxIndex));
+		nbsPval = binomialTail.upperTail(store.getNbsDepth(maxIndex), store.getNbsDel(maxIndex));
+	}
+	
+	/**
+	 * Writes the scored group as a binary record: every position, then the base, predicted position and base
+	 * flag reported for the max position, the p-values and the annotation.  The q-value isn't part of the record.
+	 */
+	public void writeRecord(DataOutputStream out) throws IOException {
+		writePositions(out);
+		out.writeChar(base);
+		out.writeInt(predPos);
+		writeText(out, baseFlag);
+		out.writeDouble(bsPval);
+		out.writeDouble(nbsPval);
+		writeText(out, filterFlag);
+		writeText(out, geneName);
+		writeText(out, biotype);
+	}
+	
+	/**
+	 * Reads a group written by writeRecord into a new store.
+	 */
+	public static PositionGroup readRecord(DataInputStream in, double splitThresh, int hpLength) throws IOException {
+		PositionGroup group = readPositions(in, new PositionStore(), splitThresh, hpLength);
+		group.base = in.readChar();
+		group.predPos = in.readInt();
+		group.baseFlag = readText(in);
+		group.bsPval = in.readDouble();
+		group.nbsPval = in.readDouble();
+		String filterFlag = readText(in);
+		String geneName = readText(in);
+		String biotype = readText(in);
+		group.addAnnotation(geneName, filterFlag, biotype);
+		return group;
+	}
+	
+	/**
+	 * Writes the chromosome and the positions of the group, without anything found by scoring it.
+	 */
+	public void writePositions(DataOutputStream out) throws IOException {
+		writeText(out, getChrom());
+		out.writeInt(size());
+		for (int i=start; i<end; i++) {
+			out.writeInt(store.getPos(i));
+			out.writeByte(store.getStrandCode(i));
+			out.writeChar(store.getBase(i));
+			out.writeInt(store.getBsDepth(i));
+			out.writeInt(store.getBsDel(i));
+			out.writeInt(store.getNbsDepth(i));
+			out.writeInt(store.getNbsDel(i));
+		}
+	}
+	
+	/**
+	 * Reads positions written by writePositions onto the end of the store and returns them as a new group.
+	 */
+	public static PositionGroup readPositions(DataInputStream in, PositionStore store, double splitThresh, int hpLength) throws IOException {
+		PositionGroup group = new PositionGroup(store, store.size(), splitThresh, hpLength);
+		String chrom = readText(in);
+		int count = in.readInt();
+		for (int i=0; i<count; i++) {
+			int pos = in.readInt();
+			int strand = in.readByte();
+			char base = in.readChar();
+			int bsDepth = in.readInt();
+			int bsDel = in.readInt();
+			int nbsDepth = in.readInt();
+			int nbsDel = in.readInt();
+			store.add(chrom, pos, strand, base, bsDepth, bsDel, nbsDepth, nbsDel);
+			group.extend();
+		}
+		return group;
+	}
+	
+	private static void writeText(DataOutputStream out, String text) throws IOException {
+		byte[] bytes = text.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readText(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
 	}
 	
 	public ArrayList<PositionGroup> splitGroup() {
 		//Prune!
 		ArrayList<PositionGroup> newGroups = new ArrayList<PositionGroup>();
-		double thresh = maxPos.getBsPer() * splitThresh;
-		PositionGroup newGroup = new PositionGroup(splitThresh, hpLength);
+		double thresh = getBsPer() * splitThresh;
+		PositionGroup newGroup = new PositionGroup(store, start, splitThresh, hpLength);
 		
 
-		for(Position p: posList) {
-			if (p.getBsPer() < thresh) {
-				if (newGroup.posList.size() > 0) {
+		for(int i=start; i<end; i++) {
+			if (store.getBsPer(i) < thresh) {
+				if (newGroup.size() > 0) {
 					newGroups.add(newGroup);
 				}
-				newGroup = new PositionGroup(splitThresh, hpLength);
+				newGroup = new PositionGroup(store, i+1, splitThresh, hpLength);
 			} else {
-				newGroup.addPosition(p);
+				newGroup.extend();
 			}
 		}
-		if (newGroup.posList.size() > 0) {
+		if (newGroup.size() > 0) {
 			newGroups.add(newGroup);
 		}
 		
 		return newGroups;
 	}
 	
-	public void determineBaseToReport(HashMap<String,String> refSeq) {
+	public void determineBaseToReport(PackedReference refSeq) {
 		/*This method figures out if the deletion originated from a 'T'. If it does, it sets
 		The position to the first 'T' and sets the baseFlag. The baseFlag lets the user know
 		how the software determined the deletion originated from a 'T'*/
-		String sequence = refSeq.get(maxPos.getChrom()).substring(maxPos.getPos(),maxPos.getPos() + hpLength-1).toUpperCase();
+		int chromIndex = refSeq.getIndex(getChrom());
+		String sequence = refSeq.getSubSequence(chromIndex, getPos(), getPos() + hpLength-1);
 		
-		int beginRange = maxPos.getPos()-25;
-		int endRange = maxPos.getPos()+25;
+		int beginRange = getPos()-25;
+		int endRange = getPos()+25;
 		if (beginRange < 0) {
 			beginRange = 0;
 		}
-		if (endRange > refSeq.get(maxPos.getChrom()).length()) {
-			endRange = refSeq.get(maxPos.getChrom()).length()-1;
+		if (endRange > refSeq.getLength(chromIndex)) {
+			endRange = refSeq.getLength(chromIndex)-1;
 		}
 		
-		String sequence2 = refSeq.get(maxPos.getChrom()).substring(beginRange,endRange).toUpperCase();
+		String sequence2 = refSeq.getSubSequence(chromIndex, beginRange, endRange);
 		
 		
-		maxPos.setPredPos(-1);
-		String direction = maxPos.getDirection().substring(0,1);
+		predPos = -1;
+		String direction = store.getDirection(maxIndex).substring(0,1);
 		Matcher mF = pF.matcher(sequence);
 		Matcher mR = pR.matcher(sequence);
 		
 		int altBase = 0;
-		for (Position p: posList) {
-			String indDir = p.getDirection().substring(0,1);
-			if (indDir.equals("+") && p.getBase() == 'T') {
-				altBase = p.getPos();
-			} else if (indDir.equals("-") && p.getBase() == 'A') {
-				altBase = p.getPos();
+		for (int i=start; i<end; i++) {
+			if (store.isForward(i) && store.getBase(i) == 'T') {
+				altBase = store.getPos(i);
+			} else if (!store.isForward(i) && store.getBase(i) == 'A') {
+				altBase = store.getPos(i);
 			}
 		}
 		
 		if (direction.equals("+")) {
-			if (maxPos.getBase() == 'T') {
-				maxPos.setBaseFlag("FirstDelBase");
-				maxPos.setPredPos(maxPos.getPos());
+			if (base == 'T') {
+				baseFlag = "FirstDelBase";
+				predPos = getPos();
 			}  else if (altBase != 0) {
-				maxPos.setBaseFlag("AltPositionBase");
-				maxPos.setPredPos(altBase);
-				maxPos.setBase('T');
+				baseFlag = "AltPositionBase";
+				predPos = altBase;
+				base = 'T';
 			} else if (mF.find() && mF.group(0).indexOf('T') != -1) {
-				maxPos.setPredPos(maxPos.getPos() + mF.group(0).indexOf("T"));
-				maxPos.setBaseFlag("DwnStrmDelBase");
-				maxPos.setBase('T');
+				predPos = getPos() + mF.group(0).indexOf("T");
+				baseFlag = "DwnStrmDelBase";
+				base = 'T';
 			} else {
 				int bestDistance = 50;
 				int bestPos = -1;
-				int currPos = maxPos.getPos() - 25;
+				int currPos = getPos() - 25;
 				for (char c: sequence2.toCharArray()) {
 					if (c == 'T' ) {
-						int currDistance = Math.abs(currPos - maxPos.getPos());
+						int currDistance = Math.abs(currPos - getPos());
 						if (currDistance < bestDistance) {
 							bestDistance = currDistance;
 							bestPos = currPos;
@@ -211,30 +353,30 @@ public class PositionGroup {
 					}
 					currPos++;
 				}
-				maxPos.setBase('T');
-				maxPos.setPredPos(bestPos);
-				maxPos.setBaseFlag("Neighborhood");
+				base = 'T';
+				predPos = bestPos;
+				baseFlag = "Neighborhood";
 			}
 		} else {
-			if (maxPos.getBase() == 'A') {
-				maxPos.setBaseFlag("FirstDelBase");
-				maxPos.setPredPos(maxPos.getPos());
-				maxPos.setBase('T');
+			if (base == 'A') {
+				baseFlag = "FirstDelBase";
+				predPos = getPos();
+				base = 'T';
 			} else if (altBase != 0) {
-				maxPos.setBaseFlag("AltPositionBase");
-				maxPos.setPredPos(altBase);
-				maxPos.setBase('T');
+				baseFlag = "AltPositionBase";
+				predPos = altBase;
+				base = 'T';
 			} else if (mR.find() && mR.group(0).indexOf("A") != -1) {
-				maxPos.setPredPos(maxPos.getPos() + mR.group(0).indexOf("A"));
-				maxPos.setBaseFlag("DwnStrmDelBase");
-				maxPos.setBase('T');
+				predPos = getPos() + mR.group(0).indexOf("A");
+				baseFlag = "DwnStrmDelBase";
+				base = 'T';
 			} else  {
 				int bestDistance = 50;
 				int bestPos = -1;
-				int currPos = maxPos.getPos() - 25;
+				int currPos = getPos() - 25;
 				for (char c: sequence2.toCharArray()) {
 					if (c == 'A' ) {
-						int currDistance = Math.abs(currPos - maxPos.getPos());
+						int currDistance = Math.abs(currPos - getPos());
 						if (currDistance < bestDistance) {
 							bestDistance = currDistance;
 							bestPos = currPos;
@@ -242,9 +384,9 @@ public class PositionGroup {
 					}
 					currPos++;
 				}
-				maxPos.setBase('T');
-				maxPos.setPredPos(bestPos);
-				maxPos.setBaseFlag("Neighborhood");
+				base = 'T';
+				predPos = bestPos;
+				baseFlag = "Neighborhood";
 			}
 		}
 	}
@@ -257,8 +399,29 @@ public class PositionGroup {
 		return bsPval;
 	}
 
-	public Position getMaxPos() {
-		return maxPos;
+	/**
+	 * Chromosome of the max position.
+	 */
+	public String getChrom() {
+		return store.getChrom(maxIndex);
+	}
+	
+	/**
+	 * Position of the max position.
+	 */
+	public int getPos() {
+		return store.getPos(maxIndex);
+	}
+	
+	public int getPredPos() {
+		return predPos;
+	}
+	
+	/**
+	 * Bisulfite deletion fraction of the max position.
+	 */
+	public double getBsPer() {
+		return maxVal;
 	}
 
 	public double getNbsPval() {
@@ -277,8 +440,12 @@ public class PositionGroup {
 		return biotype;
 	}
 
-	public ArrayList<Position> getPosList() {
-		return posList;
+	public int getFirstPos() {
+		return store.getPos(start);
+	}
+	
+	public int size() {
+		return end - start;
 	}
 
 	
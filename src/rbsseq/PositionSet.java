@@ -0,0 +1,101 @@
+package rbsseq;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Set of genomic positions, held as one int array per chromosome.  Positions are appended as they are found
+ * and the arrays are sorted on the first lookup after an out of order add, so range lookups are a binary search.
+ */
+class PositionSet {
+	private HashMap<String,Positions> chromosomes = new HashMap<String,Positions>();
+
+	public void add(String chrom, int pos) {
+		Positions positions = chromosomes.get(chrom);
+		if (positions == null) {
+			positions = new Positions();
+			chromosomes.put(chrom, positions);
+		}
+		positions.add(pos);
+	}
+
+	public void addAll(PositionSet other) {
+		for (String chrom: other.chromosomes.keySet()) {
+			Positions from = other.chromosomes.get(chrom);
+			for (int i=0; i<from.size; i++) {
+				add(chrom, from.values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Writes the positions, one chromosome after the other.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(chromosomes.size());
+		for (String chrom: chromosomes.keySet()) {
+			Positions positions = chromosomes.get(chrom);
+			out.writeUTF(chrom);
+			out.writeInt(positions.size);
+			for (int i=0; i<positions.size; i++) {
+				out.writeInt(positions.values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Adds the positions written by write.
+	 */
+	public void read(DataInputStream in) throws IOException {
+		int chromCount = in.readInt();
+		for (int c=0; c<chromCount; c++) {
+			String chrom = in.readUTF();
+			int count = in.readInt();
+			for (int i=0; i<count; i++) {
+				add(chrom, in.readInt());
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the set holds any position of the chromosome from start to end, both included.
+	 */
+	public boolean containsAny(String chrom, int start, int end) {
+		Positions positions = chromosomes.get(chrom);
+		if (positions == null || positions.size == 0) {
+			return false;
+		}
+		positions.sort();
+		int index = Arrays.binarySearch(positions.values, 0, positions.size, start);
+		if (index < 0) {
+			index = -index - 1;
+		}
+		return index < positions.size && positions.values[index] <= end;
+	}
+
+	private static class Positions {
+		private int[] values = new int[16];
+		private int size = 0;
+		private boolean sorted = true;
+
+		private void add(int pos) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			if (size > 0 && pos < values[size - 1]) {
+				sorted = false;
+			}
+			values[size++] = pos;
+		}
+
+		private void sort() {
+			if (!sorted) {
+				Arrays.sort(values, 0, size);
+				sorted = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package rbsseq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Column store of the positions that pass the threshold filters.  Every column is a primitive array and
+ * chromosomes are stored as ids into a name table.  Positions are addressed by an index that keeps counting
+ * up when the store is cleared, so a PositionGroup is just a range of indexes.
+ */
+class PositionStore {
+	//Strand codes, the index into STRANDS
+	public static final int FORWARD = 0;
+	public static final int FORWARD_MIXED = 1;
+	public static final int REVERSE = 2;
+	public static final int REVERSE_MIXED = 3;
+	private static final String[] STRANDS = {"+", "+*", "-", "-*"};
+	private static final int INITIAL_SIZE = 1 << 8;
+
+	private ArrayList<String> chromNames = new ArrayList<String>();
+	private HashMap<String,Integer> chromIds = new HashMap<String,Integer>();
+
+	private int[] chrom = new int[INITIAL_SIZE];
+	private int[] pos = new int[INITIAL_SIZE];
+	private byte[] strand = new byte[INITIAL_SIZE];
+	private byte[] base = new byte[INITIAL_SIZE];
+	private int[] bsDepth = new int[INITIAL_SIZE];
+	private int[] bsDel = new int[INITIAL_SIZE];
+	private int[] nbsDepth = new int[INITIAL_SIZE];
+	private int[] nbsDel = new int[INITIAL_SIZE];
+
+	//Index of the first stored position and the number of stored positions
+	private int offset = 0;
+	private int count = 0;
+
+	/**
+	 * Appends a position and returns its index.  The base is stored upper case.
+	 */
+	public int add(String chromName, int position, int strandCode, char refBase, int bsDepth, int bsDel, int nbsDepth, int nbsDel) {
+		Integer id = chromIds.get(chromName);
+		if (id == null) {
+			id = chromNames.size();
+			chromIds.put(chromName, id);
+			chromNames.add(chromName);
+		}
+		if (count == pos.length) {
+			grow();
+		}
+		this.chrom[count] = id;
+		this.pos[count] = position;
+		this.strand[count] = (byte)strandCode;
+		this.base[count] = (byte)Character.toUpperCase(refBase);
+		this.bsDepth[count] = bsDepth;
+		this.bsDel[count] = bsDel;
+		this.nbsDepth[count] = nbsDepth;
+		this.nbsDel[count] = nbsDel;
+		count++;
+		return offset + count - 1;
+	}
+
+	/**
+	 * Appends a copy of a position of another store and returns its index.
+	 */
+	public int add(PositionStore other, int index) {
+		return add(other.getChrom(index), other.getPos(index), other.getStrandCode(index), other.getBase(index), other.getBsDepth(index),
+				other.getBsDel(index), other.getNbsDepth(index), other.getNbsDel(index));
+	}
+
+	private void grow() {
+		int size = pos.length * 2;
+		chrom = Arrays.copyOf(chrom, size);
+		pos = Arrays.copyOf(pos, size);
+		strand = Arrays.copyOf(strand, size);
+		base = Arrays.copyOf(base, size);
+		bsDepth = Arrays.copyOf(bsDepth, size);
+		bsDel = Arrays.copyOf(bsDel, size);
+		nbsDepth = Arrays.copyOf(nbsDepth, size);
+		nbsDel = Arrays.copyOf(nbsDel, size);
+	}
+
+	/**
+	 * Drops every stored position.  New positions get indexes after the dropped ones.
+	 */
+	public void clear() {
+		offset += count;
+		count = 0;
+	}
+
+	/**
+	 * Index the next position will get.
+	 */
+	public int size() {
+		return offset + count;
+	}
+
+	public String getChrom(int index) {
+		return chromNames.get(chrom[index - offset]);
+	}
+
+	public int getPos(int index) {
+		return pos[index - offset];
+	}
+
+	public int getStrandCode(int index) {
+		return strand[index - offset];
+	}
+
+	public String getDirection(int index) {
+		return STRANDS[strand[index - offset]];
+	}
+
+	/**
+	 * True for the + and +* strands.
+	 */
+	public boolean isForward(int index) {
+		return strand[index - offset] < REVERSE;
+	}
+
+	public char getBase(int index) {
+		return (char)(base[index - offset] & 0xff);
+	}
+
+	public int getBsDepth(int index) {
+		return bsDepth[index - offset];
+	}
+
+	public int getBsDel(int index) {
+		return bsDel[index - offset];
+	}
+
+	public int getNbsDepth(int index) {
+		return nbsDepth[index - offset];
+	}
+
+	public int getNbsDel(int index) {
+		return nbsDel[index - offset];
+	}
+
+	/**
+	 * Fraction deletion in the bisulfite sample, computed in float precision.
+	 */
+	public double getBsPer(int index) {
+		int i = index - offset;
+		return (float)bsDel[i] / bsDepth[i];
+	}
+
+	/**
+	 * Fraction deletion in the non-bisulfite sample, computed in float precision, or -1 without coverage.
+	 */
+	public double getNbsPer(int index) {
+		int i = index - offset;
+		if (nbsDepth[i] == 0) {
+			return -1;
+		}
+		return (float)nbsDel[i] / nbsDepth[i];
+	}
+}
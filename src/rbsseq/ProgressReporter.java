@@ -0,0 +1,188 @@
+package rbsseq;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.filter.DuplicateReadFilter;
+import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.filter.SecondaryOrSupplementaryFilter;
+import htsjdk.samtools.util.SamLocusIterator;
+
+/**
+ * Prints the parse progress at a fixed interval from a background thread: loci and reads per second, the
+ * current chromosome and, when the alignment index gives the number of mapped reads, the fraction done and
+ * an ETA.  The parse loops add to the counters, which several threads can do without contention.
+ */
+class ProgressReporter {
+	private int intervalSeconds;
+	private PrintStream out;
+	private LongAdder loci = new LongAdder();
+	private LongAdder reads = new LongAdder();
+	private volatile String chrom = "NA";
+	private long totalReads = 0;
+	private boolean totalUnknown = false;
+	private long startTime;
+	private long lastTime;
+	private long lastLoci = 0;
+	private long lastReads = 0;
+	private ScheduledExecutorService timer = null;
+	
+	/**
+	 * Creates a reporter that prints every intervalSeconds, or never if it is 0.
+	 */
+	public ProgressReporter(int intervalSeconds) {
+		this(intervalSeconds, System.out);
+	}
+	
+	/**
+	 * Creates a reporter that prints to the given stream every intervalSeconds, or never if it is 0.
+	 */
+	public ProgressReporter(int intervalSeconds, PrintStream out) {
+		this.intervalSeconds = intervalSeconds;
+		this.out = out;
+		this.startTime = System.nanoTime();
+		this.lastTime = startTime;
+	}
+	
+	/**
+	 * Sums the mapped reads of every reference sequence from the index of a BAM file, or returns -1 if the file
+	 * isn't an indexed BAM file.
+	 */
+	public static long mappedReads(SamReader sr) {
+		if (!sr.hasIndex()) {
+			return -1;
+		}
+		try {
+			BAMIndex index = sr.indexing().getIndex();
+			long total = 0;
+			for (SAMSequenceRecord ssr: sr.getFileHeader().getSequenceDictionary().getSequences()) {
+				BAMIndexMetaData metaData = index.getMetaData(ssr.getSequenceIndex());
+				if (metaData != null) {
+					total += metaData.getAlignedRecordCount();
+				}
+			}
+			return total;
+		} catch (RuntimeException ex) {
+			//CRAM and other formats without BAM index metadata
+			return -1;
+		}
+	}
+	
+	/**
+	 * Adds to the number of reads expected, which is used for the ETA.  A negative count means the number of
+	 * reads of one of the files is unknown, and no ETA is given.
+	 */
+	public synchronized void addTotalReads(long count) {
+		if (count < 0) {
+			totalUnknown = true;
+		} else {
+			totalReads += count;
+		}
+	}
+	
+	public synchronized void start() {
+		if (intervalSeconds <= 0 || timer != null) {
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "progress");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				report();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+	
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+	
+	/**
+	 * Counts loci that have been parsed on the given chromosome.
+	 */
+	public void addLoci(int count, String chrom) {
+		loci.add(count);
+		//Names come from the sequence dictionary, so the same chromosome is the same string
+		if (chrom != this.chrom) {
+			this.chrom = chrom;
+		}
+	}
+	
+	public long getLoci() {
+		return loci.sum();
+	}
+	
+	public long getReads() {
+		return reads.sum();
+	}
+	
+	/**
+	 * Chromosome of the last parsed loci.
+	 */
+	public String getChrom() {
+		return chrom;
+	}
+	
+	/**
+	 * Sets the read filters of a locus iterator to its defaults, skipping secondary, supplementary and duplicate
+	 * reads, behind a filter that counts every read the iterator reads.
+	 */
+	public void countReads(SamLocusIterator sli) {
+		ArrayList<SamRecordFilter> filters = new ArrayList<SamRecordFilter>();
+		filters.add(new SamRecordFilter() {
+			public boolean filterOut(SAMRecord record) {
+				reads.increment();
+				return false;
+			}
+			
+			public boolean filterOut(SAMRecord first, SAMRecord second) {
+				reads.add(2);
+				return false;
+			}
+		});
+		filters.add(new SecondaryOrSupplementaryFilter());
+		filters.add(new DuplicateReadFilter());
+		sli.setSamFilters(filters);
+	}
+	
+	private synchronized void report() {
+		long now = System.nanoTime();
+		long currentLoci = loci.sum();
+		long currentReads = reads.sum();
+		double seconds = (now - lastTime) / 1e9;
+		StringBuilder sb = new StringBuilder("Progress: ");
+		sb.append(chrom);
+		sb.append(", ").append(currentLoci).append(" loci (").append(Math.round((currentLoci - lastLoci) / seconds)).append(" loci/s)");
+		if (currentReads > 0) {
+			sb.append(", ").append(currentReads).append(" reads (").append(Math.round((currentReads - lastReads) / seconds)).append(" reads/s)");
+		}
+		if (!totalUnknown && totalReads > 0 && currentReads > 0) {
+			double done = Math.min(1.0, (double)currentReads / totalReads);
+			double elapsed = (now - startTime) / 1e9;
+			long eta = Math.round(elapsed / done - elapsed);
+			sb.append(String.format(", %.1f%% of %d reads, ETA %d:%02d:%02d", done * 100, totalReads, eta / 3600, (eta / 60) % 60, eta % 60));
+		}
+		out.println(sb.toString());
+		lastTime = now;
+		lastLoci = currentLoci;
+		lastReads = currentReads;
+	}
+}
@@ -0,0 +1,177 @@
+package rbsseq;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+
+/**
+ * Target regions read from a BED file, used to restrict a run to a panel of loci.  Overlapping and adjacent
+ * regions are merged, and the regions of each chromosome are kept as sorted one based, inclusive start and
+ * end arrays.  BED coordinates are zero based and half open, so a BED line chr1 0 100 is chr1:1-100 here.
+ * Header lines (track, browser and #) are skipped.
+ */
+class Regions {
+	private HashMap<String,int[]> starts = new HashMap<String,int[]>();
+	private HashMap<String,int[]> ends = new HashMap<String,int[]>();
+	private long bases = 0;
+	private int count = 0;
+
+	public Regions(File bedFile) throws IOException {
+		HashMap<String,ArrayList<int[]>> read = new HashMap<String,ArrayList<int[]>>();
+		BufferedReader br = new BufferedReader(new FileReader(bedFile));
+		String temp = "";
+		int lineNumber = 0;
+		try {
+			while ((temp = br.readLine()) != null) {
+				lineNumber++;
+				if (temp.trim().length() == 0 || temp.startsWith("#") || temp.startsWith("track") || temp.startsWith("browser")) {
+					continue;
+				}
+				String[] parts = temp.split("\t");
+				if (parts.length < 3) {
+					throw new IOException("Line " + lineNumber + " of " + bedFile.getName() + " has fewer than three columns");
+				}
+				int start = Integer.parseInt(parts[1].trim()) + 1;
+				int end = Integer.parseInt(parts[2].trim());
+				if (end < start) {
+					continue;
+				}
+				if (!read.containsKey(parts[0])) {
+					read.put(parts[0], new ArrayList<int[]>());
+				}
+				read.get(parts[0]).add(new int[]{start, end});
+			}
+		} catch (NumberFormatException nfex) {
+			throw new IOException("Line " + lineNumber + " of " + bedFile.getName() + " doesn't have numeric coordinates");
+		} finally {
+			br.close();
+		}
+
+		for (String chrom: read.keySet()) {
+			int[][] regions = read.get(chrom).toArray(new int[0][]);
+			Arrays.sort(regions, new Comparator<int[]>() {
+				public int compare(int[] a, int[] b) {
+					return a[0] != b[0] ? (a[0] < b[0] ? -1 : 1) : 0;
+				}
+			});
+			int[] chromStarts = new int[regions.length];
+			int[] chromEnds = new int[regions.length];
+			int merged = 0;
+			for (int[] region: regions) {
+				if (merged > 0 && region[0] <= chromEnds[merged-1] + 1) {
+					chromEnds[merged-1] = Math.max(chromEnds[merged-1], region[1]);
+				} else {
+					chromStarts[merged] = region[0];
+					chromEnds[merged] = region[1];
+					merged++;
+				}
+			}
+			starts.put(chrom, Arrays.copyOf(chromStarts, merged));
+			ends.put(chrom, Arrays.copyOf(chromEnds, merged));
+			for (int i=0; i<merged; i++) {
+				bases += chromEnds[i] - chromStarts[i] + 1;
+			}
+			count += merged;
+		}
+	}
+
+	/**
+	 * Number of regions after merging.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Number of bases covered by the regions.
+	 */
+	public long getBases() {
+		return bases;
+	}
+
+	/**
+	 * True if any region is on the chromosome.
+	 */
+	public boolean contains(String chrom) {
+		return starts.containsKey(chrom);
+	}
+
+	public boolean contains(String chrom, int pos) {
+		return overlaps(chrom, pos, pos);
+	}
+
+	/**
+	 * True if any region overlaps the one based, inclusive range.
+	 */
+	public boolean overlaps(String chrom, int start, int end) {
+		int[] chromStarts = starts.get(chrom);
+		if (chromStarts == null) {
+			return false;
+		}
+		//Last region that starts at or before the end of the range
+		int index = Arrays.binarySearch(chromStarts, end);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		return index >= 0 && ends.get(chrom)[index] >= start;
+	}
+
+	/**
+	 * Sorted one based starts of the regions on the chromosome, or null if there are none.
+	 */
+	public int[] getStarts(String chrom) {
+		return starts.get(chrom);
+	}
+
+	/**
+	 * One based, inclusive ends of the regions on the chromosome, in the order of getStarts.
+	 */
+	public int[] getEnds(String chrom) {
+		return ends.get(chrom);
+	}
+
+	/**
+	 * Returns the regions on the sequences of the dictionary, or only on the given sequence if it isn't null, as
+	 * sorted index query intervals.  Regions are clipped to the sequence length.
+	 */
+	public QueryInterval[] getQueryIntervals(SAMSequenceDictionary dictionary, String sequence) {
+		ArrayList<QueryInterval> intervals = new ArrayList<QueryInterval>();
+		for (SAMSequenceRecord ssr: dictionary.getSequences()) {
+			if (sequence != null && !sequence.equals(ssr.getSequenceName())) {
+				continue;
+			}
+			int[] chromStarts = starts.get(ssr.getSequenceName());
+			if (chromStarts == null) {
+				continue;
+			}
+			int[] chromEnds = ends.get(ssr.getSequenceName());
+			for (int i=0; i<chromStarts.length && chromStarts[i] <= ssr.getSequenceLength(); i++) {
+				intervals.add(new QueryInterval(ssr.getSequenceIndex(), chromStarts[i], Math.min(chromEnds[i], ssr.getSequenceLength())));
+			}
+		}
+		return QueryInterval.optimizeIntervals(intervals.toArray(new QueryInterval[intervals.size()]));
+	}
+
+	/**
+	 * Returns the query intervals of getQueryIntervals as an interval list, which restricts a locus iterator.
+	 */
+	public IntervalList getIntervalList(SAMFileHeader header, String sequence) {
+		IntervalList il = new IntervalList(header);
+		for (QueryInterval qi: getQueryIntervals(header.getSequenceDictionary(), sequence)) {
+			il.add(new Interval(header.getSequence(qi.referenceIndex).getSequenceName(), qi.start, qi.end));
+		}
+		return il;
+	}
+}
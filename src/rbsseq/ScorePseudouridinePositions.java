@@ -1,39 +1,55 @@
 package rbsseq;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileOutputStream;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.SamLocusIterator; 
-import htsjdk.samtools.util.SamLocusIterator.LocusInfo;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
 
-import java.util.zip.GZIPOutputStream;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.MissingOptionException;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.math3.stat.inference.BinomialTest;
+
+import rbsseq.PooledLocusIterator.PooledLocus;
 
 public class ScorePseudouridinePositions {
 	//Filtering settings
@@ -48,22 +64,34 @@ public class ScorePseudouridinePositions {
 	private int flankLength = 4;
 	private int delDistance = 5;
 	private int hpLength = 6; //Length to consider homopolymer
+	private int threads = 1;
+	private boolean stream = false;
+	private boolean checkpoint = false;
+	private int progressInterval = 30;
+	private int batchParallel = 1;
+	private int serverPort = -1;
 	
 	//File settings
 	private File biomartFile = null;
 	private File repbaseFile = null;
 	private File ucscFile = null;
-	private File bisulfiteAlignment = null;
-	private File nonBisulfiteAlignment = null;
+	private File[] bisulfiteAlignments = null;
+	private File[] nonBisulfiteAlignments = null;
 	private File preParsedFile = null;
 	private File referenceFile = null;
 	private File outputPrefix = null;
+	private File batchManifest = null;
+	private File regionsFile = null;
+	private File sweepFile = null;
 
 	//Data dictionaries
-	private HashMap<String,String> refSeq = new HashMap<String,String>();
+	private Regions regions = null;
+	private PackedReference refSeq = null;
 	private HashMap<String,String[]> biomartDict = new HashMap<String,String[]>();
 	private HashMap<String,ArrayList<Feature>> flankDict = new HashMap<String,ArrayList<Feature>>();
 	private HashMap<String,ArrayList<Feature>> geneDict= new HashMap<String,ArrayList<Feature>>();
+	private HashMap<String,FeatureIndex> flankIndex = new HashMap<String,FeatureIndex>();
+	private HashMap<String,FeatureIndex> geneIndex = new HashMap<String,FeatureIndex>();
 	
 	public HashMap<String,String> revComp = new HashMap<String,String>();
 
@@ -94,11 +122,47 @@ public class ScorePseudouridinePositions {
 	//Data containers
 	private ArrayList<PositionGroup> finalPositionGroups = new ArrayList<PositionGroup>();
 	private ArrayList<PositionGroup> originalPositionGroups = new ArrayList<PositionGroup>();
-	private HashSet<String> nbsPositions = new HashSet<String>();
+	private PositionSet nbsPositions = new PositionSet();
+	private HashMap<String,Integer> sharedChromIndex = new HashMap<String,Integer>();
+	private LongDoubleMap sharedMaxScore = new LongDoubleMap(1 << 10);
+	private GroupSpill spill = null;
+	private ParseCheckpoint parseCheckpoint = null;
+	
+	//Threshold sweep
+	private static final String[] SWEEP_KEYS = {"min-del-obs", "min-bis-cov", "min-bs-frac", "min-nbs-cov", "max-nbs-frac", "split-thresh", 
+			"homopolymer", "error-rate", "p-value", "del-dist"};
+	private ArrayList<Properties> sweepGrid = null;
+	private ArrayList<String> sweepKeys = null;
+	private ArrayList<ScorePseudouridinePositions> sweepPoints = null;
+	
+	//Scoring
+	private static final int BINOMIAL_CACHE_SIZE = 1 << 16;
+	private static final int ANNOTATION_CHUNK_SIZE = 1 << 10;
+	private ThreadLocal<BinomialTail> binomialTails;
+	private AnnotationCounts streamCounts = new AnnotationCounts();
+	private Pattern ctHomopolymer = Pattern.compile("^[CT]*$");
+	private Pattern gaHomopolymer = Pattern.compile("^[GA]*$");
+	
+	//Instrumentation
+	private volatile ProgressReporter progress;
+	private StageMetrics metrics = new StageMetrics();
+	private PrintStream log = System.out;
 	
 	public static void main(String[] args) {
-		new ScorePseudouridinePositions(args);
-
+		try {
+			new ScorePseudouridinePositions(args);
+		} catch (ScoringException sex) {
+			//Already logged
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Creates an instance with the default settings around a loaded reference, without reading any input.
+	 * Used by the benchmarks to drive the parse loop directly.
+	 */
+	ScorePseudouridinePositions(PackedReference refSeq) {
+		this.refSeq = refSeq;
 	}
 	
 	public ScorePseudouridinePositions(String[] args) {
@@ -110,245 +174,865 @@ public class ScorePseudouridinePositions {
 		revComp.put("N", "N");
 		
 		//Parse command line arguments
-		System.out.println("Parsing command line arguments... ");
+		log.println("Parsing command line arguments... ");
 		processArgs(args);
-		
-		//Read in biomart annotations
-		if (biomartFile != null) {
-			System.out.println("Loading biomart anntotations... ");
-			readBiomart();
+		ArrayList<String[]> samples = null;
+		if (batchManifest != null) {
+			samples = readBatchManifest();
+		}
+		if (sweepFile != null) {
+			sweepGrid = readSweepGrid();
 		}
-		
-		
-		//Read in UCSC annotations
-		System.out.println("Loading ucsc annotations... ");
-		readGeneTable();
 		
 		//Read in reference sequence
-		System.out.println("Loading reference sequence... ");
+		metrics.start("reference load");
+		if (regionsFile != null) {
+			readRegions();
+		}
+		log.println("Loading reference sequence... ");
 		readReferenceSequence();
 		
-		//Read in repbase annotations
-		if (repbaseFile != null) {
-			System.out.println("Reading repbase annotations... ");
-			readRepBase();
+		//Use the annotation cache if the annotation files haven't changed since it was written
+		metrics.start("annotation load");
+		AnnotationCache annotationCache = null;
+		boolean cached = false;
+		try {
+			annotationCache = new AnnotationCache(ucscFile, repbaseFile, biomartFile, flankLength);
+			cached = annotationCache.load(geneDict, flankDict);
+		} catch (IOException ioex) {
+			log.println("Error reading annotation cache, parsing annotation files: " + ioex.getMessage());
 		}
 		
+		if (cached) {
+			log.println("Loading annotations from cache " + annotationCache.getFile().getPath() + "... ");
+			if (regions != null) {
+				restrictFeatures(geneDict);
+				restrictFeatures(flankDict);
+			}
+		} else {
+			//Read in biomart annotations
+			if (biomartFile != null) {
+				log.println("Loading biomart anntotations... ");
+				readBiomart();
+			}
+			
+			
+			//Read in UCSC annotations
+			log.println("Loading ucsc annotations... ");
+			readGeneTable();
+			
+			//Read in repbase annotations
+			if (repbaseFile != null) {
+				log.println("Reading repbase annotations... ");
+				readRepBase();
+			}
+			
+			//With regions only part of the annotations is read, which mustn't be cached
+			if (annotationCache != null && regions == null) {
+				try {
+					annotationCache.save(geneDict, flankDict);
+				} catch (IOException ioex) {
+					log.println("Could not write annotation cache " + annotationCache.getFile().getPath() + ", continuing without it: " + ioex.getMessage());
+				}
+			}
+		}
+		indexFeatures();
+		metrics.finish();
 		
-		//Filter mpileup
-		if (preParsedFile != null) {
-		    System.out.println("Reading in pre-parsed file");
-			parseExisting();
-		} else if (nonBisulfiteAlignment != null) {
-			System.out.println("Parsing bisulfite and non-bisulfite alignments");
-			parseAlignmentFiles();
+		if (serverPort >= 0) {
+			serve();
+		} else if (samples != null) {
+			runBatch(samples);
 		} else {
-			System.out.println("Parsing bisulfite alignments");
-			parseSingleFile();
+			scoreSample();
 		}
-			
-		BinomialTest bt = new BinomialTest();
+	}
+	
+	/**
+	 * Creates an instance that takes the settings of the given instance and shares its reference and
+	 * annotations, which are only read once loaded, but has its own counters, containers and metrics.
+	 */
+	private ScorePseudouridinePositions(ScorePseudouridinePositions shared) {
+		revComp = shared.revComp;
+		errorRate = shared.errorRate;
+		splitThresh = shared.splitThresh;
+		pval = shared.pval;
+		minBsCov = shared.minBsCov;
+		minNbsCov = shared.minNbsCov;
+		minBsDel = shared.minBsDel;
+		maxNbsFrac = shared.maxNbsFrac;
+		minBsFrac = shared.minBsFrac;
+		flankLength = shared.flankLength;
+		delDistance = shared.delDistance;
+		hpLength = shared.hpLength;
+		threads = shared.threads;
+		stream = shared.stream;
+		checkpoint = shared.checkpoint;
+		progressInterval = shared.progressInterval;
+		regions = shared.regions;
+		referenceFile = shared.referenceFile;
+		regionsFile = shared.regionsFile;
 		
-		//Annotating deletions
-		System.out.println("Annotating deletions... ");
-		annotatePositions(bt);
+		refSeq = shared.refSeq;
+		biomartDict = shared.biomartDict;
+		flankDict = shared.flankDict;
+		geneDict = shared.geneDict;
+		flankIndex = shared.flankIndex;
+		geneIndex = shared.geneIndex;
+	}
+	
+	/**
+	 * Creates the instance that scores one sample of a batch, logging to its own file.
+	 */
+	private ScorePseudouridinePositions(ScorePseudouridinePositions batch, String[] sample) throws IOException {
+		this(batch);
+		bisulfiteAlignments = toFiles(sample[0].split(","));
+		nonBisulfiteAlignments = sample[1] == null ? null : toFiles(sample[1].split(","));
+		outputPrefix = new File(sample[2]);
+		log = new PrintStream(new FileOutputStream(outputPrefix + ".log"), true);
+	}
+	
+	/**
+	 * Creates the instance of a server job.  The job settings are the long names of the sample options with
+	 * their values, e.g. bis, out-prefix or min-del-obs, and override the settings the server was started with.
+	 * The stream flag takes true or false.  The job logs to its own file next to its results.
+	 */
+	ScorePseudouridinePositions(ScorePseudouridinePositions server, Properties job) {
+		this(server);
+		readSampleSettings(job, "job settings");
+		if (job.containsKey("stream")) {
+			stream = Boolean.parseBoolean(job.getProperty("stream").trim());
+		}
 		
-		//Annotating deletions
-		System.out.println("Scanning for nearby deletions... ");
-		findNearbyNbsDeletions();
+		if (bisulfiteAlignments == null && preParsedFile == null) {
+			fail("Job has neither a bisulfite alignment file nor a pre-parsed file.");
+		}
+		if (outputPrefix == null) {
+			fail("Job has no output prefix.");
+		}
+		try {
+			log = new PrintStream(new FileOutputStream(outputPrefix + ".log"), true);
+		} catch (IOException ioex) {
+			fail("Error creating job log: " + ioex.getMessage());
+		}
+	}
+	
+	/**
+	 * Creates the instance of one point of a threshold sweep.  It takes the settings of the sweep instance with
+	 * the thresholds of the point, and is handed the loci the sweep instance parses.  It logs to its own file.
+	 */
+	private ScorePseudouridinePositions(ScorePseudouridinePositions sweep, Properties point, File prefix) throws IOException {
+		this(sweep);
+		readSampleSettings(point, "sweep grid");
+		outputPrefix = prefix;
+		stream = false;
+		progress = sweep.progress;
+		log = new PrintStream(new FileOutputStream(outputPrefix + ".log"), true);
+	}
+	
+	/**
+	 * Reads sample settings given as long option names and their values, the way the command line options
+	 * are read.  The stream flag is left to the caller.
+	 */
+	private void readSampleSettings(Properties settings, String source) {
+		Options options = new Options();
+		addSampleOptions(options);
+		ArrayList<String> args = new ArrayList<String>();
+		for (String key: settings.stringPropertyNames()) {
+			if (!key.equals("stream")) {
+				args.add("--" + key);
+				args.add(settings.getProperty(key).trim());
+			}
+		}
+		try {
+			readSampleOptions(new DefaultParser().parse(options, args.toArray(new String[args.size()])));
+		} catch (ParseException exp) {
+			fail("Error parsing " + source + ": " + exp.getMessage());
+		}
+	}
+	
+	/**
+	 * Parses, annotates and scores the alignments of one sample and writes its results, stats and metrics.
+	 */
+	void scoreSample() {
+		createBinomialTails();
+		progress = new ProgressReporter(progressInterval, log);
+		if (sweepGrid != null) {
+			createSweepPoints();
+		}
 		
-		//Identifying potential shared sites
-		System.out.println("Scanning for shared originating Ts...");
-		removedSharedSites();
+		//Streaming keeps only the open groups, and the first and last closed group of each sequence being parsed
+		//in parallel, in memory.  The other groups are scored and spilled to disk as they close
+		if (stream) {
+			try {
+				File spillDir = outputPrefix.getAbsoluteFile().getParentFile();
+				spill = new GroupSpill(spillDir, outputPrefix.getName(), splitThresh, hpLength);
+				log.println("Scoring deletion groups as they are parsed, spilling to " + spill.getFile().getPath());
+			} catch (IOException ioex) {
+				fail("Error creating spill file, exiting: " + ioex.getMessage());
+			}
+		}
 		
-		//Calculating qvalue
-		System.out.println("Calculating qvalues... ");
-		calculateQvalue();
+		//Filter mpileup
+		metrics.start(stream ? "parse and annotate" : "parse");
+		progress.start();
+		try {
+			if (preParsedFile != null) {
+			    log.println("Reading in pre-parsed file");
+				parseExisting();
+			} else if (threads > 1 || checkpoint) {
+				log.println("Parsing alignments by reference sequence using " + threads + " threads");
+				parsePartitioned();
+			} else if (nonBisulfiteAlignments != null) {
+				log.println("Parsing bisulfite and non-bisulfite alignments");
+				parseAlignmentFiles();
+			} else {
+				log.println("Parsing bisulfite alignments");
+				parseSingleFile();
+			}
+		} catch (UncheckedIOException uioex) {
+			//The reference is decoded as it is needed
+			fail(uioex.getMessage());
+		} finally {
+			progress.stop();
+		}
 		
-		//Writing out results
-		System.out.println("Writing results to file...");
-		writeResults();
+		try {
+			scoreGroups();
+			if (sweepPoints != null) {
+				scoreSweepPoints();
+			}
+		} catch (UncheckedIOException uioex) {
+			fail(uioex.getMessage());
+		}
+		if (parseCheckpoint != null) {
+			parseCheckpoint.delete();
+		}
+		log.println("Finished!");
+	}
+	
+	private void createBinomialTails() {
+		binomialTails = new ThreadLocal<BinomialTail>() {
+			@Override
+			protected BinomialTail initialValue() {
+				return new BinomialTail(errorRate, BINOMIAL_CACHE_SIZE);
+			}
+		};
+	}
+	
+	/**
+	 * Annotates, scores and writes the parsed groups, then writes the stats and metrics.
+	 */
+	private void scoreGroups() {
+		if (spill != null) {
+			scoreSpilledGroups();
+		} else {
+			//Annotating deletions
+			metrics.start("annotate");
+			log.println("Annotating deletions... ");
+			annotatePositions();
+			
+			//Annotating deletions
+			log.println("Scanning for nearby deletions... ");
+			findNearbyNbsDeletions();
+			
+			//Identifying potential shared sites
+			log.println("Scanning for shared originating Ts...");
+			removedSharedSites();
+			
+			//Calculating qvalue
+			metrics.start("q-value");
+			log.println("Calculating qvalues... ");
+			calculateQvalue();
+			
+			//Writing out results
+			metrics.start("write");
+			log.println("Writing results to file...");
+			writeResults();
+		}
+		metrics.finish();
 		
 		writeStats();
-		System.out.println("Finished!");
+		writeMetrics();
+	}
+
+	/**
+	 * Reads the batch manifest, one sample per line: the bisulfite alignments, the non-bisulfite alignments or NA
+	 * and the output prefix, separated by tabs.  Replicate alignments are separated by commas.  Empty lines and lines starting with # are skipped.  Every file
+	 * is checked before the reference is loaded, so a typo doesn't surface hours into a batch.
+	 */
+	private ArrayList<String[]> readBatchManifest() {
+		ArrayList<String[]> samples = new ArrayList<String[]>();
+		ArrayList<String> prefixes = new ArrayList<String>();
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(batchManifest));
+
+			String temp = "";
+			int lineNumber = 0;
+			while ((temp = br.readLine()) != null) {
+				lineNumber++;
+				if (temp.trim().length() == 0 || temp.startsWith("#")) {
+					continue;
+				}
+				String[] parts = temp.split("\t");
+				if (parts.length != 3) {
+					fail("Line " + lineNumber + " of the batch manifest doesn't have three columns, exiting.");
+				}
+				for (File bisulfiteAlignment: toFiles(parts[0].split(","))) {
+					if (!bisulfiteAlignment.exists()) {
+						fail("Bisulfite alignment file on line " + lineNumber + " of the batch manifest does not exist, exiting: " + bisulfiteAlignment.getPath());
+					}
+				}
+				checkReplicates(toFiles(parts[0].split(",")));
+				if (parts[1].equals("NA")) {
+					parts[1] = null;
+				} else {
+					for (File nonBisulfiteAlignment: toFiles(parts[1].split(","))) {
+						if (!nonBisulfiteAlignment.exists()) {
+							fail("Non-bisulfite alignment file on line " + lineNumber + " of the batch manifest does not exist, exiting: " + nonBisulfiteAlignment.getPath());
+						}
+					}
+					checkReplicates(toFiles(parts[1].split(",")));
+				}
+				String prefix = new File(parts[2]).getAbsolutePath();
+				if (prefixes.contains(prefix)) {
+					fail("Output prefix on line " + lineNumber + " of the batch manifest is used twice, exiting.");
+				}
+				prefixes.add(prefix);
+				samples.add(parts);
+			}
+			br.close();
+		} catch (IOException ioex) {
+			fail("Error reading batch manifest, exiting: " + ioex.getMessage());
+		}
+
+		if (samples.size() == 0) {
+			fail("No samples found in the batch manifest, exiting.");
+		}
+		return samples;
+	}
+
+	/**
+	 * Scores the samples of a batch on a pool of batchParallel threads, each sample with its own instance that
+	 * shares the loaded reference and annotations.  Each sample logs to its own file next to its results.
+	 */
+	private void runBatch(final ArrayList<String[]> samples) {
+		log.println("Scoring " + samples.size() + " samples, " + batchParallel + " at a time, logging to <out-prefix>.log");
+		ExecutorService pool = Executors.newFixedThreadPool(batchParallel, StageMetrics.countedThreads(false));
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (final String[] sample: samples) {
+			results.add(pool.submit(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					ScorePseudouridinePositions sampleRun = new ScorePseudouridinePositions(ScorePseudouridinePositions.this, sample);
+					try {
+						sampleRun.scoreSample();
+					} finally {
+						sampleRun.log.close();
+					}
+					return sampleRun.qvalue;
+				}
+			}));
+		}
+		pool.shutdown();
+
+		int failed = 0;
+		for (int i=0; i<samples.size(); i++) {
+			String prefix = samples.get(i)[2];
+			try {
+				log.println(String.format("%s: %d positions pass the qvalue threshold", prefix, results.get(i).get()));
+			} catch (ExecutionException ex) {
+				log.println("Error scoring sample " + prefix + ": " + ex.getCause());
+				failed++;
+			} catch (InterruptedException ex) {
+				pool.shutdownNow();
+				fail("Interrupted while scoring samples, exiting.");
+			}
+		}
+
+		if (failed > 0) {
+			fail(String.format("%d of %d samples failed, exiting.", failed, samples.size()));
+		}
+		log.println("Finished!");
+	}
+
+	/**
+	 * Reads the sweep grid, one option per line with the values to try separated by commas, e.g.
+	 * min-del-obs=3,5,10, and returns every combination of the values, the last option in SWEEP_KEYS changing
+	 * fastest.  Options that aren't in the grid keep their value from the command line.
+	 */
+	private ArrayList<Properties> readSweepGrid() {
+		Properties grid = new Properties();
+		try {
+			FileReader fr = new FileReader(sweepFile);
+			grid.load(fr);
+			fr.close();
+		} catch (IOException ioex) {
+			fail("Error reading sweep grid, exiting: " + ioex.getMessage());
+		}
+		List<String> sweepable = Arrays.asList(SWEEP_KEYS);
+		for (String key: grid.stringPropertyNames()) {
+			if (!sweepable.contains(key)) {
+				fail("Option " + key + " of the sweep grid can't be swept, exiting.");
+			}
+		}
+		
+		ArrayList<Properties> points = new ArrayList<Properties>();
+		points.add(new Properties());
+		sweepKeys = new ArrayList<String>();
+		for (String key: SWEEP_KEYS) {
+			if (!grid.containsKey(key)) {
+				continue;
+			}
+			sweepKeys.add(key);
+			ArrayList<Properties> expanded = new ArrayList<Properties>();
+			for (Properties point: points) {
+				for (String value: grid.getProperty(key).split(",")) {
+					Properties next = new Properties();
+					next.putAll(point);
+					next.setProperty(key, value.trim());
+					expanded.add(next);
+				}
+			}
+			points = expanded;
+		}
+		if (sweepKeys.size() == 0) {
+			fail("No options found in the sweep grid, exiting.");
+		}
+		
+		//Check the values now, rather than once the loci are parsed
+		for (Properties point: points) {
+			ScorePseudouridinePositions check = new ScorePseudouridinePositions(this);
+			check.log = log;
+			check.readSampleSettings(point, "sweep grid");
+		}
+		return points;
+	}
+	
+	/**
+	 * Creates an instance for every point of the sweep grid, which the parse hands the loci to.
+	 */
+	private void createSweepPoints() {
+		sweepPoints = new ArrayList<ScorePseudouridinePositions>();
+		for (int i=0; i<sweepGrid.size(); i++) {
+			File prefix = new File(outputPrefix + ".sweep" + (i + 1));
+			try {
+				sweepPoints.add(new ScorePseudouridinePositions(this, sweepGrid.get(i), prefix));
+			} catch (IOException ioex) {
+				fail("Error creating sweep point log, exiting: " + ioex.getMessage());
+			}
+		}
+		log.println("Sweeping " + sweepPoints.size() + " combinations of " + sweepKeys + ", writing to <out-prefix>.sweep<n>");
+	}
+	
+	/**
+	 * Gives a parse state a state for every sweep point, if there is a sweep.
+	 */
+	private ParseState addSweepStates(ParseState state) {
+		if (sweepPoints != null) {
+			state.sweepStates = new ParseState[sweepPoints.size()];
+			for (int i=0; i<sweepPoints.size(); i++) {
+				state.sweepStates[i] = new ParseState(sweepPoints.get(i).splitThresh, sweepPoints.get(i).hpLength);
+			}
+			//The sweep points only keep their groups, their parsed lines are dropped
+			state.sweepParsed = new TsvEncoder(new OutputStream() {
+				public void write(int b) {
+				}
+				
+				public void write(byte[] b, int off, int len) {
+				}
+			});
+		}
+		return state;
+	}
+	
+	/**
+	 * Merges the sweep states of the parse states, in parse order, into the groups of each sweep point.
+	 */
+	private void mergeSweepStates(ArrayList<ParseState[]> sweepStates) throws IOException {
+		for (int i=0; i<sweepPoints.size(); i++) {
+			ArrayList<ParseState> pointStates = new ArrayList<ParseState>();
+			for (ParseState[] states: sweepStates) {
+				pointStates.add(states[i]);
+			}
+			sweepPoints.get(i).mergeParseStates(pointStates);
+			sweepPoints.get(i).splitPositionGroups();
+		}
+	}
+	
+	/**
+	 * Scores the groups of the sweep points, batchParallel points at a time, each writing its own results and
+	 * stats, and writes a table of the points to <out-prefix>.sweep.txt.
+	 */
+	private void scoreSweepPoints() {
+		log.println("Scoring " + sweepPoints.size() + " sweep points, " + batchParallel + " at a time, logging to <out-prefix>.sweep<n>.log");
+		ExecutorService pool = Executors.newFixedThreadPool(batchParallel, StageMetrics.countedThreads(false));
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (final ScorePseudouridinePositions point: sweepPoints) {
+			//Every point sees the same loci
+			point.totalPositions = totalPositions;
+			results.add(pool.submit(new Callable<Integer>() {
+				public Integer call() {
+					try {
+						point.createBinomialTails();
+						point.scoreGroups();
+						point.finalPositionGroups.clear();
+					} finally {
+						point.closeLog();
+					}
+					return point.qvalue;
+				}
+			}));
+		}
+		pool.shutdown();
+		
+		int failed = 0;
+		for (int i=0; i<sweepPoints.size(); i++) {
+			try {
+				results.get(i).get();
+			} catch (ExecutionException ex) {
+				log.println("Error scoring sweep point " + sweepPoints.get(i).outputPrefix.getPath() + ": " + ex.getCause().getMessage());
+				failed++;
+			} catch (InterruptedException ex) {
+				pool.shutdownNow();
+				fail("Interrupted while scoring sweep points, exiting.");
+			}
+		}
+		if (failed > 0) {
+			fail(String.format("%d of %d sweep points failed, exiting.", failed, sweepPoints.size()));
+		}
+		
+		File sweepTable = new File(outputPrefix + ".sweep.txt");
+		try {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(sweepTable));
+			bw.write("OutPrefix");
+			for (String key: sweepKeys) {
+				bw.write("\t" + key);
+			}
+			bw.write("\tPassingPositions\tPositionGroups\tAnnotationReady\tAnnotated\tQvaluePassed\n");
+			for (int i=0; i<sweepPoints.size(); i++) {
+				ScorePseudouridinePositions point = sweepPoints.get(i);
+				bw.write(point.outputPrefix.getPath());
+				for (String key: sweepKeys) {
+					bw.write("\t" + sweepGrid.get(i).getProperty(key));
+				}
+				bw.write(String.format("\t%d\t%d\t%d\t%d\t%d\n", point.minObsOK, point.afterCollapse, point.passed, point.annotated, point.qvalue));
+			}
+			bw.close();
+		} catch (IOException ioex) {
+			fail("Error writing sweep table: " + ioex.getMessage());
+		}
+		log.println("Wrote the sweep table to " + sweepTable.getPath());
+	}
+	
+	/**
+	 * Scores the jobs posted to the server until it is shut down.  Jobs share the loaded reference and
+	 * annotations, and batchParallel of them are scored at the same time.
+	 */
+	private void serve() {
+		try {
+			ScoringServer server = new ScoringServer(this, serverPort, batchParallel);
+			log.println("Listening on http://127.0.0.1:" + server.getPort() + "/, scoring " + batchParallel + " jobs at a time, logging to <out-prefix>.log");
+			server.awaitShutdown();
+		} catch (IOException ioex) {
+			fail("Error starting server, exiting: " + ioex.getMessage());
+		} catch (InterruptedException iex) {
+			fail("Interrupted while serving jobs, exiting.");
+		}
+		log.println("Finished!");
+	}
+	
+	/**
+	 * Stage the sample is in, or null before it starts and between stages.
+	 */
+	String getStage() {
+		return metrics.getStage();
+	}
+	
+	/**
+	 * Parse progress of the sample, or null before it starts.
+	 */
+	ProgressReporter getProgress() {
+		return progress;
+	}
+	
+	/**
+	 * Number of positions that passed the q-value threshold, once the sample is scored.
+	 */
+	int getQvaluePassed() {
+		return qvalue;
+	}
+	
+	File getOutputPrefix() {
+		return outputPrefix;
+	}
+	
+	void closeLog() {
+		if (log != System.out) {
+			log.close();
+		}
+	}
+
+	/**
+	 * Writes the stage metrics and run totals to a JSON file next to the results.
+	 */
+	private void writeMetrics() {
+		File metricsFile = new File(outputPrefix + ".metrics.json");
+		metrics.addValue("tool", "ScorePseudouridinePositions");
+		metrics.addValue("outputPrefix", outputPrefix.getPath());
+		metrics.addValue("threads", threads);
+		metrics.addValue("stream", stream);
+		metrics.addValue("loci", progress.getLoci());
+		metrics.addValue("reads", progress.getReads());
+		metrics.addValue("positionsProcessed", totalPositions);
+		metrics.addValue("positionGroups", afterCollapse);
+		try {
+			metrics.writeJson(metricsFile);
+		} catch (IOException ioex) {
+			log.println("Could not write metrics file " + metricsFile.getPath() + ": " + ioex.getMessage());
+		}
 	}
 	
 	private void writeStats() {
-		System.out.println("\n\n******* Threshold Filtering ******");
-		System.out.println(String.format("%d positions processed",totalPositions));
-		System.out.println(String.format("Fewer than %d deletions in bisulfite sample: %d (%.4f%%)",minBsDel,minDelBsFilter,(float)minDelBsFilter/totalPositions*100));
-		System.out.println(String.format("Fewer than %d coverage in bisulfite sample: %d (%.4f%%)",minBsCov,minCovBsFilter,(float)minCovBsFilter/totalPositions*100));
-		System.out.println(String.format("Deletion rate lower than %.4f in bisulfite sample: %d (%.4f%%)",minBsFrac,minBsFractionFilter,(float)minBsFractionFilter/totalPositions*100));
-		System.out.println(String.format("Fewer than %d coverage in nbs sample: %d (%.4f%%)",minNbsCov,minCovNbsFilter,(float)minCovNbsFilter/totalPositions*100));
-		System.out.println(String.format("Deletion rate higher than %.4f in nbs sample: %d (%.4f%%)",maxNbsFrac,maxNbsFractionFilter,(float)maxNbsFractionFilter/totalPositions*100));
-		System.out.println(String.format("Passing positions: %d (%.4f%%)",minObsOK,(float)minObsOK/totalPositions*100));
-		System.out.println(String.format("Positons after collapsing: %d (%.4f%%)",afterCollapse,(float)afterCollapse/minObsOK*100));
-		System.out.println("\n\n******* Artifact and Confidence Filtering ******");
-		System.out.println(String.format("Low confidence (pval %.4f): %d (%.4f%%)",pval,lowConfidenceFlag,(float)lowConfidenceFlag/afterCollapse*100));
-		System.out.println(String.format("High Background Exact (pval %.4f): %d (%.4f%%)",pval,highBackgroundExactFlag,(float)highBackgroundExactFlag/afterCollapse*100));
-		System.out.println(String.format("High Background Proximity (%d bp): %d (%.4f%%)",delDistance,highBackgroundProxFlag,(float)highBackgroundProxFlag/afterCollapse*100));
-		System.out.println(String.format("Homopolymer (%d bp): %d (%.4f%%)",hpLength,homopolymerFlag,(float)homopolymerFlag/afterCollapse*100));
-		System.out.println(String.format("Splice Junction (%d bp): %d (%.4f%%)",flankLength,flankFlag,(float)flankFlag/afterCollapse*100));
-		System.out.println(String.format("Annotation Ready: %d (%.4f%%)",passed,(float)passed/afterCollapse*100));
-	
-		
-		System.out.println("\n\n******* Annotation ******");
-		System.out.println(String.format("Annotated: %d (%.4f%%)",annotated,(float)annotated/passed*100));
-		System.out.println(String.format("Unannotated: %d (%.4f%%)",unannotated,(float)unannotated/passed*100));
-		
-		System.out.println("\n\n******* Annotation ******");
-		System.out.println(String.format("Shared Originating T all: %d (%.4f%%)",sharedPositions,(float)sharedPositions/passed*100));
-		System.out.println(String.format("Shared Originating T Usable: %d (%.4f%%)",sharedUsablePositions,(float)sharedUsablePositions/passed*100));
-		
-		System.out.println("\n\n******* Qvalue ******");
-		System.out.println(String.format("Corrected positions (Low confidence + Annotation Ready - Shared Usable): %d",passed + lowConfidenceFlag - sharedUsablePositions));
-		System.out.println(String.format("qvalue passed: %d (%.4f%%)",qvalue,(float)qvalue/(passed + lowConfidenceFlag - sharedUsablePositions)*100));
+		log.println("\n\n******* Threshold Filtering ******");
+		log.println(String.format("%d positions processed",totalPositions));
+		log.println(String.format("Fewer than %d deletions in bisulfite sample: %d (%.4f%%)",minBsDel,minDelBsFilter,(float)minDelBsFilter/totalPositions*100));
+		log.println(String.format("Fewer than %d coverage in bisulfite sample: %d (%.4f%%)",minBsCov,minCovBsFilter,(float)minCovBsFilter/totalPositions*100));
+		log.println(String.format("Deletion rate lower than %.4f in bisulfite sample: %d (%.4f%%)",minBsFrac,minBsFractionFilter,(float)minBsFractionFilter/totalPositions*100));
+		log.println(String.format("Fewer than %d coverage in nbs sample: %d (%.4f%%)",minNbsCov,minCovNbsFilter,(float)minCovNbsFilter/totalPositions*100));
+		log.println(String.format("Deletion rate higher than %.4f in nbs sample: %d (%.4f%%)",maxNbsFrac,maxNbsFractionFilter,(float)maxNbsFractionFilter/totalPositions*100));
+		log.println(String.format("Passing positions: %d (%.4f%%)",minObsOK,(float)minObsOK/totalPositions*100));
+		log.println(String.format("Positons after collapsing: %d (%.4f%%)",afterCollapse,(float)afterCollapse/minObsOK*100));
+		log.println("\n\n******* Artifact and Confidence Filtering ******");
+		log.println(String.format("Low confidence (pval %.4f): %d (%.4f%%)",pval,lowConfidenceFlag,(float)lowConfidenceFlag/afterCollapse*100));
+		log.println(String.format("High Background Exact (pval %.4f): %d (%.4f%%)",pval,highBackgroundExactFlag,(float)highBackgroundExactFlag/afterCollapse*100));
+		log.println(String.format("High Background Proximity (%d bp): %d (%.4f%%)",delDistance,highBackgroundProxFlag,(float)highBackgroundProxFlag/afterCollapse*100));
+		log.println(String.format("Homopolymer (%d bp): %d (%.4f%%)",hpLength,homopolymerFlag,(float)homopolymerFlag/afterCollapse*100));
+		log.println(String.format("Splice Junction (%d bp): %d (%.4f%%)",flankLength,flankFlag,(float)flankFlag/afterCollapse*100));
+		log.println(String.format("Annotation Ready: %d (%.4f%%)",passed,(float)passed/afterCollapse*100));
+	
+		
+		log.println("\n\n******* Annotation ******");
+		log.println(String.format("Annotated: %d (%.4f%%)",annotated,(float)annotated/passed*100));
+		log.println(String.format("Unannotated: %d (%.4f%%)",unannotated,(float)unannotated/passed*100));
+		
+		log.println("\n\n******* Annotation ******");
+		log.println(String.format("Shared Originating T all: %d (%.4f%%)",sharedPositions,(float)sharedPositions/passed*100));
+		log.println(String.format("Shared Originating T Usable: %d (%.4f%%)",sharedUsablePositions,(float)sharedUsablePositions/passed*100));
+		
+		log.println("\n\n******* Qvalue ******");
+		log.println(String.format("Corrected positions (Low confidence + Annotation Ready - Shared Usable): %d",passed + lowConfidenceFlag - sharedUsablePositions));
+		log.println(String.format("qvalue passed: %d (%.4f%%)",qvalue,(float)qvalue/(passed + lowConfidenceFlag - sharedUsablePositions)*100));
 	
 	}
 	
 	private void removedSharedSites() {
-		HashMap<String,Double> maxScore = new HashMap<String,Double>();
 		for (PositionGroup pg: finalPositionGroups) {
-			String key = pg.getMaxPos().getChrom() + ":" + String.valueOf(pg.getMaxPos().getPredPos());
-			Double fraction = pg.getMaxPos().getBsPer();
-			if (maxScore.containsKey(key)) {
-				if (maxScore.get(key) < fraction) {
-					maxScore.put(key,fraction);
-				}
-			}  else {
-				maxScore.put(key,fraction);
-			}
+			recordSharedSiteScore(pg);
 		}
 		
 		ArrayList<PositionGroup> sharedRemoved = new ArrayList<PositionGroup>();
 		for (PositionGroup pg: finalPositionGroups) {
-			String key = pg.getMaxPos().getChrom() + ":" + String.valueOf(pg.getMaxPos().getPredPos());
-			Double fraction = pg.getMaxPos().getBsPer();
-			if (maxScore.get(key).equals(fraction)) {
+			if (keepSharedSite(pg)) {
 				sharedRemoved.add(pg);
-			} else {
-				sharedPositions += 1;
-				if (pg.getFilterFlag().equals("Annotated") || pg.getFilterFlag().equals("Intron/Intergenic") || pg.getFilterFlag().equals("LowConfidence")) {
-					sharedUsablePositions += 1;
-				} 
 			}
 		}
 		
 		finalPositionGroups = sharedRemoved;	
 	}
 	
-	private void annotatePositions(BinomialTest bt) {
-		ArrayList<Feature> sortedFlank = null;
-		ArrayList<Feature> sortedGene = null;
+	/**
+	 * Keeps track of the highest bisulfite deletion fraction of all groups predicted at the same position.
+	 */
+	private void recordSharedSiteScore(PositionGroup pg) {
+		long key = sharedSiteKey(pg);
+		double fraction = pg.getBsPer();
+		if (sharedMaxScore.containsKey(key)) {
+			if (sharedMaxScore.get(key, 0) < fraction) {
+				sharedMaxScore.put(key,fraction);
+			}
+		}  else {
+			sharedMaxScore.put(key,fraction);
+		}
+	}
+	
+	/**
+	 * Returns true if the group has the highest deletion fraction of the groups predicted at its position, 
+	 * otherwise counts it as a shared site.
+	 */
+	private boolean keepSharedSite(PositionGroup pg) {
+		long key = sharedSiteKey(pg);
+		double fraction = pg.getBsPer();
+		//Compared like Double.equals
+		if (Double.doubleToLongBits(sharedMaxScore.get(key, 0)) == Double.doubleToLongBits(fraction)) {
+			return true;
+		}
+		sharedPositions += 1;
+		if (pg.getFilterFlag().equals("Annotated") || pg.getFilterFlag().equals("Intron/Intergenic") || pg.getFilterFlag().equals("LowConfidence")) {
+			sharedUsablePositions += 1;
+		} 
+		return false;
+	}
+	
+	/**
+	 * Key of the predicted originating position, with chromosomes numbered in the order they're seen.
+	 */
+	private long sharedSiteKey(PositionGroup pg) {
+		Integer index = sharedChromIndex.get(pg.getChrom());
+		if (index == null) {
+			index = sharedChromIndex.size();
+			sharedChromIndex.put(pg.getChrom(), index);
+		}
+		return LongDoubleMap.positionKey(index, pg.getPredPos());
+	}
+	
+	/**
+	 * Annotates the groups in chunks on a fork-join pool.  Each chunk counts its filter flags separately and the
+	 * counts are added up as the chunks are joined.
+	 */
+	private void annotatePositions() {
+		AnnotateTask task = new AnnotateTask(0, finalPositionGroups.size());
+		AnnotationCounts counts;
+		if (threads > 1) {
+			ForkJoinPool pool = new ForkJoinPool(threads, StageMetrics.countedForkJoinThreads(), null, false);
+			try {
+				counts = pool.invoke(task);
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			counts = task.compute();
+		}
+		addAnnotationCounts(counts);
+	}
+	
+	private class AnnotateTask extends RecursiveTask<AnnotationCounts> {
+		private static final long serialVersionUID = 1L;
+		private int start;
+		private int end;
 		
+		public AnnotateTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
 		
+		@Override
+		protected AnnotationCounts compute() {
+			if (end - start <= ANNOTATION_CHUNK_SIZE) {
+				AnnotationCounts counts = new AnnotationCounts();
+				for (int i=start; i<end; i++) {
+					annotateGroup(finalPositionGroups.get(i), counts);
+				}
+				return counts;
+			}
+			int mid = (start + end) >>> 1;
+			AnnotateTask left = new AnnotateTask(start, mid);
+			AnnotateTask right = new AnnotateTask(mid, end);
+			left.fork();
+			AnnotationCounts counts = right.compute();
+			counts.add(left.join());
+			return counts;
+		}
+	}
+	
+	private void addAnnotationCounts(AnnotationCounts counts) {
+		lowConfidenceFlag += counts.lowConfidenceFlag;
+		highBackgroundExactFlag += counts.highBackgroundExactFlag;
+		homopolymerFlag += counts.homopolymerFlag;
+		flankFlag += counts.flankFlag;
+		passed += counts.passed;
+		annotated += counts.annotated;
+		unannotated += counts.unannotated;
+	}
+	
+	/**
+	 * Finds the originating base, runs the binomial tests and sets the filter flag and gene annotation.  Only
+	 * touches the group and counts, so groups can be annotated concurrently.
+	 */
+	private void annotateGroup(PositionGroup p, AnnotationCounts counts) {
+		p.determineBaseToReport(refSeq);
+		//p.calculateFisher(errorRate, fe);
+		p.calculateBinomal(binomialTails.get());
+		String filterFlag = "NA";
+		String geneName = "NA";
+		String biotype = "NA";
+		if (p.getBsPval() > pval) {
+			counts.lowConfidenceFlag++;
+			
+			filterFlag = "LowConfidence";
+		} else if (p.getNbsPval() <= pval) {
+			counts.highBackgroundExactFlag++;
+			filterFlag = "HighBackgroundExact";
+		} 
+	
 		
-		Pattern p1 = Pattern.compile("^[CT]*$");
-		Pattern p2 = Pattern.compile("^[GA]*$");
+		String chrom = p.getChrom();
+		int pos = p.getPos();
 		
-		for (PositionGroup p: finalPositionGroups) {
-			p.determineBaseToReport(refSeq);
-			//p.calculateFisher(errorRate, fe);
-			p.calculateBinomal(errorRate, bt);
-			String filterFlag = "NA";
-			String currentChrom = "NA";
-			String geneName = "NA";
-			String biotype = "NA";
-			if (p.getBsPval() > pval) {
-				lowConfidenceFlag++;
-				
-				filterFlag = "LowConfidence";
-			} else if (p.getNbsPval() <= pval) {
-				highBackgroundExactFlag++;
-				filterFlag = "HighBackgroundExact";
-			} 
+		//Check to see if deletion is in flanking region.
+		if (filterFlag.equals("NA")) {
+			FeatureIndex flanks = flankIndex.get(chrom);
+			if (flanks != null && flanks.contains(pos)) {
+				filterFlag = "InFlank";
+				counts.flankFlag++;
+			}
+		}
 		
+		
+		//Add annotation
+		if (filterFlag.equals("NA")) {
+			int searchPos =  pos;
 			
-			String chrom = p.getMaxPos().getChrom();
-			int pos = p.getMaxPos().getPos();
-			
-			//Check to see if deletion is in flanking region.
-			if (filterFlag.equals("NA")) {
-				if (!chrom.equals(currentChrom) || sortedFlank == null) {
-					if (flankDict.containsKey(chrom)) {
-						sortedFlank = flankDict.get(chrom);
-						Collections.sort(sortedFlank, new FeatureComparator());
-					} else {
-						sortedFlank = new ArrayList<Feature>();
-					}
-				}
-				
-				for (Feature f: sortedFlank) {
-					if (f.getStart() > pos) {
-						break;
-					}
-					if (pos > f.getStart() && pos < f.getEnd()) {
-						filterFlag = "InFlank";
-						flankFlag++;
-						break;
+			String seq = refSeq.getSubSequence(refSeq.getIndex(chrom), searchPos, searchPos+hpLength);
+			Matcher m1 = ctHomopolymer.matcher(seq);
+			Matcher m2 = gaHomopolymer.matcher(seq);
+							
+			if (m1.matches()) {
+				filterFlag = "Homopolymer";
+				counts.homopolymerFlag++;
+			} else if (m2.matches()) {
+				filterFlag = "Homopolymer";
+				counts.homopolymerFlag++;
+			} else {
+				boolean found = false;
+				ArrayList<String> biotypes = new ArrayList<String>();
+				ArrayList<String> names = new ArrayList<String>();
+				FeatureIndex genes = geneIndex.get(chrom);
+				if (genes != null) {
+					for (Feature gene: genes.getContaining(pos)) {
+						if (!names.contains(gene.getName())) {
+							names.add(gene.getName());
+							biotypes.add(gene.getBiotype());
+						}
+						found = true;
 					}
 				}
-			}
-			
-			
-			//Add annotation
-			if (filterFlag.equals("NA")) {
-				int searchPos =  pos;
 				
-				String seq = refSeq.get(chrom).substring(searchPos,searchPos+hpLength).toUpperCase();
-				Matcher m1 = p1.matcher(seq);
-				Matcher m2 = p2.matcher(seq);
-								
-				if (m1.matches()) {
-					filterFlag = "Homopolymer";
-					homopolymerFlag++;
-				} else if (m2.matches()) {
-					filterFlag = "Homopolymer";
-					homopolymerFlag++;
+				if (!found) {
+					filterFlag = "Intron/Intergenic";
+					counts.unannotated++;
+					counts.passed++;
 				} else {
-					if (!chrom.equals(currentChrom) || sortedGene == null) {
-						if (geneDict.containsKey(chrom)) {
-							sortedGene = geneDict.get(chrom);
-							Collections.sort(sortedGene,new FeatureComparator());
-						} else {
-							sortedGene = new ArrayList<Feature>();
-						}
-					}
-					
-					boolean found = false;
-					ArrayList<String> biotypes = new ArrayList<String>();
-					ArrayList<String> names = new ArrayList<String>();
-					for (Feature gene: sortedGene) {
-						if (gene.getStart() > pos) {
-							break;
-						} 
-						
-						if (pos > gene.getStart() && pos < gene.getEnd()) {
-							if (!names.contains(gene.getName())) {
-								names.add(gene.getName());
-								biotypes.add(gene.getBiotype());
-							}
-							found = true;
-						}
-					}
-					
-					if (!found) {
-						filterFlag = "Intron/Intergenic";
-						unannotated++;
-						passed++;
-					} else {
-						filterFlag = "Annotated";
-						geneName = join(names, ";");
-						biotype = join(biotypes, ";");
-						annotated++;
-						passed++;
-					}
+					filterFlag = "Annotated";
+					geneName = join(names, ";");
+					biotype = join(biotypes, ";");
+					counts.annotated++;
+					counts.passed++;
 				}
 			}
-			
-			p.addAnnotation(geneName,filterFlag,biotype);
-			
-			currentChrom = chrom;
+		}
+		
+		p.addAnnotation(geneName,filterFlag,biotype);
+	}
+	
+	/**
+	 * Builds the per-chromosome overlap indexes once all the annotation files are read.
+	 */
+	private void indexFeatures() {
+		for (String chrom: flankDict.keySet()) {
+			flankIndex.put(chrom, new FeatureIndex(flankDict.get(chrom)));
+		}
+		for (String chrom: geneDict.keySet()) {
+			geneIndex.put(chrom, new FeatureIndex(geneDict.get(chrom)));
 		}
 	}
 	
@@ -367,7 +1051,7 @@ public class ScorePseudouridinePositions {
     	ArrayList<Double> pvalueList = new ArrayList<Double>();
 		
 		for (PositionGroup p: finalPositionGroups) {
-			if (p.getFilterFlag().equals("Annotated") || p.getFilterFlag().equals("Intron/Intergenic") || p.getFilterFlag().equals("LowConfidence")) {
+			if (isQvalueCandidate(p)) {
 				sortedPosition.add(p);
 			} 
 		}
@@ -397,327 +1081,899 @@ public class ScorePseudouridinePositions {
 
 	}
 	
+	private boolean isQvalueCandidate(PositionGroup p) {
+		return p.getFilterFlag().equals("Annotated") || p.getFilterFlag().equals("Intron/Intergenic") || p.getFilterFlag().equals("LowConfidence");
+	}
+	
+	/**
+	 * Finishes a streaming run.  The spilled groups are already annotated, so the first pass over the spill
+	 * file flags groups near NBS deletions, drops shared sites and collects the p-values of the groups that get
+	 * q-values, and the second pass writes the results with their q-values.
+	 */
+	private void scoreSpilledGroups() {
+		GroupSpill kept = null;
+		addAnnotationCounts(streamCounts);
+		try {
+			spill.finish();
+			kept = new GroupSpill(spill.getFile().getParentFile(), outputPrefix.getName(), splitThresh, hpLength);
+			
+			metrics.start("annotate");
+			log.println("Scanning for nearby deletions and shared originating Ts... ");
+			double[] pvalues = new double[1 << 10];
+			int candidates = 0;
+			PositionGroup p;
+			while ((p = spill.next()) != null) {
+				checkNearbyNbsDeletions(p);
+				if (keepSharedSite(p)) {
+					kept.write(p);
+					if (isQvalueCandidate(p)) {
+						if (candidates == pvalues.length) {
+							pvalues = Arrays.copyOf(pvalues, candidates * 2);
+						}
+						pvalues[candidates++] = p.getBsPval();
+					}
+				}
+			}
+			spill.delete();
+			kept.finish();
+			
+			metrics.start("q-value");
+			log.println("Calculating qvalues... ");
+			int[] order = sortByPvalueDescending(pvalues, candidates);
+			double[] sorted = new double[candidates];
+			for (int i=0; i<candidates; i++) {
+				sorted[i] = pvalues[order[i]];
+			}
+			benjaminiHochbergCorrect(sorted);
+			double[] qvalues = pvalues;
+			for (int i=0; i<candidates; i++) {
+				qvalues[order[i]] = sorted[i];
+			}
+			
+			metrics.start("write");
+			log.println("Writing results to file...");
+			BufferedWriter bw = new BufferedWriter(new FileWriter(outputPrefix + ".results.txt"));
+			int candidate = 0;
+			boolean header = true;
+			while ((p = kept.next()) != null) {
+				if (header) {
+					bw.write(p.getHeader());
+					header = false;
+				}
+				if (isQvalueCandidate(p)) {
+					double q = qvalues[candidate++];
+					if (q < 0.05) {
+						p.addQvalue(q, false);
+						qvalue++;
+					} else {
+						p.addQvalue(q, true);
+					}
+				}
+				bw.write(p.outputString(refSeq));
+			}
+			bw.close();
+		} catch (IOException ioex) {
+			fail("Error writing to output file: " + ioex.getMessage());
+		} finally {
+			spill.delete();
+			if (kept != null) {
+				kept.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the indexes of the p-values ordered from largest to smallest, in the order of PositionComparator.
+	 * Equal p-values keep their original order, like the stable sort of the in memory groups.
+	 */
+	private static int[] sortByPvalueDescending(double[] pvalues, int count) {
+		int[] order = new int[count];
+		int[] buffer = new int[count];
+		for (int i=0; i<count; i++) {
+			order[i] = i;
+		}
+		for (int width=1; width<count; width*=2) {
+			for (int low=0; low<count; low+=2*width) {
+				int mid = Math.min(low + width, count);
+				int high = Math.min(low + 2*width, count);
+				int left = low;
+				int right = mid;
+				for (int i=low; i<high; i++) {
+					if (left < mid && (right >= high || Double.compare(pvalues[order[right]], pvalues[order[left]]) <= 0)) {
+						buffer[i] = order[left++];
+					} else {
+						buffer[i] = order[right++];
+					}
+				}
+			}
+			int[] temp = order;
+			order = buffer;
+			buffer = temp;
+		}
+		return order;
+	}
+	
 	private void findNearbyNbsDeletions() {
 		for (PositionGroup p: finalPositionGroups) {
-			boolean found = false;
-			for (int i=p.getMaxPos().getPos()-delDistance;i<p.getMaxPos().getPos()+delDistance+1;i++) {
-				String key = p.getMaxPos().getChrom() + ":" + String.valueOf(i);
-				if (nbsPositions.contains(key)) {
-					found = true;
+			checkNearbyNbsDeletions(p);
+		}
+	}
+	
+	/**
+	 * Flags usable groups within delDistance of a potential NBS deletion.
+	 */
+	private void checkNearbyNbsDeletions(PositionGroup p) {
+		int pos = p.getPos();
+		boolean found = nbsPositions.containsAny(p.getChrom(), pos - delDistance, pos + delDistance);
+		
+		if (found) {
+			if (p.getFilterFlag().equals("Annotated")) {
+				annotated--;
+				passed--;
+				p.addAnnotation("NA", "HighBackgroundProx", "NA");
+				highBackgroundProxFlag++;
+			} else if (p.getFilterFlag().equals("Intron/Intergenic")) {
+				unannotated--;
+				passed--;
+				p.addAnnotation("NA", "HighBackgroundProx", "NA");
+				highBackgroundProxFlag++;
+			}
+		}
+	}
+	
+	private void writeResults() {
+		try {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(outputPrefix + ".results.txt"));
+			
+			if (finalPositionGroups.size() > 0) {
+				bw.write(finalPositionGroups.get(0).getHeader());
+			}
+			
+			for (PositionGroup p: finalPositionGroups) {
+				bw.write(p.outputString(refSeq));
+			}
+			
+			bw.close();
+		} catch (IOException ioex) {
+			fail("Error writing to output file: " + ioex.getMessage());
+		}
+	}
+	
+	private void parseSingleFile() {
+		try {
+			TsvEncoder bwStats = new TsvEncoder(new LineBlockOutputStream(new File(outputPrefix + ".parsed.txt.gz"), threads));
+		
+			PooledLocusIterator sliBS = openLoci(bisulfiteAlignments, null);
+			
+			ParseState state = createSerialParseState();
+			parseBisulfiteLoci(sliBS, state, bwStats);
+			
+			ArrayList<ParseState> states = new ArrayList<ParseState>();
+			states.add(state);
+			mergeParseStates(states);
+			splitPositionGroups();
+			
+			bwStats.close();
+			sliBS.close();
+		} catch (IOException ex) {
+			fail("Error parsing alignment files: " + ex.getMessage());
+		}
+	}
+	
+	/***************
+	 * This function processes the bisulfite and non-bisulfite alignment files
+	 */
+	private void parseAlignmentFiles() {
+		try {
+			TsvEncoder bwStats = new TsvEncoder(new LineBlockOutputStream(new File(outputPrefix + ".parsed.txt.gz"), threads));
+			
+			PooledLocusIterator sliBS = openLoci(bisulfiteAlignments, null);
+			PooledLocusIterator sliNBS = openLoci(nonBisulfiteAlignments, null);
+			
+			ParseState state = createSerialParseState();
+			parsePairedLoci(sliBS, sliNBS, state, bwStats);
+			
+			ArrayList<ParseState> states = new ArrayList<ParseState>();
+			states.add(state);
+			mergeParseStates(states);
+			splitPositionGroups();
+			
+			bwStats.close();
+			sliBS.close();
+			sliNBS.close();
+		} catch (IOException ex) {
+			fail("Error parsing alignment files: " + ex.getMessage());
+		}
+	} 
+	
+	/***************
+	 * This function processes the alignment files one reference sequence at a time on a pool of threads, using the
+	 * BAM index to restrict each locus iterator to its sequence.  Every sequence gets its own parse state and 
+	 * compressed parsed file, which are merged in sequence dictionary order so the groups, counters and parsed 
+	 * output match a serial run.
+	 */
+	private void parsePartitioned() {
+		ExecutorService pool = null;
+		ArrayList<Future<ParseState>> results = new ArrayList<Future<ParseState>>();
+		try {
+			ArrayList<File> alignments = new ArrayList<File>(Arrays.asList(bisulfiteAlignments));
+			if (nonBisulfiteAlignments != null) {
+				alignments.addAll(Arrays.asList(nonBisulfiteAlignments));
+			}
+			
+			//Replicates share a sequence dictionary, the sequences of every file are added in case BS and NBS differ
+			boolean indexed = true;
+			long mappedReads = 0;
+			ArrayList<String> sequences = new ArrayList<String>();
+			for (File alignment: alignments) {
+				SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(alignment);
+				indexed = indexed && sr.hasIndex();
+				long fileMappedReads = ProgressReporter.mappedReads(sr);
+				mappedReads = fileMappedReads < 0 || mappedReads < 0 ? -1 : mappedReads + fileMappedReads;
+				for (SAMSequenceRecord ssr: sr.getFileHeader().getSequenceDictionary().getSequences()) {
+					if (!sequences.contains(ssr.getSequenceName())) {
+						sequences.add(ssr.getSequenceName());
+					}
+				}
+				sr.close();
+			}
+			
+			if (!indexed) {
+				log.println("Alignment files are not indexed, parsing with a single thread" + (checkpoint ? " and without checkpoints." : "."));
+				if (nonBisulfiteAlignments != null) {
+					parseAlignmentFiles();
+				} else {
+					parseSingleFile();
 				}
+				return;
 			}
 			
-			if (found) {
-				if (p.getFilterFlag().equals("Annotated")) {
-					annotated--;
-					passed--;
-					p.addAnnotation("NA", "HighBackgroundProx", "NA");
-					highBackgroundProxFlag++;
-				} else if (p.getFilterFlag().equals("Intron/Intergenic")) {
-					unannotated--;
-					passed--;
-					p.addAnnotation("NA", "HighBackgroundProx", "NA");
-					highBackgroundProxFlag++;
+			if (regions != null) {
+				ArrayList<String> inRegions = new ArrayList<String>();
+				for (String sequence: sequences) {
+					if (regions.contains(sequence)) {
+						inRegions.add(sequence);
+					}
 				}
+				sequences = inRegions;
+			}
+			
+			//Sequences a killed run already parsed are read back from the checkpoint
+			File parsedFile = new File(outputPrefix + ".parsed.txt.gz");
+			int resumed = 0;
+			if (checkpoint) {
+				resumed = openCheckpoint(sequences, parsedFile);
+			}
+			
+			progress.addTotalReads(regions == null && resumed == 0 ? mappedReads : -1);
+			pool = Executors.newFixedThreadPool(threads, StageMetrics.countedThreads(false));
+			final File tempDir = parsedFile.getAbsoluteFile().getParentFile();
+			for (final String sequence: sequences.subList(resumed, sequences.size())) {
+				results.add(pool.submit(new Callable<ParseState>() {
+					public ParseState call() throws IOException {
+						return parseSequence(sequence, tempDir);
+					}
+				}));
+			}
+			pool.shutdown();
+			
+			//States are merged as they finish, in order, so a finished sequence's groups can be released
+			FileOutputStream fosParsed = new FileOutputStream(parsedFile, resumed > 0);
+			OutputStream osParsed = new BufferedOutputStream(fosParsed);
+			PositionGroup currentGroup = new PositionGroup(splitThresh, hpLength);
+			ArrayList<ParseState[]> sweepStates = new ArrayList<ParseState[]>();
+			for (int i=0; i<resumed; i++) {
+				ParseState state = parseCheckpoint.readState(i);
+				currentGroup = mergeParseState(state, currentGroup);
+				if (state.spilled != null) {
+					//The checkpoint keeps its copy
+					state.spilled.close();
+				}
+			}
+			for (int i=0; i<results.size(); i++) {
+				ParseState state = results.get(i).get();
+				results.set(i, null);
+				try {
+					appendFile(state.parsedPart, osParsed);
+					state.parsedPart.delete();
+					if (parseCheckpoint != null) {
+						osParsed.flush();
+						fosParsed.getFD().sync();
+						parseCheckpoint.add(sequences.get(resumed + i), state, fosParsed.getChannel().position());
+					}
+					currentGroup = mergeParseState(state, currentGroup);
+				} finally {
+					state.deleteFiles();
+				}
+				sweepStates.add(state.sweepStates);
+			}
+			osParsed.close();
+			if (currentGroup.size() > 0) {
+				emitGroup(currentGroup);
+			}
+			if (sweepPoints != null) {
+				mergeSweepStates(sweepStates);
+			}
+			//Each alignment loop also counts its terminating iteration, a serial run counts it once
+			totalPositions -= resumed + results.size() - 1;
+			
+			splitPositionGroups();
+		} catch (IOException ex) {
+			fail("Error parsing alignment files: " + ex.getMessage());
+		} catch (ExecutionException ex) {
+			fail("Error parsing alignment files: " + ex.getCause().getMessage());
+		} catch (InterruptedException ex) {
+			fail("Interrupted while parsing alignment files.");
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			deleteSequenceFiles(results);
+			if (parseCheckpoint != null) {
+				parseCheckpoint.close();
+			}
+		}
+	}
+	
+	/***************
+	 * Deletes the parsed lines and spill files of the parsed sequences that weren't merged, when the parse fails.
+	 */
+	private void deleteSequenceFiles(ArrayList<Future<ParseState>> results) {
+		for (Future<ParseState> result: results) {
+			if (result != null && result.isDone() && !result.isCancelled()) {
+				try {
+					result.get().deleteFiles();
+				} catch (ExecutionException ex) {
+					//The sequence deleted its own files
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+	
+	/***************
+	 * Opens the checkpoint of the parse by sequence and returns the number of sequences, in front of the given
+	 * ones, that an earlier run with the same settings already parsed.  The parsed file is cut back to the
+	 * lines of those sequences, so the remaining sequences can be appended.  Temporary files a killed run left
+	 * behind are deleted.
+	 */
+	private int openCheckpoint(ArrayList<String> sequences, File parsedFile) throws IOException {
+		deleteStaleFiles(sequences, parsedFile.getAbsoluteFile().getParentFile());
+		parseCheckpoint = new ParseCheckpoint(new File(outputPrefix + ".checkpoint"), checkpointSettings(), splitThresh, hpLength);
+		ArrayList<String> done = parseCheckpoint.getSequences();
+		int resumed = 0;
+		while (resumed < done.size() && resumed < sequences.size() && done.get(resumed).equals(sequences.get(resumed))) {
+			resumed++;
+		}
+		if (resumed > 0 && parsedFile.length() < parseCheckpoint.getParsedLength(resumed)) {
+			log.println("Parsed file is shorter than the checkpoint, parsing every sequence again.");
+			resumed = 0;
+		}
+		parseCheckpoint.truncate(resumed);
+		
+		if (resumed > 0) {
+			RandomAccessFile raf = new RandomAccessFile(parsedFile, "rw");
+			raf.setLength(parseCheckpoint.getParsedLength(resumed));
+			raf.close();
+			log.println("Resuming from checkpoint " + parseCheckpoint.getFile().getPath() + ", " + resumed + " of " + sequences.size() + " sequences are already parsed");
+		} else {
+			log.println("Checkpointing the parse to " + parseCheckpoint.getFile().getPath());
+		}
+		return resumed;
+	}
+	
+	/***************
+	 * Deletes the temporary parsed lines and spill files of this output prefix that a killed run left in the
+	 * directory, except the spill file of this run.
+	 */
+	private void deleteStaleFiles(ArrayList<String> sequences, File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		String prefix = outputPrefix.getName() + ".";
+		for (File file: files) {
+			String name = file.getName();
+			if (!name.startsWith(prefix) || (spill != null && file.getAbsoluteFile().equals(spill.getFile().getAbsoluteFile()))) {
+				continue;
+			}
+			String rest = name.substring(prefix.length());
+			boolean stale = rest.matches("\\d+\\.spill\\.tmp");
+			for (int i=0; i<sequences.size() && !stale; i++) {
+				String sequence = sequences.get(i);
+				stale = rest.startsWith(sequence + ".") && rest.substring(sequence.length() + 1).matches("\\d+\\.(parsed\\.tmp\\.gz|spill\\.tmp)");
+			}
+			if (stale) {
+				file.delete();
+			}
+		}
+	}
+	
+	/***************
+	 * Describes the input files and the settings the parse depends on, so a checkpoint is only picked up by a
+	 * run with the same ones.  A streaming parse also annotates, so its annotations and their settings count too.
+	 */
+	private String checkpointSettings() {
+		StringBuilder sb = new StringBuilder();
+		for (File alignment: bisulfiteAlignments) {
+			sb.append("bis\t" + alignment.getAbsolutePath() + "\t" + alignment.length() + "\t" + alignment.lastModified() + "\n");
+		}
+		if (nonBisulfiteAlignments != null) {
+			for (File alignment: nonBisulfiteAlignments) {
+				sb.append("non-bis\t" + alignment.getAbsolutePath() + "\t" + alignment.length() + "\t" + alignment.lastModified() + "\n");
+			}
+		}
+		sb.append("reference\t" + referenceFile.getAbsolutePath() + "\t" + referenceFile.length() + "\t" + referenceFile.lastModified() + "\n");
+		if (regionsFile != null) {
+			sb.append("regions\t" + regionsFile.getAbsolutePath() + "\t" + regionsFile.length() + "\t" + regionsFile.lastModified() + "\n");
+		}
+		sb.append("thresholds\t" + minBsDel + "\t" + minBsCov + "\t" + minBsFrac + "\t" + minNbsCov + "\t" + maxNbsFrac + "\t" + splitThresh + "\t" + hpLength + "\n");
+		if (stream) {
+			for (File annotation: new File[] {ucscFile, repbaseFile, biomartFile}) {
+				sb.append("annotation\t" + annotation.getAbsolutePath() + "\t" + annotation.length() + "\t" + annotation.lastModified() + "\n");
+			}
+			sb.append("stream\t" + errorRate + "\t" + pval + "\t" + flankLength + "\n");
+		}
+		return sb.toString();
+	}
+	
+	/***************
+	 * Parses the loci of a single reference sequence into a new parse state.  The parsed lines are written 
+	 * to a temporary file of their own, as their own gzip member, so the per-sequence files can simply be 
+	 * concatenated.  The temporary files are named after the output prefix and the sequence, so a checkpoint
+	 * can find the ones a killed run left behind.
+	 */
+	private ParseState parseSequence(String sequence, File tempDir) throws IOException {
+		ParseState state = createSequenceParseState(sequence, tempDir);
+		try {
+			state.parsedPart = File.createTempFile(outputPrefix.getName() + "." + sequence + ".", ".parsed.tmp.gz", tempDir);
+			state.parsedPart.deleteOnExit();
+			TsvEncoder bwStats = new TsvEncoder(new LineBlockOutputStream(state.parsedPart));
+			
+			PooledLocusIterator sliBS = openLoci(bisulfiteAlignments, sequence);
+			
+			if (nonBisulfiteAlignments != null) {
+				PooledLocusIterator sliNBS = openLoci(nonBisulfiteAlignments, sequence);
+				parsePairedLoci(sliBS, sliNBS, state, bwStats);
+				sliNBS.close();
+			} else {
+				parseBisulfiteLoci(sliBS, state, bwStats);
+			}
+			
+			sliBS.close();
+			bwStats.close();
+			if (state.spilled != null) {
+				state.spilled.finish();
+			}
+			//The parse failed elsewhere and nothing will merge this sequence
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("Interrupted while parsing " + sequence);
+			}
+		} catch (IOException ioex) {
+			state.deleteFiles();
+			throw ioex;
+		} catch (RuntimeException rex) {
+			state.deleteFiles();
+			throw rex;
+		}
+		return state;
+	}
+	
+	/***************
+	 * Creates the parse state of one reference sequence of a parallel parse.  When streaming, only the first
+	 * and the last closed group are kept, copied out of the state's store so it can be cleared, since only they
+	 * can be stitched onto the neighbouring sequences.  The groups in between are split, annotated and spilled to
+	 * a file of the sequence's own once the next group closes, and are added to the run's spill file when the
+	 * states are merged.
+	 */
+	private ParseState createSequenceParseState(String sequence, File spillDir) throws IOException {
+		if (spill == null) {
+			return addSweepStates(new ParseState(splitThresh, hpLength));
+		}
+		ParseState state = new ParseState(splitThresh, hpLength) {
+			void closeGroup(PositionGroup group) throws IOException {
+				if (closedGroups.size() == 2) {
+					for (PositionGroup split: closedGroups.remove(1).splitGroup()) {
+						annotateGroup(split, spilledCounts);
+						spilled.write(split);
+					}
+				}
+				closedGroups.add(group.copy());
+				store.clear();
+			}
+		};
+		state.spilled = new GroupSpill(spillDir, outputPrefix.getName() + "." + sequence, splitThresh, hpLength);
+		state.spilledCounts = new AnnotationCounts();
+		return addSweepStates(state);
+	}
+	
+	/***************
+	 * Opens the replicate alignment files of one side and pools their loci, over every reference sequence
+	 * or only the given one.  The whole file iterators also add the mapped reads of each file to the progress.
+	 */
+	private PooledLocusIterator openLoci(File[] alignments, String sequence) {
+		ArrayList<SamReader> readers = new ArrayList<SamReader>();
+		ArrayList<SamLocusIterator> iterators = new ArrayList<SamLocusIterator>();
+		for (File alignment: alignments) {
+			SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(alignment);
+			readers.add(sr);
+			SamLocusIterator sli;
+			if (sequence == null) {
+				//Mapped reads of the index cover the whole file, so there is no ETA for regions
+				progress.addTotalReads(regions == null ? ProgressReporter.mappedReads(sr) : -1);
+				if (regions != null) {
+					sli = new SamLocusIterator(sr, regions.getIntervalList(sr.getFileHeader(), null));
+				} else {
+					sli = new SamLocusIterator(sr);
+				}
+				sli.setEmitUncoveredLoci(false);
+				progress.countReads(sli);
+			} else {
+				sli = makeSequenceIterator(sr, sequence);
+			}
+			if (sli != null) {
+				iterators.add(sli);
+			}
+		}
+		return new PooledLocusIterator(readers, iterators);
+	}
+	
+	/***************
+	 * Creates a locus iterator restricted to one reference sequence, and to the regions on it if there are
+	 * any, or returns null if the alignment file doesn't contain the sequence.
+	 */
+	private SamLocusIterator makeSequenceIterator(SamReader sr, String sequence) {
+		SAMSequenceRecord ssr = sr.getFileHeader().getSequenceDictionary().getSequence(sequence);
+		if (ssr == null) {
+			return null;
+		}
+		IntervalList il;
+		if (regions != null) {
+			il = regions.getIntervalList(sr.getFileHeader(), sequence);
+		} else {
+			il = new IntervalList(sr.getFileHeader());
+			il.add(new Interval(sequence, 1, ssr.getSequenceLength()));
+		}
+		SamLocusIterator sli = new SamLocusIterator(sr, il);
+		sli.setEmitUncoveredLoci(false);
+		progress.countReads(sli);
+		return sli;
+	}
+	
+	/***************
+	 * Stitches parse states back together in order.  A serial parse carries the open group from one reference 
+	 * sequence into the next, so the first group of a state is merged into the trailing group of the states 
+	 * before it whenever its first position directly follows.
+	 */
+	private void mergeParseStates(ArrayList<ParseState> states) throws IOException {
+		PositionGroup currentGroup = new PositionGroup(splitThresh, hpLength);
+		ArrayList<ParseState[]> sweepStates = new ArrayList<ParseState[]>();
+		for (ParseState state: states) {
+			currentGroup = mergeParseState(state, currentGroup);
+			sweepStates.add(state.sweepStates);
+		}
+		
+		if (currentGroup.size() > 0) {
+			emitGroup(currentGroup);
+		}
+		if (sweepPoints != null) {
+			mergeSweepStates(sweepStates);
+		}
+	}
+	
+	/***************
+	 * Merges one parse state onto the trailing group of the states before it and returns the new trailing group.
+	 */
+	private PositionGroup mergeParseState(ParseState state, PositionGroup currentGroup) throws IOException {
+		ArrayList<PositionGroup> groups = state.getGroups();
+		for (int i=0; i<groups.size(); i++) {
+			PositionGroup group = groups.get(i);
+			if (i == 0 && (currentGroup.getLastPos() + 1) == group.getFirstPos()) {
+				currentGroup.append(group);
+			} else {
+				if (currentGroup.size() > 0) {
+					emitGroup(currentGroup);
+				}
+				currentGroup = group;
+			}
+			//The groups a streaming parse spilled follow the first group
+			if (i == 0 && state.spilled != null && state.spilled.size() > 0) {
+				emitGroup(currentGroup);
+				currentGroup = new PositionGroup(splitThresh, hpLength);
+				addSpilledGroups(state);
+			}
+		}
+		
+		nbsPositions.addAll(state.nbsPositions);
+		minCovBsFilter += state.minCovBsFilter;
+		minCovNbsFilter += state.minCovNbsFilter;
+		minDelBsFilter += state.minDelBsFilter;
+		maxNbsFractionFilter += state.maxNbsFractionFilter;
+		minBsFractionFilter += state.minBsFractionFilter;
+		minObsOK += state.minObsOK;
+		totalPositions += state.totalPositions;
+		return currentGroup;
+	}
+	
+	/***************
+	 * Adds the groups a streaming parse state spilled, already split and annotated, to the spill file of the run.
+	 */
+	private void addSpilledGroups(ParseState state) throws IOException {
+		streamCounts.add(state.spilledCounts);
+		PositionGroup split;
+		while ((split = state.spilled.next()) != null) {
+			afterCollapse++;
+			recordSharedSiteScore(split);
+			spill.write(split);
+		}
+	}
+	
+	/***************
+	 * Hands on a finished group.  Groups are kept for scoring once parsing is done, or when streaming, split, 
+	 * annotated and written to the spill file right away.
+	 */
+	private void emitGroup(PositionGroup group) throws IOException {
+		if (spill == null) {
+			originalPositionGroups.add(group);
+			return;
+		}
+		for (PositionGroup split: group.splitGroup()) {
+			afterCollapse++;
+			annotateGroup(split, streamCounts);
+			recordSharedSiteScore(split);
+			spill.write(split);
+		}
+	}
+	
+	/***************
+	 * Splits the kept groups where the deletion fraction drops.
+	 */
+	private void splitPositionGroups() {
+		for (PositionGroup p: originalPositionGroups) {
+			ArrayList<PositionGroup> split = p.splitGroup();
+			finalPositionGroups.addAll(split);
+			afterCollapse += split.size();
+		}
+		originalPositionGroups.clear();
+	}
+	
+	/***************
+	 * Creates the parse state of a serial parse.  When streaming, groups are handed on as soon as they close.
+	 */
+	private ParseState createSerialParseState() {
+		if (spill == null) {
+			return addSweepStates(new ParseState(splitThresh, hpLength));
+		}
+		return addSweepStates(new ParseState(splitThresh, hpLength) {
+			void closeGroup(PositionGroup group) throws IOException {
+				emitGroup(group);
+				//Nothing refers to the stored positions once the group is spilled
+				store.clear();
 			}
+		});
+	}
+	
+	private void appendFile(File source, OutputStream os) throws IOException {
+		InputStream is = new FileInputStream(source);
+		byte[] buffer = new byte[1 << 16];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			os.write(buffer, 0, read);
 		}
+		is.close();
 	}
 	
-	private void writeResults() {
-		try {
-			BufferedWriter bw = new BufferedWriter(new FileWriter(outputPrefix + ".results.txt"));
+	private void parseBisulfiteLoci(PooledLocusIterator sliBS, ParseState state, TsvEncoder bwStats) throws IOException {
+		PooledLocus lBS = null;
+		
+		while(true) {
+			state.totalPositions++;
+			//Get coverage information
+			int countBS;
+			int covBS;
+			int countNBS = 0;
+			int covNBS = 100;
 			
-			if (finalPositionGroups.size() > 0) {
-				bw.write(finalPositionGroups.get(0).getHeader());
-			}
+			//strand
+			int reverse;
+			int forward;
 			
-			for (PositionGroup p: finalPositionGroups) {
-				bw.write(p.outputString(refSeq));
+			if (sliBS != null && sliBS.hasNext()) {
+				lBS = sliBS.next();
+			} else {
+				break;
 			}
 			
-			bw.close();
-		} catch (IOException ioex) {
-			System.out.println("Error writing to output file: " + ioex.getMessage());
-			System.exit(1);
+			//location
+			String chrom;
+			int position;
+			countBS = lBS.getDeletionCount();
+			covBS = lBS.getLocusCoverage();
+			reverse = lBS.getReverseCount();
+			forward = lBS.getForwardCount();
+			
+			chrom = lBS.getSequenceName();
+			position = lBS.getPosition();
+			
+			progress.addLoci(1, chrom);
+
+			processPosition(state, covNBS, covBS, countBS, countNBS, forward, reverse, chrom, position, bwStats);	
 		}
 	}
 	
-	private void parseSingleFile() {
-		try {
-			BufferedWriter bwStats = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputPrefix + ".parsed.txt.gz"))));
+	private void parsePairedLoci(PooledLocusIterator sliBS, PooledLocusIterator sliNBS, ParseState state, TsvEncoder bwStats) throws IOException {
+		String refBS = null;
+		String refNBS = null;
+		String refLast = null;
+		
+		PooledLocus lBS = null;
+		PooledLocus lNBS = null;
+		if (sliBS != null && sliBS.hasNext()) {
+			lBS = sliBS.next();
+			refBS = lBS.getSequenceName();
+		}
+		if (sliNBS != null && sliNBS.hasNext()) {
+			lNBS = sliNBS.next();
+			refNBS = lNBS.getSequenceName();
+		}
 		
-			SamReader srBS = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(bisulfiteAlignment);
-			SamLocusIterator sliBS = new SamLocusIterator(srBS);
-			sliBS.setEmitUncoveredLoci(false);
+		while(true) {
+			state.totalPositions++;
+			//Get coverage information
+			int countBS;
+			int covBS;
+			int countNBS;
+			int covNBS;
 			
-			PositionGroup currentGroup = new PositionGroup(splitThresh, hpLength);
-			LocusInfo lBS = null;
+			//strand
+			int reverse;
+			int forward;
 			
-			int counter = 0;
-			while(true) {
-				totalPositions++;
-				//Get coverage information
-				int countBS;
-				int covBS;
-				int countNBS = 0;
-				int covNBS = 100;
+			//location
+			String chrom;
+			int position;
+			
+			if (lBS == null && lNBS == null) {
+				break;
+			} else if (lBS != null && (lNBS == null || (lBS.getPosition() < lNBS.getPosition() && refNBS == refBS) || refNBS != refLast)) {
+				countBS = lBS.getDeletionCount();
+				covBS = lBS.getLocusCoverage();
+				countNBS = 0;
+				covNBS = 0;
 				
-				//strand
-				int reverse;
-				int forward;
+				reverse = lBS.getReverseCount();
+				forward = lBS.getForwardCount();
+				
+				chrom = lBS.getSequenceName();
+				position = lBS.getPosition();
 				
 				if (sliBS.hasNext()) {
 					lBS = sliBS.next();
+					refBS = lBS.getSequenceName();
+					if (refBS.equals(refNBS)) {
+						refLast = chrom;
+					}
 				} else {
-					break;
+					lBS = null;
 				}
+			} else  if (lNBS != null  && (lBS == null || (lNBS.getPosition() < lBS.getPosition() && refNBS == refBS) || refBS != refLast)) {
+				countNBS = lNBS.getDeletionCount();
+				covNBS = lNBS.getLocusCoverage();
+				countBS = 0;
+				covBS = 0;
 				
-				//location
-				String chrom;
-				String position=null;
-				countBS = lBS.getDeletionCount();
-				covBS = lBS.getLocusCoverage();
-				reverse = lBS.getReverseCount();
-				forward = lBS.getFowardCount();
+				reverse = lNBS.getReverseCount();
+				forward = lNBS.getForwardCount();
 				
-				chrom = lBS.getSequenceName();
-				position = String.valueOf(lBS.getPosition());
+				chrom = lNBS.getSequenceName();
+				position = lNBS.getPosition();
 				
-				if (counter % 5000000 == 0 && counter != 0) {
-					System.out.println(counter + " " + chrom + " " + position);
+				if (sliNBS.hasNext()) {
+					lNBS = sliNBS.next();
+					refNBS = lNBS.getSequenceName();
+					if (refNBS.equals(refBS)) {
+						refLast = chrom;
+					}
+				} else {
+					lNBS = null;
 				}
-				counter += 1;
-	
-				currentGroup = processPosition(currentGroup, covNBS, covBS, countBS, countNBS, forward, reverse, chrom, position, bwStats);	
-			}
-			
-			if (currentGroup.getPosList().size() > 0) {
-				originalPositionGroups.add(currentGroup);
-			}
-			
-			for (PositionGroup p: originalPositionGroups) {
-				ArrayList<PositionGroup> split = p.splitGroup();
-				finalPositionGroups.addAll(split);
-			}
-			
-			afterCollapse = finalPositionGroups.size();
-			bwStats.close();
-			sliBS.close();
-		} catch (IOException ex) {
-			System.out.println(ex.getMessage());
-		}
-	}
-	
-	/***************
-	 * This function processes a bisulfite and non-bisulfite alignment file
-	 */
-	private void parseAlignmentFiles() {
-		try {
-			BufferedWriter bwStats = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputPrefix + ".parsed.txt.gz"))));
-			
-			SamReader srBS = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(bisulfiteAlignment);
-			SamReader srNBS = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(nonBisulfiteAlignment);
-			SamLocusIterator sliBS = new SamLocusIterator(srBS);
-			sliBS.setEmitUncoveredLoci(false);
-			SamLocusIterator sliNBS = new SamLocusIterator(srNBS);
-			sliNBS.setEmitUncoveredLoci(false);
-			String refBS = null;
-			String refNBS = null;
-			String refLast = null;
-			
-			PositionGroup currentGroup = new PositionGroup(splitThresh, hpLength);
-			
-			LocusInfo lBS = null;
-			LocusInfo lNBS = null;
-			if (sliBS.hasNext()) {
-				lBS = sliBS.next();
-				refBS = lBS.getSequenceName();
-			}
-			if (sliNBS.hasNext()) {
-				lNBS = sliNBS.next();
-				refNBS = lNBS.getSequenceName();
-			}
-			
-			int counter = 0;
-			while(true) {
-				totalPositions++;
-				//Get coverage information
-				int countBS;
-				int covBS;
-				int countNBS;
-				int covNBS;
+			} else {
+				countNBS = lNBS.getDeletionCount();
+				covNBS = lNBS.getLocusCoverage();
+				countBS = lBS.getDeletionCount();
+				covBS = lBS.getLocusCoverage();
 				
-				//strand
-				int reverse;
-				int forward;
+				reverse = lNBS.getReverseCount() + lBS.getReverseCount();
+				forward = lNBS.getForwardCount() + lBS.getForwardCount();
 				
-				//location
-				String chrom;
-				String position=null;
+				chrom = lNBS.getSequenceName();
+				position = lNBS.getPosition();
 				
-				if (lBS == null && lNBS == null) {
-					break;
-				} else if (lBS != null && (lNBS == null || (lBS.getPosition() < lNBS.getPosition() && refNBS == refBS) || refNBS != refLast)) {
-					countBS = lBS.getDeletionCount();
-					covBS = lBS.getLocusCoverage();
-					countNBS = 0;
-					covNBS = 0;
-					
-					reverse = lBS.getReverseCount();
-					forward = lBS.getFowardCount();
-					
-					chrom = lBS.getSequenceName();
-					position = String.valueOf(lBS.getPosition());
-					
-					if (sliBS.hasNext()) {
-						lBS = sliBS.next();
-						refBS = lBS.getSequenceName();
-						if (refBS.equals(refNBS)) {
-							refLast = chrom;
-						}
-					} else {
-						lBS = null;
-					}
-				} else  if (lNBS != null  && (lBS == null || (lNBS.getPosition() < lBS.getPosition() && refNBS == refBS) || refBS != refLast)) {
-					countNBS = lNBS.getDeletionCount();
-					covNBS = lNBS.getLocusCoverage();
-					countBS = 0;
-					covBS = 0;
-					
-					reverse = lNBS.getReverseCount();
-					forward = lNBS.getFowardCount();
-					
-					chrom = lNBS.getSequenceName();
-					position = String.valueOf(lNBS.getPosition());
-					
-					if (sliNBS.hasNext()) {
-						lNBS = sliNBS.next();
-						refNBS = lNBS.getSequenceName();
-						if (refBS.equals(refNBS)) {
-							refLast = chrom;
-						}
-					} else {
-						lNBS = null;
-					}
+				if (sliNBS.hasNext()) {
+					lNBS = sliNBS.next();
+					refNBS = lNBS.getSequenceName();
 				} else {
-					countNBS = lNBS.getDeletionCount();
-					covNBS = lNBS.getLocusCoverage();
-					countBS = lBS.getDeletionCount();
-					covBS = lBS.getLocusCoverage();
-					
-					reverse = lNBS.getReverseCount() + lBS.getReverseCount();
-					forward = lNBS.getFowardCount() + lBS.getFowardCount();
-					
-					chrom = lNBS.getSequenceName();
-					position = String.valueOf(lNBS.getPosition());
-					
-					if (sliNBS.hasNext()) {
-						lNBS = sliNBS.next();
-						refNBS = lNBS.getSequenceName();
-					} else {
-						lNBS = null;
-					}
-					
-					if (sliBS.hasNext()) {
-						lBS = sliBS.next();
-						refBS = lBS.getSequenceName();
-					} else {
-						lBS = null;
-					}
-					
-					if (refBS.equals(refNBS)) {
-						refLast = chrom;
-					}
+					lNBS = null;
 				}
 				
-				if (counter % 5000000 == 0 && counter != 0) {
-					System.out.println(counter + " " + chrom + " " + position);
+				if (sliBS.hasNext()) {
+					lBS = sliBS.next();
+					refBS = lBS.getSequenceName();
+				} else {
+					lBS = null;
 				}
-				counter += 1;
 				
-				currentGroup = processPosition(currentGroup, covNBS, covBS, countBS, countNBS, forward, reverse, chrom, position, bwStats);
-
-			}
-						
-			if (currentGroup.getPosList().size() > 0) {
-				originalPositionGroups.add(currentGroup);
+				if (refBS.equals(refNBS)) {
+					refLast = chrom;
+				}
 			}
 			
+			progress.addLoci(1, chrom);
 			
-			for (PositionGroup p: originalPositionGroups) {
-				ArrayList<PositionGroup> split = p.splitGroup();
-				finalPositionGroups.addAll(split);
-			}
-			originalPositionGroups.clear();
-			
-			afterCollapse = finalPositionGroups.size();
-			bwStats.close();
-			sliBS.close();
-			sliNBS.close();
-		} catch (IOException ex) {
-			System.out.println(ex.getMessage());
+			processPosition(state, covNBS, covBS, countBS, countNBS, forward, reverse, chrom, position, bwStats);
+
 		}
-	} 
+	}
 			
 	private void parseExisting() {
+		ParsedFileReader reader = null;
 		try {
 			
-			BufferedWriter bwStats = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputPrefix + ".parsed.txt.gz"))));
-			PositionGroup currentGroup = new PositionGroup(splitThresh, hpLength);
-			BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(preParsedFile))));
-			String temp = null;
+			TsvEncoder bwStats = new TsvEncoder(new LineBlockOutputStream(new File(outputPrefix + ".parsed.txt.gz"), threads));
+			ParseState state = createSerialParseState();
+			reader = new ParsedFileReader(preParsedFile, threads);
 			
-			int counter = 0;
-			while((temp = br.readLine()) != null) {
-				String[] parts = temp.split("\t");
-				
-				totalPositions++;
+			while(reader.next()) {
+				if (regions != null && !regions.contains(reader.getChrom(), reader.getPosition())) {
+					continue;
+				}
+				state.totalPositions++;
 				
 				//Get coverage information
-				int countBS = Integer.parseInt(parts[2]);
-				int covBS = Integer.parseInt(parts[3]);
-				int countNBS = Integer.parseInt(parts[4]);
-				int covNBS = Integer.parseInt(parts[5]);
+				int countBS = reader.getCountBS();
+				int covBS = reader.getCovBS();
+				int countNBS = reader.getCountNBS();
+				int covNBS = reader.getCovNBS();
 				
 				//strand
-				int forward = Integer.parseInt(parts[6]);
-				int reverse = Integer.parseInt(parts[7]);
+				int forward = reader.getForward();
+				int reverse = reader.getReverse();
 				
 				//location
-				String chrom = parts[0];
-				String position = parts[1];
+				String chrom = reader.getChrom();
+				int position = reader.getPosition();
 				
-				if (counter % 5000000 == 0 && counter != 0) {
-					System.out.println(counter + " " + chrom + " " + position);
-				}
-				counter++;
+				progress.addLoci(1, chrom);
 						
-				currentGroup = processPosition(currentGroup, covNBS, covBS, countBS, countNBS, forward, reverse, chrom, position, bwStats);
-			}
-			
-			if (currentGroup.getPosList().size() > 0) {
-				originalPositionGroups.add(currentGroup);
+				processPosition(state, covNBS, covBS, countBS, countNBS, forward, reverse, chrom, position, bwStats);
 			}
 			
+			ArrayList<ParseState> states = new ArrayList<ParseState>();
+			states.add(state);
+			mergeParseStates(states);
+			splitPositionGroups();
 			
-			for (PositionGroup p: originalPositionGroups) {
-				ArrayList<PositionGroup> split = p.splitGroup();
-				finalPositionGroups.addAll(split);
-			}
-			
-			afterCollapse = finalPositionGroups.size();
-			br.close();
 			bwStats.close();
 		} catch (IOException ioex) {
-			System.out.println("Error reading file");
+			fail("Error reading file: " + ioex.getMessage());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException ioex) {
+					log.println("Error closing file");
+				}
+			}
 		}
 	}
 	
 	/************************
-	 * This method takes basic information about a position and does basic filtering.  If this position passes, it is either added to an existing group
-	 * or used to create a new group.
+	 * This method takes basic information about a position and does basic filtering.  If this position passes, it is either added to the 
+	 * open group of the parse state or used to create a new group.
 	 * 
-	 * @param currentGroup
+	 * @param state
 	 * @param covNBS
 	 * @param covBS
 	 * @param countBS
@@ -726,9 +1982,13 @@ public class ScorePseudouridinePositions {
 	 * @param reverse
 	 * @param chrom
 	 * @param position
-	 * @return PositonGroup
 	 */
-	private PositionGroup processPosition(PositionGroup currentGroup, int covNBS, int covBS, int countBS, int countNBS, int forward, int reverse, String chrom, String position, BufferedWriter bwParsed) throws IOException{
+	void processPosition(ParseState state, int covNBS, int covBS, int countBS, int countNBS, int forward, int reverse, String chrom, int position, TsvEncoder bwParsed) throws IOException{
+		if (state.sweepStates != null) {
+			for (int i=0; i<state.sweepStates.length; i++) {
+				sweepPoints.get(i).processPosition(state.sweepStates[i], covNBS, covBS, countBS, countNBS, forward, reverse, chrom, position, state.sweepParsed);
+			}
+		}
 		
 		double fracNBS = 0;
 		double fracBS = 0;
@@ -740,77 +2000,83 @@ public class ScorePseudouridinePositions {
 			fracBS = (double)countBS / covBS;
 		}
 		
-		String status = "";
+		bwParsed.writeString(chrom).tab().writeInt(position).tab().writeInt(countBS).tab().writeInt(covBS).tab().writeInt(countNBS)
+				.tab().writeInt(covNBS).tab().writeInt(forward).tab().writeInt(reverse).tab();
+		
+		//The failed filters are written to the parsed file as they are checked
+		boolean failed = false;
 		if (countBS < minBsDel) {
-			minDelBsFilter++;
-			status += "minDelBs;";
+			state.minDelBsFilter++;
+			bwParsed.writeAscii("minDelBs;");
+			failed = true;
 		}
 		
 		if (fracBS < minBsFrac) {
-			minBsFractionFilter++;
-			status += "minBsFrac;";
+			state.minBsFractionFilter++;
+			bwParsed.writeAscii("minBsFrac;");
+			failed = true;
 		}
 		
 		if (covBS < minBsCov) {
-			minCovBsFilter++;
-			status += "minBsCov;";
+			state.minCovBsFilter++;
+			bwParsed.writeAscii("minBsCov;");
+			failed = true;
 		}
 		
 		if (fracNBS > maxNbsFrac) {
-			maxNbsFractionFilter++;
-			status += "minNbsFrac;";
+			state.maxNbsFractionFilter++;
+			bwParsed.writeAscii("minNbsFrac;");
+			failed = true;
 			//Store potential NBS deletions
 			if (covNBS >= minNbsCov && countNBS >= minBsDel) {
-				nbsPositions.add(chrom + ":" + position);
+				state.nbsPositions.add(chrom, position);
 			}
 		} 
 		
 		if (covNBS < minNbsCov) {
-			minCovNbsFilter++;
-			status += "minNbsCov;";
+			state.minCovNbsFilter++;
+			bwParsed.writeAscii("minNbsCov;");
+			failed = true;
 		}
 		
-		if (!status.equals("")) {
-			bwParsed.write(chrom + "\t" + position + "\t" + countBS + "\t" + covBS + "\t" + countNBS + "\t" + covNBS + "\t" + forward + "\t" + reverse + "\t" + status + "\n");
-			return currentGroup;
+		if (failed) {
+			bwParsed.newLine();
+			return;
 		}
 		
-		bwParsed.write(chrom + "\t" + position + "\t" + countBS + "\t" + covBS + "\t" + countNBS + "\t" + covNBS + "\t" + forward + "\t" + reverse + "\tPASSED\n");
-		minObsOK++;
+		bwParsed.writeAscii("PASSED").newLine();
+		state.minObsOK++;
 
 		double perF = (double)forward / (forward + reverse);
 		double perR = (double)reverse / (forward + reverse);
 		
-		String strand = "NA";
+		int strand;
 		if (perF > perR) {
 			if (perF < perR * 2) {
-				strand = "+*";
+				strand = PositionStore.FORWARD_MIXED;
 			} else {
-				strand = "+";
+				strand = PositionStore.FORWARD;
 			}
 		} else {
 			if (perR < perF * 2) {
-				strand = "-*";
+				strand = PositionStore.REVERSE_MIXED;
 			} else {
-				strand = "-";
+				strand = PositionStore.REVERSE;
 			}
 		}
 		
-		Integer pos = Integer.parseInt(position)-1;
-		String base = refSeq.get(chrom).substring(pos, pos+1);
-		Position p = new Position(chrom,pos,strand,base,covBS,countBS,covNBS,countNBS);
+		int pos = position-1;
+		char base = refSeq.baseAt(refSeq.getIndex(chrom), pos);
 		
 		//Collapse
-		if ((currentGroup.getLastPos() + 1) == p.getPos()) {
-			currentGroup.addPosition(p);
-		} else {
-			if (currentGroup.getPosList().size() > 0) {
-				originalPositionGroups.add(currentGroup);
+		if ((state.currentGroup.getLastPos() + 1) != pos) {
+			if (state.currentGroup.size() > 0) {
+				state.closeGroup(state.currentGroup);
 			}
-			currentGroup = new PositionGroup(splitThresh, hpLength);
-			currentGroup.addPosition(p);
+			state.currentGroup = new PositionGroup(state.store, state.store.size(), splitThresh, hpLength);
 		}
-		return currentGroup;
+		state.store.add(chrom,pos,strand,base,covBS,countBS,covNBS,countNBS);
+		state.currentGroup.extend();
 	}
 	
 	/* 
@@ -828,11 +2094,13 @@ public class ScorePseudouridinePositions {
 				if (!geneDict.containsKey(parts[0])) {
 					geneDict.put(parts[0], new ArrayList<Feature>());
 				}
-				geneDict.get(parts[0]).add(repbaseFeature);
+				if (regions == null || regions.overlaps(parts[0], repbaseFeature.getStart(), repbaseFeature.getEnd())) {
+					geneDict.get(parts[0]).add(repbaseFeature);
+				}
 			}
 			br.close();
 		} catch (IOException ioex) {
-			System.out.println("Error reading repbase file: " + ioex.getMessage());
+			log.println("Error reading repbase file: " + ioex.getMessage());
 		}
 	}
 	
@@ -882,13 +2150,15 @@ public class ScorePseudouridinePositions {
 					
 					
 					Feature geneFeature = new Feature(start,end,geneName,biotype);
-					geneDict.get(chrom).add(geneFeature);
+					if (regions == null || regions.overlaps(chrom, start, end)) {
+						geneDict.get(chrom).add(geneFeature);
+					}
 					
-					if (i != 0) {
+					if (i != 0 && (regions == null || regions.overlaps(chrom, start-flankLength, start+flankLength))) {
 						Feature upFlank = new Feature(start-flankLength,start+flankLength,geneName,"NA");
 						flankDict.get(chrom).add(upFlank);
 					}
-					if (i != starts.length-1) {
+					if (i != starts.length-1 && (regions == null || regions.overlaps(chrom, end-flankLength, end+flankLength))) {
 						Feature downFlank = new Feature(end-flankLength,end+flankLength,geneName,"NA");
 						flankDict.get(chrom).add(downFlank);
 					}
@@ -897,7 +2167,7 @@ public class ScorePseudouridinePositions {
 		
 			br.close();
 		} catch (IOException ioex) {
-			System.out.println("Error reading genetable, exiting: " + ioex.getMessage());
+			log.println("Error reading genetable, exiting: " + ioex.getMessage());
 		}
 	}
 
@@ -916,54 +2186,55 @@ public class ScorePseudouridinePositions {
 			
 			br.close();
 		} catch (IOException ioex) {
-			System.out.println("Error reading biomart file, exiting: " + ioex.getMessage());
+			log.println("Error reading biomart file, exiting: " + ioex.getMessage());
 		}
 	}
 	
-	private void readReferenceSequence() {
-		
-		
-		
+	private void readRegions() {
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(referenceFile));
-			String temp = null;
-			Pattern p = Pattern.compile(">(\\S+).*$");
-			String chrom = null;
-			StringBuilder seq = null;
-			while ((temp = br.readLine()) != null) {
-				Matcher m = p.matcher(temp);
-				if (m.matches()) {
-					if (chrom != null) {
-						refSeq.put(chrom, seq.toString());
-					}
-					chrom = m.group(1);
-					seq = new StringBuilder("");
-				} else {
-					seq.append(temp);
+			regions = new Regions(regionsFile);
+			log.println("Restricting the run to " + regions.size() + " regions, " + regions.getBases() + " bases");
+		} catch (IOException ioex) {
+			fail("Error reading regions file, exiting: " + ioex.getMessage());
+		}
+	}
+	
+	/**
+	 * Drops the features that don't overlap a region.
+	 */
+	private void restrictFeatures(HashMap<String,ArrayList<Feature>> dict) {
+		for (String chrom: dict.keySet()) {
+			ArrayList<Feature> kept = new ArrayList<Feature>();
+			for (Feature feature: dict.get(chrom)) {
+				if (regions.overlaps(chrom, feature.getStart(), feature.getEnd())) {
+					kept.add(feature);
 				}
 			}
-			refSeq.put(chrom,seq.toString());
-			br.close();
+			dict.put(chrom, kept);
+		}
+	}
+	
+	private void readReferenceSequence() {
+		try {
+			refSeq = new PackedReference(referenceFile, regions);
+			if (refSeq.getIndexWarning() != null) {
+				log.println(refSeq.getIndexWarning());
+			}
 		} catch (IOException ioex) {
-			System.out.println("Error reading reference fasta file: " + ioex.getMessage());
+			log.println("Error reading reference fasta file: " + ioex.getMessage());
 		}
 	}
 	
 	
-	private void processArgs(String[] args) {
-		CommandLineParser parser = new DefaultParser();
-		
-		//Create options
-		Options options = new Options();
-		options.addOption(Option.builder("a").longOpt("bis").desc("Bisulfite alignment file in bam format.").type(File.class).hasArg().build());
-		options.addOption(Option.builder("b").longOpt("non-bis").desc("Non-bisulfite alignment file in bam format.").type(File.class).hasArg().build());
+	/**
+	 * Adds the options of a single sample: its input, output and thresholds.  These are also the settings a
+	 * server job can carry.
+	 */
+	private void addSampleOptions(Options options) {
+		options.addOption(Option.builder("a").longOpt("bis").desc("Bisulfite alignment file in bam format.  Replicates can be listed separated by commas, their counts are pooled.").hasArgs().valueSeparator(',').build());
+		options.addOption(Option.builder("b").longOpt("non-bis").desc("Non-bisulfite alignment file in bam format.  Replicates can be listed separated by commas, their counts are pooled.").hasArgs().valueSeparator(',').build());
 		options.addOption(Option.builder("c").longOpt("pre-parsed").desc("Preparsed file generated from this program.").type(File.class).hasArg().build());
-		options.addOption(Option.builder("d").longOpt("out-prefix").desc("Output file prefix.").type(File.class).hasArg().required().build());
-		
-		options.addOption(Option.builder("e").longOpt("ann-file").desc("Gene models in ucsc refflat format.").type(File.class).hasArg().required(true).build());
-		options.addOption(Option.builder("f").longOpt("ref-file").desc("Reference file in fasta format.").type(File.class).hasArg().required(true).build());
-		options.addOption(Option.builder("g").longOpt("repbase-file").desc("Repbaes entries in bed format.").type(File.class).hasArg().required(true).build());
-		options.addOption(Option.builder("h").longOpt("biomart-file").desc("Biomart annotations.").type(File.class).hasArg().required(true).build());
+		options.addOption(Option.builder("d").longOpt("out-prefix").desc("Output file prefix.").type(File.class).hasArg().build());
 		
 		options.addOption(Option.builder("i").longOpt("min-del-obs").desc("Minimum deletions in bisulfite sample. Default 5.").type(Number.class).hasArg().build());
 		options.addOption(Option.builder("j").longOpt("min-bis-cov").desc("Minimum coverage in bisulfite sample. Default 5.").type(Number.class).hasArg().build());
@@ -976,8 +2247,44 @@ public class ScorePseudouridinePositions {
 		options.addOption(Option.builder("p").longOpt("p-value").desc("p-value threshold. Collapsed positions greater than this threshold will not be annontated.").type(Number.class).hasArg().build());	
 		options.addOption(Option.builder("q").longOpt("split-thresh").desc("Positions aren't collapsed if the fraction deletion is less than q * max fraction deletion of group. Default 0.5.").type(Number.class).hasArg().build());	
 		options.addOption(Option.builder("r").longOpt("del-dist").desc("Positions within r bp of a NBS deletion are filtered out.").type(Number.class).hasArg().build());	
+		
+		options.addOption(Option.builder("t").longOpt("threads").desc("Number of threads used to parse indexed alignment files, one reference sequence at a time, or to decode a pre-parsed file, and to annotate the deletions. Default 1.").type(Number.class).hasArg().build());	
+		
+		options.addOption(Option.builder("u").longOpt("stream").desc("Score deletion groups as they are parsed and spill them to a temporary file next to the output, instead of keeping every group in memory until parsing is done. The results are the same.").build());
+		options.addOption(Option.builder("v").longOpt("progress-interval").desc("Seconds between progress reports while parsing, 0 turns them off. Default 30.").type(Number.class).hasArg().build());
+	}
+	
+	private void processArgs(String[] args) {
+		CommandLineParser parser = new DefaultParser();
+		
+		//Create options
+		Options options = new Options();
+		addSampleOptions(options);
+		
+		options.addOption(Option.builder("e").longOpt("ann-file").desc("Gene models in ucsc refflat format.").type(File.class).hasArg().required(true).build());
+		options.addOption(Option.builder("f").longOpt("ref-file").desc("Reference file in fasta format.").type(File.class).hasArg().required(true).build());
+		options.addOption(Option.builder("g").longOpt("repbase-file").desc("Repbaes entries in bed format.").type(File.class).hasArg().required(true).build());
+		options.addOption(Option.builder("h").longOpt("biomart-file").desc("Biomart annotations.").type(File.class).hasArg().required(true).build());
+		
 		options.addOption(Option.builder("s").longOpt("flank-dist").desc("Positions within s bp a exon boundary are filtered out.").type(Number.class).hasArg().build());	
 		
+		options.addOption(Option.builder("w").longOpt("batch").desc("Tab delimited manifest of samples to score in one run, replacing -a, -b, -c and -d.  Each line holds the bisulfite alignment, the non-bisulfite alignment or NA, and the output prefix.  "
+				+ "The reference and annotations are loaded once for every sample.").type(File.class).hasArg().build());
+		options.addOption(Option.builder("y").longOpt("batch-parallel").desc("Number of batch samples, server jobs or sweep points scored at the same time, each using the number of threads set by -t. Default 1.").type(Number.class).hasArg().build());
+		
+		options.addOption(Option.builder("z").longOpt("regions").desc("Bed file of target regions.  Only loci within the regions are parsed, their alignments are found through the index, and only the reference "
+				+ "and annotations around them are loaded.").type(File.class).hasArg().build());
+		
+		options.addOption(Option.builder().longOpt("checkpoint").desc("Checkpoint the parse to <out-prefix>.checkpoint after each reference sequence, so a run killed part way and started again with the "
+				+ "same settings skips the sequences it already parsed.  Needs indexed alignment files.  The checkpoint is removed once the run finishes.").build());
+		
+		options.addOption(Option.builder().longOpt("sweep").desc("Grid of thresholds to try on the loci of one parse, one option per line with its values separated by commas, e.g. min-del-obs=3,5,10.  "
+				+ "Every combination is scored as if the run had been made with it, writing <out-prefix>.sweep<n> results and logs, and a table of the combinations to <out-prefix>.sweep.txt.  "
+				+ "The run itself is scored with the command line thresholds as usual.  Options in the grid: " + Arrays.toString(SWEEP_KEYS) + ".").type(File.class).hasArg().build());
+		
+		options.addOption(Option.builder().longOpt("serve").desc("Load the reference and annotations once and score jobs posted to http://127.0.0.1:<port>/jobs, replacing -a, -b, -c and -d.  A job holds the long names of the sample "
+				+ "options and their values, one key=value per line, e.g. bis=, non-bis=, out-prefix= and min-del-obs=.  Port 0 picks a free port.").type(Number.class).hasArg().build());
+		
 		options.addOption("x","help",false,"Print help message and exit");
 		
 		try {
@@ -993,80 +2300,198 @@ public class ScorePseudouridinePositions {
 				System.exit(0);
 			}
 			
-			//Parse input / output files
-			if (line.hasOption("bis")) {
-				bisulfiteAlignment = (File)line.getParsedOptionValue("bis");
-				if (!bisulfiteAlignment.exists()) {
-					System.out.println("Bisulfite alignment file specfied does not exist, exiting.");
-					System.exit(1);
-				}
-			} 
+			//Parse input / output files and sample settings
+			readSampleOptions(line);
 			
-			if (line.hasOption("non-bis")) {
-				nonBisulfiteAlignment = (File)line.getParsedOptionValue("non-bis");
-				if (!nonBisulfiteAlignment.exists()) {
-					System.out.println("Non-bisulfite alignment file specfied does not exist, exiting.");
-					System.exit(1);
+			if (line.hasOption("serve")) {
+				serverPort = ((Number)line.getParsedOptionValue("serve")).intValue();
+				if (serverPort < 0 || serverPort > 65535) {
+					fail("Server port must be between 0 and 65535, exiting.");
 				}
-			} 
-			
-			if (line.hasOption("pre-parsed")) {
-				preParsedFile = (File)line.getParsedOptionValue("pre-parsed");
-				if (!preParsedFile.exists()) {
-					System.out.println("Pre-parsed file specfied does not exist, exiting.");
-					System.exit(1);
+				if (bisulfiteAlignments != null || nonBisulfiteAlignments != null || preParsedFile != null || outputPrefix != null || line.hasOption("batch")) {
+					fail("The server takes its samples from jobs, not from the alignment, pre-parsed, output prefix or batch options, exiting.");
 				}
-			} 
-			
-			if (bisulfiteAlignment == null && preParsedFile == null) {
-				System.out.println("Neither the bisuflite alignment file or alignment file were specified, exiting");
-				System.exit(1);
+			} else if (line.hasOption("batch")) {
+				batchManifest = (File)line.getParsedOptionValue("batch");
+				if (!batchManifest.exists()) {
+					fail("Batch manifest specfied does not exist, exiting.");
+				}
+				if (bisulfiteAlignments != null || nonBisulfiteAlignments != null || preParsedFile != null || outputPrefix != null) {
+					fail("The batch manifest replaces the alignment, pre-parsed and output prefix options, exiting.");
+				}
+			} else if (bisulfiteAlignments == null && preParsedFile == null) {
+				fail("Neither the bisuflite alignment file or alignment file were specified, exiting");
+			} else if (outputPrefix == null) {
+				throw new MissingOptionException("Missing required option: d");
 			}
 			
 			//Parse references
-			outputPrefix = (File)line.getParsedOptionValue("out-prefix");
 			referenceFile = (File)line.getParsedOptionValue("ref-file");
 			biomartFile = (File)line.getParsedOptionValue("biomart-file");
 			ucscFile = (File)line.getParsedOptionValue("ann-file");
 			repbaseFile = (File)line.getParsedOptionValue("repbase-file");
 			
-			//Parse optional settings
-			if (line.hasOption("min-del-obs")) {
-				minBsDel = (Integer)line.getParsedOptionValue("min-del-obs");
+			if (line.hasOption("checkpoint")) {
+				checkpoint = true;
 			}
-			if (line.hasOption("min-bis-cov")) {
-				minBsCov = (Integer)line.getParsedOptionValue("min-bis-cov");
+			if (line.hasOption("sweep")) {
+				sweepFile = (File)line.getParsedOptionValue("sweep");
+				if (!sweepFile.exists()) {
+					fail("Sweep grid specfied does not exist, exiting.");
+				}
+				if (checkpoint || line.hasOption("batch") || line.hasOption("serve")) {
+					fail("The sweep can't be combined with checkpoints, a batch or the server, exiting.");
+				}
 			}
-			if (line.hasOption("min-bs-frac")) {
-				minBsFrac = (Double)line.getParsedOptionValue("min-bs-frac");
+			if (line.hasOption("flank-dist")) {
+				flankLength = ((Number)line.getParsedOptionValue("flank-dist")).intValue();
+			}
+			if (line.hasOption("regions")) {
+				regionsFile = (File)line.getParsedOptionValue("regions");
+				if (!regionsFile.exists()) {
+					fail("Regions file specfied does not exist, exiting.");
+				}
 			}
-			if (line.hasOption("min-nbs-cov")) {
-				minNbsCov = (Integer)line.getParsedOptionValue("min-nbs-cov");
+			if (line.hasOption("batch-parallel")) {
+				batchParallel = ((Number)line.getParsedOptionValue("batch-parallel")).intValue();
+				if (batchParallel < 1) {
+					fail("Number of batch samples scored at the same time must be at least 1, exiting.");
+				}
 			}
-			if (line.hasOption("max-nbs-frac")) {
-				maxNbsFrac = (Double)line.getParsedOptionValue("max-nbs-frac");
+		} catch (ParseException exp) {
+			log.println("Error parsing command line arguments: " + exp.getMessage());
+			printHelp(options);
+			throw new ScoringException(exp.getMessage());
+		}
+	
+	}
+	
+	/**
+	 * Reads the input and output files and the thresholds of a sample, failing on missing files or settings out
+	 * of range.
+	 */
+	private void readSampleOptions(CommandLine line) throws ParseException {
+		if (line.hasOption("bis")) {
+			bisulfiteAlignments = toFiles(line.getOptionValues("bis"));
+			for (File bisulfiteAlignment: bisulfiteAlignments) {
+				if (!bisulfiteAlignment.exists()) {
+					fail("Bisulfite alignment file specfied does not exist, exiting: " + bisulfiteAlignment.getPath());
+				}
 			}
-			if (line.hasOption("homopolymer")) {
-				hpLength = (Integer)line.getParsedOptionValue("homopolymer");
+			checkReplicates(bisulfiteAlignments);
+		} 
+		
+		if (line.hasOption("non-bis")) {
+			nonBisulfiteAlignments = toFiles(line.getOptionValues("non-bis"));
+			for (File nonBisulfiteAlignment: nonBisulfiteAlignments) {
+				if (!nonBisulfiteAlignment.exists()) {
+					fail("Non-bisulfite alignment file specfied does not exist, exiting: " + nonBisulfiteAlignment.getPath());
+				}
 			}
-			if (line.hasOption("error-rate")) {
-				errorRate = (Double)line.getParsedOptionValue("error-rate");
+			checkReplicates(nonBisulfiteAlignments);
+		} 
+		
+		if (line.hasOption("pre-parsed")) {
+			preParsedFile = (File)line.getParsedOptionValue("pre-parsed");
+			if (!preParsedFile.exists()) {
+				fail("Pre-parsed file specfied does not exist, exiting.");
 			}
-			if (line.hasOption("p-value")) {
-				pval = (Float)line.getParsedOptionValue("p-value");
+		} 
+		
+		if (line.hasOption("out-prefix")) {
+			outputPrefix = (File)line.getParsedOptionValue("out-prefix");
+		}
+		
+		//Parse optional settings
+		if (line.hasOption("min-del-obs")) {
+			minBsDel = ((Number)line.getParsedOptionValue("min-del-obs")).intValue();
+		}
+		if (line.hasOption("min-bis-cov")) {
+			minBsCov = ((Number)line.getParsedOptionValue("min-bis-cov")).intValue();
+		}
+		if (line.hasOption("min-bs-frac")) {
+			minBsFrac = ((Number)line.getParsedOptionValue("min-bs-frac")).doubleValue();
+		}
+		if (line.hasOption("min-nbs-cov")) {
+			minNbsCov = ((Number)line.getParsedOptionValue("min-nbs-cov")).intValue();
+		}
+		if (line.hasOption("max-nbs-frac")) {
+			maxNbsFrac = ((Number)line.getParsedOptionValue("max-nbs-frac")).doubleValue();
+		}
+		if (line.hasOption("homopolymer")) {
+			hpLength = ((Number)line.getParsedOptionValue("homopolymer")).intValue();
+		}
+		if (line.hasOption("error-rate")) {
+			errorRate = ((Number)line.getParsedOptionValue("error-rate")).doubleValue();
+		}
+		if (line.hasOption("p-value")) {
+			pval = ((Number)line.getParsedOptionValue("p-value")).floatValue();
+		}
+		if (line.hasOption("split-thresh")) {
+			splitThresh = ((Number)line.getParsedOptionValue("split-thresh")).doubleValue();
+		}
+		if (line.hasOption("del-dist")) {
+			delDistance = ((Number)line.getParsedOptionValue("del-dist")).intValue();
+		}
+		if (line.hasOption("threads")) {
+			threads = ((Number)line.getParsedOptionValue("threads")).intValue();
+			if (threads < 1) {
+				fail("Number of threads must be at least 1, exiting.");
 			}
-			if (line.hasOption("split-thresh")) {
-				splitThresh = (Integer)line.getParsedOptionValue("split-thresh");
+		}
+		if (line.hasOption("stream")) {
+			stream = true;
+		}
+		if (line.hasOption("progress-interval")) {
+			progressInterval = ((Number)line.getParsedOptionValue("progress-interval")).intValue();
+			if (progressInterval < 0) {
+				fail("Progress interval can't be negative, exiting.");
 			}
-			
-			
-				
-		} catch (ParseException exp) {
-			System.out.println("Error parsing command line arguments: " + exp.getMessage());
-			printHelp(options);
-			System.exit(1);
 		}
+	}
+	
+	/**
+	 * Logs the message and stops the run.  The command line then exits with an error, while a batch sample or
+	 * server job fails without taking the others down.
+	 */
+	private void fail(String message) {
+		log.println(message);
+		throw new ScoringException(message);
+	}
+	
+	private static File[] toFiles(String[] paths) {
+		File[] files = new File[paths.length];
+		for (int i=0; i<paths.length; i++) {
+			files[i] = new File(paths[i]);
+		}
+		return files;
+	}
 	
+	/**
+	 * Replicates are merged by sequence dictionary index, so they must list the same sequences in the same order.
+	 */
+	private void checkReplicates(File[] alignments) {
+		List<SAMSequenceRecord> first = null;
+		for (File alignment: alignments) {
+			try {
+				SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(alignment);
+				List<SAMSequenceRecord> sequences = sr.getFileHeader().getSequenceDictionary().getSequences();
+				sr.close();
+				if (first == null) {
+					first = sequences;
+					continue;
+				}
+				boolean same = sequences.size() == first.size();
+				for (int i=0; same && i<sequences.size(); i++) {
+					same = sequences.get(i).getSequenceName().equals(first.get(i).getSequenceName());
+				}
+				if (!same) {
+					fail("Replicate alignment files don't share a sequence dictionary, exiting: " + alignments[0].getPath() + " " + alignment.getPath());
+				}
+			} catch (IOException ioex) {
+				fail("Error reading alignment file header, exiting: " + ioex.getMessage());
+			}
+		}
 	}
 	
 	private void printHelp(Options options) {
@@ -0,0 +1,13 @@
+package rbsseq;
+
+/**
+ * Stops a scoring run on an error that has already been logged.  The command line exits with an error code,
+ * while a batch sample or server job fails without ending the process.
+ */
+class ScoringException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public ScoringException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,287 @@
+package rbsseq;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Scores jobs posted over HTTP against the reference and annotations loaded once at startup, so a job doesn't
+ * pay the load again.  The server only listens on the loopback interface.  A job is a properties body of
+ * sample settings, see the job constructor of ScorePseudouridinePositions.  Jobs run on a fixed number of
+ * threads behind a bounded queue, and a failed job only fails itself.  Only the last FINISHED_KEPT finished or
+ * failed jobs are kept, older ones are dropped as new jobs come in.
+ *
+ * POST /jobs        submits a job, answers 202 with its id, 400 on invalid settings, 503 when the queue is full
+ * GET  /jobs        one tab separated line per job: id, state, stage, loci, reads and output prefix
+ * GET  /jobs/<id>   state, stage, progress and result of a job as properties
+ * POST /shutdown    stops taking jobs, the queued and running ones are finished
+ */
+class ScoringServer {
+	private static final int QUEUE_SIZE = 64;
+	private static final int FINISHED_KEPT = 256;
+
+	private ScorePseudouridinePositions shared;
+	private HttpServer server;
+	private ThreadPoolExecutor pool;
+	private TreeMap<Integer,Job> jobs = new TreeMap<Integer,Job>();
+	private int nextId = 1;
+	private CountDownLatch shutdown = new CountDownLatch(1);
+
+	/**
+	 * Starts listening on the port of the loopback interface, 0 picks a free port, scoring the given number of
+	 * jobs at a time.
+	 */
+	public ScoringServer(ScorePseudouridinePositions shared, int port, int parallel) throws IOException {
+		this.shared = shared;
+		pool = new ThreadPoolExecutor(parallel, parallel, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE));
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/jobs", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleJobs(exchange);
+			}
+		});
+		server.createContext("/shutdown", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!exchange.getRequestMethod().equals("POST")) {
+					respond(exchange, 405, "Use POST\n");
+					return;
+				}
+				respond(exchange, 200, "Shutting down\n");
+				shutdown.countDown();
+			}
+		});
+		server.start();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Waits for a shutdown request, then stops listening and waits for the submitted jobs to finish.
+	 */
+	public void awaitShutdown() throws InterruptedException {
+		shutdown.await();
+		server.stop(1);
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+	}
+
+	private void handleJobs(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		String method = exchange.getRequestMethod();
+		if (path.equals("/jobs") || path.equals("/jobs/")) {
+			if (method.equals("POST")) {
+				submit(exchange);
+			} else if (method.equals("GET")) {
+				respond(exchange, 200, listJobs());
+			} else {
+				respond(exchange, 405, "Use GET or POST\n");
+			}
+			return;
+		}
+
+		Job job = null;
+		try {
+			job = getJob(Integer.parseInt(path.substring("/jobs/".length())));
+		} catch (NumberFormatException nfex) {
+			//Not a job id
+		}
+		if (job == null) {
+			respond(exchange, 404, "No such job\n");
+		} else if (!method.equals("GET")) {
+			respond(exchange, 405, "Use GET\n");
+		} else {
+			respond(exchange, 200, job.describe());
+		}
+	}
+
+	/**
+	 * Creates a job from the posted settings and queues it.  Settings are checked, and the input files are
+	 * looked at, before the job is accepted.
+	 */
+	private void submit(HttpExchange exchange) throws IOException {
+		Properties settings = new Properties();
+		InputStreamReader body = new InputStreamReader(exchange.getRequestBody(), "UTF-8");
+		settings.load(body);
+		body.close();
+
+		ScorePseudouridinePositions run;
+		try {
+			run = new ScorePseudouridinePositions(shared, settings);
+		} catch (ScoringException sex) {
+			respond(exchange, 400, sex.getMessage() + "\n");
+			return;
+		}
+
+		Job job;
+		synchronized (this) {
+			job = new Job(nextId, run);
+			try {
+				pool.execute(job);
+			} catch (RejectedExecutionException reex) {
+				run.closeLog();
+				respond(exchange, 503, "Job queue is full or the server is shutting down\n");
+				return;
+			}
+			jobs.put(nextId++, job);
+			evictFinished();
+		}
+		System.out.println("Job " + job.id + " queued: " + job.outputPrefix);
+		respond(exchange, 202, "id=" + job.id + "\n");
+	}
+
+	/**
+	 * Drops the oldest finished and failed jobs beyond FINISHED_KEPT.
+	 */
+	private synchronized void evictFinished() {
+		int finished = 0;
+		for (Job job: jobs.values()) {
+			if (job.isDone()) {
+				finished++;
+			}
+		}
+		Iterator<Job> it = jobs.values().iterator();
+		while (finished > FINISHED_KEPT && it.hasNext()) {
+			if (it.next().isDone()) {
+				it.remove();
+				finished--;
+			}
+		}
+	}
+	
+	private synchronized Job getJob(int id) {
+		return jobs.get(id);
+	}
+
+	private synchronized String listJobs() {
+		StringBuilder sb = new StringBuilder();
+		for (Job job: jobs.values()) {
+			String[] progress = job.progress();
+			sb.append(job.id + "\t" + job.state + "\t" + progress[0] + "\t" + progress[1] + "\t" + progress[2] + "\t" + job.outputPrefix + "\n");
+		}
+		return sb.toString();
+	}
+
+	private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(bytes);
+		os.close();
+	}
+
+	/**
+	 * A submitted sample.  The scoring instance is dropped once the job is done, so its containers can be
+	 * collected, and only the result is kept.
+	 */
+	private static class Job implements Runnable {
+		private int id;
+		private String outputPrefix;
+		private volatile ScorePseudouridinePositions run;
+		private volatile String state = "queued";
+		private volatile String message = "";
+		private volatile int passed = -1;
+		private volatile long loci = 0;
+		private volatile long reads = 0;
+		//nanoTime can be zero or negative, so whether the job started and finished is kept apart from the times
+		private volatile boolean hasStarted = false;
+		private volatile boolean hasFinished = false;
+		private volatile long started = 0;
+		private volatile long finished = 0;
+
+		public Job(int id, ScorePseudouridinePositions run) {
+			this.id = id;
+			this.run = run;
+			this.outputPrefix = run.getOutputPrefix().getPath();
+		}
+
+		public void run() {
+			started = System.nanoTime();
+			hasStarted = true;
+			state = "running";
+			try {
+				run.scoreSample();
+				passed = run.getQvaluePassed();
+				state = "finished";
+			} catch (ScoringException sex) {
+				message = sex.getMessage();
+			} catch (RuntimeException rex) {
+				message = rex.toString();
+			} finally {
+				ProgressReporter progress = run.getProgress();
+				if (progress != null) {
+					loci = progress.getLoci();
+					reads = progress.getReads();
+				}
+				run.closeLog();
+				run = null;
+				finished = System.nanoTime();
+				hasFinished = true;
+				if (!state.equals("finished")) {
+					state = "failed";
+				}
+				System.out.println("Job " + id + " " + state + (message.length() > 0 ? ": " + message : ""));
+			}
+		}
+
+		public boolean isDone() {
+			return state.equals("finished") || state.equals("failed");
+		}
+		
+		/**
+		 * Stage, loci and reads of the job, live while it runs.
+		 */
+		public String[] progress() {
+			ScorePseudouridinePositions current = run;
+			if (current != null && current.getProgress() != null) {
+				String stage = current.getStage();
+				return new String[] {stage == null ? "NA" : stage, String.valueOf(current.getProgress().getLoci()),
+						String.valueOf(current.getProgress().getReads())};
+			}
+			return new String[] {"NA", String.valueOf(loci), String.valueOf(reads)};
+		}
+
+		public String describe() {
+			String[] progress = progress();
+			ArrayList<String> lines = new ArrayList<String>();
+			lines.add("id=" + id);
+			lines.add("state=" + state);
+			lines.add("stage=" + progress[0]);
+			lines.add("loci=" + progress[1]);
+			lines.add("reads=" + progress[2]);
+			lines.add("outPrefix=" + outputPrefix);
+			if (message.length() > 0) {
+				lines.add("message=" + message.replace('\n', ' '));
+			}
+			if (passed >= 0) {
+				lines.add("qvaluePassed=" + passed);
+			}
+			if (hasStarted) {
+				long end = hasFinished ? finished : System.nanoTime();
+				lines.add(String.format("seconds=%.1f", (end - started) / 1e9));
+			}
+			StringBuilder sb = new StringBuilder();
+			for (String line: lines) {
+				sb.append(line).append("\n");
+			}
+			return sb.toString();
+		}
+	}
+}
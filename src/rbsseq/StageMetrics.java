@@ -0,0 +1,278 @@
+package rbsseq;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wall time, CPU time, allocated bytes and peak heap of each stage of a run, written to a JSON file so a
+ * scheduler can size jobs.  CPU time is the time of the whole process.  Allocated bytes are summed over the
+ * threads alive at the end of a stage, plus the worker threads that exited during it.  Worker pools are
+ * created with the thread factories below, so each worker adds what it allocated to the total of exited
+ * workers as it exits.  Peak heap is the sum of the peaks of the heap memory pools during the stage, which can be somewhat higher
+ * than the actual peak.
+ */
+class StageMetrics {
+	private ArrayList<String> names = new ArrayList<String>();
+	private ArrayList<long[]> values = new ArrayList<long[]>();
+	private ArrayList<String> summaryKeys = new ArrayList<String>();
+	private ArrayList<String> summaryValues = new ArrayList<String>();
+	
+	private volatile String stage = null;
+	private long startWall;
+	private long startCpu;
+	private HashMap<Long,Long> startAllocated;
+	private long runStart = System.nanoTime();
+	private long startExited;
+	private HashMap<Long,Long> startWorkers;
+	
+	//Ids of the live counted worker threads, and the bytes allocated by the ones that exited
+	private static final Set<Long> WORKERS = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+	private static final LongAdder EXITED_BYTES = new LongAdder();
+	
+	/**
+	 * Starts timing a stage, finishing the running stage first.
+	 */
+	public void start(String name) {
+		finish();
+		stage = name;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+		startWall = System.nanoTime();
+		startCpu = processCpuTime();
+		startExited = EXITED_BYTES.sum();
+		startAllocated = allocatedBytes();
+		startWorkers = new HashMap<Long,Long>();
+		if (startAllocated != null) {
+			for (Long id: startAllocated.keySet()) {
+				if (WORKERS.contains(id)) {
+					startWorkers.put(id, startAllocated.get(id));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Finishes the running stage, if there is one.
+	 */
+	public void finish() {
+		if (stage == null) {
+			return;
+		}
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+		long cpu = processCpuTime();
+		long allocated = -1;
+		HashMap<Long,Long> endAllocated = allocatedBytes();
+		if (startAllocated != null && endAllocated != null) {
+			allocated = EXITED_BYTES.sum() - startExited;
+			for (Long id: endAllocated.keySet()) {
+				Long start = startAllocated.get(id);
+				allocated += endAllocated.get(id) - (start == null ? 0 : start);
+			}
+			//Workers that exited during the stage added all they allocated, including what came before it
+			for (Long id: startWorkers.keySet()) {
+				if (!endAllocated.containsKey(id)) {
+					allocated -= startWorkers.get(id);
+				}
+			}
+		}
+		names.add(stage);
+		values.add(new long[] {(System.nanoTime() - startWall) / 1000000, cpu < 0 ? -1 : (cpu - startCpu) / 1000000,
+				allocated, peakHeap});
+		stage = null;
+	}
+	
+	/**
+	 * Name of the running stage, or null between stages.
+	 */
+	public String getStage() {
+		return stage;
+	}
+	
+	/**
+	 * Adds a value to the top level of the JSON file.
+	 */
+	public void addValue(String key, long value) {
+		summaryKeys.add(key);
+		summaryValues.add(String.valueOf(value));
+	}
+	
+	public void addValue(String key, boolean value) {
+		summaryKeys.add(key);
+		summaryValues.add(String.valueOf(value));
+	}
+	
+	public void addValue(String key, String value) {
+		summaryKeys.add(key);
+		summaryValues.add(quote(value));
+	}
+	
+	/**
+	 * Finishes the running stage and writes the stages and values.
+	 */
+	public void writeJson(File file) throws IOException {
+		finish();
+		BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+		bw.write("{\n");
+		for (int i=0; i<summaryKeys.size(); i++) {
+			bw.write("  " + quote(summaryKeys.get(i)) + ": " + summaryValues.get(i) + ",\n");
+		}
+		bw.write("  \"wallMs\": " + (System.nanoTime() - runStart) / 1000000 + ",\n");
+		bw.write("  \"stages\": [");
+		for (int i=0; i<names.size(); i++) {
+			long[] v = values.get(i);
+			bw.write(i == 0 ? "\n" : ",\n");
+			bw.write("    {\"name\": " + quote(names.get(i)) + ", \"wallMs\": " + v[0] + ", \"cpuMs\": " + v[1] 
+					+ ", \"allocatedBytes\": " + v[2] + ", \"peakHeapBytes\": " + v[3] + "}");
+		}
+		bw.write("\n  ]\n}\n");
+		bw.close();
+	}
+	
+	private static String quote(String value) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int)c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+	
+	/**
+	 * CPU time of the process in nanoseconds, or -1 if the JVM doesn't report it.
+	 */
+	private static long processCpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		}
+		return -1;
+	}
+	
+	/**
+	 * Thread factory for worker pools, whose threads add what they allocated to the stage they exit in.
+	 */
+	public static ThreadFactory countedThreads(final boolean daemon) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(counted(r));
+				thread.setDaemon(daemon);
+				return thread;
+			}
+		};
+	}
+	
+	/**
+	 * Fork-join thread factory whose threads add what they allocated to the stage they exit in.
+	 */
+	public static ForkJoinPool.ForkJoinWorkerThreadFactory countedForkJoinThreads() {
+		return new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				return new CountedForkJoinThread(pool);
+			}
+		};
+	}
+	
+	/**
+	 * Wraps the body of a thread so what it allocated is counted once it exits.
+	 */
+	public static Runnable counted(final Runnable r) {
+		return new Runnable() {
+			public void run() {
+				workerStarted();
+				try {
+					r.run();
+				} finally {
+					workerExiting();
+				}
+			}
+		};
+	}
+	
+	private static void workerStarted() {
+		WORKERS.add(Thread.currentThread().getId());
+	}
+	
+	private static void workerExiting() {
+		long id = Thread.currentThread().getId();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean)threads;
+			if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+				long bytes = sunThreads.getThreadAllocatedBytes(id);
+				if (bytes >= 0) {
+					EXITED_BYTES.add(bytes);
+				}
+			}
+		}
+		WORKERS.remove(id);
+	}
+	
+	private static class CountedForkJoinThread extends ForkJoinWorkerThread {
+		public CountedForkJoinThread(ForkJoinPool pool) {
+			super(pool);
+		}
+		
+		protected void onStart() {
+			super.onStart();
+			workerStarted();
+		}
+		
+		protected void onTermination(Throwable exception) {
+			workerExiting();
+			super.onTermination(exception);
+		}
+	}
+	
+	/**
+	 * Bytes allocated so far by each live thread, by thread id, or null if the JVM doesn't report them.
+	 */
+	private static HashMap<Long,Long> allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return null;
+		}
+		com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean)threads;
+		if (!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled()) {
+			return null;
+		}
+		long[] ids = threads.getAllThreadIds();
+		long[] bytes = sunThreads.getThreadAllocatedBytes(ids);
+		HashMap<Long,Long> allocated = new HashMap<Long,Long>();
+		for (int i=0; i<ids.length; i++) {
+			if (bytes[i] >= 0) {
+				allocated.put(ids[i], bytes[i]);
+			}
+		}
+		return allocated;
+	}
+}
@@ -0,0 +1,290 @@
+package rbsseq;
+
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+
+/**
+ * Per-strand base and deletion counts for every position of the reference, built directly from the
+ * alignments.  Each record's CIGAR is walked once, adding into a circular window of counters that starts at
+ * the position being reported, so no per-locus objects are created.  The counts match the ones
+ * SamLocusIterator reports for CreateMethTable: secondary, supplementary, duplicate and unmapped reads are
+ * skipped, bases other than A, C, G, T and N are not counted but tallied, see getOtherBases, and deletions are counted for every
+ * reference position between two aligned blocks (D and N operators), but not before the first or after the
+ * last block.  Every position of the sequences, or of the given intervals, is reported, covered or not.
+ */
+class StrandPileup {
+	//Counters per position: forward A,C,G,T,N, reverse A,C,G,T,N, deletions
+	private static final int FIELDS = 11;
+	private static final int DELETIONS = 10;
+	private static final int INITIAL_WINDOW = 1 << 12;
+
+	private SAMRecordIterator records;
+	private List<SAMSequenceRecord> sequences;
+	private SAMRecord nextRecord = null;
+
+	//Intervals reported, and the current one
+	private QueryInterval[] intervals;
+	private int interval = -1;
+	private int intervalEnd = 0;
+	private int sequence = -1;
+	private String sequenceName;
+	private int position = 0;
+
+	private int[] window = new int[INITIAL_WINDOW * FIELDS];
+	private int windowMask = INITIAL_WINDOW - 1;
+
+	private int[] forward = new int[5];
+	private int[] reverse = new int[5];
+	private int deletions = 0;
+	//Aligned bases other than A, C, G, T and N, which aren't counted
+	private long otherBases = 0;
+
+	/**
+	 * Reports every position of every sequence in the alignment header.
+	 */
+	public StrandPileup(SamReader sr) {
+		checkSortOrder(sr.getFileHeader());
+		this.sequences = sr.getFileHeader().getSequenceDictionary().getSequences();
+		this.records = sr.iterator();
+		this.intervals = new QueryInterval[sequences.size()];
+		for (int i=0; i<sequences.size(); i++) {
+			intervals[i] = new QueryInterval(i, 1, sequences.get(i).getSequenceLength());
+		}
+		advanceRecord();
+	}
+
+	/**
+	 * Reports every position of a single sequence, using the index to find its alignments.
+	 */
+	public StrandPileup(SamReader sr, String sequenceName) {
+		checkSortOrder(sr.getFileHeader());
+		this.sequences = sr.getFileHeader().getSequenceDictionary().getSequences();
+		SAMSequenceRecord ssr = sr.getFileHeader().getSequenceDictionary().getSequence(sequenceName);
+		this.records = sr.queryOverlapping(sequenceName, 1, ssr.getSequenceLength());
+		this.intervals = new QueryInterval[]{new QueryInterval(ssr.getSequenceIndex(), 1, ssr.getSequenceLength())};
+		advanceRecord();
+	}
+
+	/**
+	 * Reports every position of the intervals, using the index to find their alignments.  The intervals must
+	 * be sorted, not overlap and lie within their sequences, as returned by Regions.getQueryIntervals.
+	 */
+	public StrandPileup(SamReader sr, QueryInterval[] intervals) {
+		checkSortOrder(sr.getFileHeader());
+		this.sequences = sr.getFileHeader().getSequenceDictionary().getSequences();
+		this.records = sr.queryOverlapping(intervals);
+		this.intervals = intervals;
+		advanceRecord();
+	}
+
+	private void checkSortOrder(SAMFileHeader header) {
+		SAMFileHeader.SortOrder order = header.getSortOrder();
+		if (order != null && order != SAMFileHeader.SortOrder.unsorted && order != SAMFileHeader.SortOrder.coordinate) {
+			throw new SAMException("StrandPileup cannot operate on a SAM file that is not coordinate sorted.");
+		}
+	}
+
+	/**
+	 * Moves to the next position, returns false once every position has been reported.
+	 */
+	public boolean next() {
+		position++;
+		while (position > intervalEnd) {
+			if (interval + 1 >= intervals.length) {
+				return false;
+			}
+			startInterval(intervals[++interval]);
+		}
+
+		while (nextRecord != null && nextRecord.getReferenceIndex() == sequence && nextRecord.getAlignmentStart() <= position) {
+			accumulate(nextRecord);
+			advanceRecord();
+		}
+
+		int slot = (position & windowMask) * FIELDS;
+		for (int i=0; i<5; i++) {
+			forward[i] = window[slot + i];
+			reverse[i] = window[slot + 5 + i];
+		}
+		deletions = window[slot + DELETIONS];
+		for (int i=0; i<FIELDS; i++) {
+			window[slot + i] = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Moves to the first position of the next interval.  Counts of a finished sequence and counts of the
+	 * positions skipped between two intervals are dropped.
+	 */
+	private void startInterval(QueryInterval next) {
+		if (next.referenceIndex != sequence) {
+			//Alignments past the end of the sequence aren't reported
+			while (nextRecord != null && nextRecord.getReferenceIndex() < next.referenceIndex) {
+				advanceRecord();
+			}
+			if (sequence != -1) {
+				Arrays.fill(window, 0);
+			}
+			sequence = next.referenceIndex;
+			sequenceName = sequences.get(sequence).getSequenceName();
+		} else {
+			//The window only holds counts up to windowMask positions past the last reported one
+			int end = Math.min(next.start, position + windowMask);
+			for (int p=position; p<end; p++) {
+				Arrays.fill(window, (p & windowMask) * FIELDS, (p & windowMask) * FIELDS + FIELDS, 0);
+			}
+		}
+		position = next.start;
+		intervalEnd = next.end;
+	}
+
+	/**
+	 * Reads ahead to the next usable alignment.  Reading stops at the first alignment without a reference.
+	 */
+	private void advanceRecord() {
+		nextRecord = null;
+		while (records.hasNext()) {
+			SAMRecord record = records.next();
+			if (record.isSecondaryOrSupplementary() || record.getDuplicateReadFlag()) {
+				continue;
+			}
+			if (record.getReferenceIndex() == -1) {
+				return;
+			}
+			if (record.getReadUnmappedFlag()) {
+				continue;
+			}
+			nextRecord = record;
+			return;
+		}
+	}
+
+	/**
+	 * Adds the counts of an alignment from the current position on.  An alignment that starts earlier, at the
+	 * start of an interval, only counts from the current position.
+	 */
+	private void accumulate(SAMRecord record) {
+		ensureWindow(record.getAlignmentEnd() - position + 1);
+		int first = position;
+
+		int offset = record.getReadNegativeStrandFlag() ? 5 : 0;
+		byte[] bases = record.getReadBases();
+		Cigar cigar = record.getCigar();
+		int refPos = record.getAlignmentStart();
+		int readPos = 0;
+		int blockEnd = -1;
+		for (CigarElement ce: cigar.getCigarElements()) {
+			int length = ce.getLength();
+			switch (ce.getOperator()) {
+				case M:
+				case EQ:
+				case X:
+					//Everything between the previous block and this one counts as deleted
+					if (blockEnd != -1) {
+						for (int p=Math.max(blockEnd, first); p<refPos; p++) {
+							window[(p & windowMask) * FIELDS + DELETIONS]++;
+						}
+					}
+					for (int i=Math.max(0, first - refPos); i<length; i++) {
+						int slot = ((refPos + i) & windowMask) * FIELDS + offset;
+						char base = (char)bases[readPos + i];
+						switch (base) {
+							case 'A': window[slot]++; break;
+							case 'C': window[slot + 1]++; break;
+							case 'G': window[slot + 2]++; break;
+							case 'T': window[slot + 3]++; break;
+							case 'N': window[slot + 4]++; break;
+							default: otherBases++;
+						}
+					}
+					refPos += length;
+					readPos += length;
+					blockEnd = refPos;
+					break;
+				case D:
+				case N:
+					refPos += length;
+					break;
+				case I:
+				case S:
+					readPos += length;
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Grows the window so it holds the given number of positions starting at the current position.
+	 */
+	private void ensureWindow(int span) {
+		int size = windowMask + 1;
+		if (span <= size) {
+			return;
+		}
+		int newSize = size;
+		while (newSize < span) {
+			newSize *= 2;
+		}
+		int newMask = newSize - 1;
+		int[] newWindow = new int[newSize * FIELDS];
+		for (int p=position; p<position + size; p++) {
+			System.arraycopy(window, (p & windowMask) * FIELDS, newWindow, (p & newMask) * FIELDS, FIELDS);
+		}
+		window = newWindow;
+		windowMask = newMask;
+	}
+
+	public void close() {
+		records.close();
+	}
+
+	public int getSequenceIndex() {
+		return sequence;
+	}
+
+	public String getSequenceName() {
+		return sequenceName;
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * A, C, G, T and N counts of forward strand reads at the current position.  The array is reused.
+	 */
+	public int[] getForward() {
+		return forward;
+	}
+
+	/**
+	 * A, C, G, T and N counts of reverse strand reads at the current position.  The array is reused.
+	 */
+	public int[] getReverse() {
+		return reverse;
+	}
+
+	public int getDeletionCount() {
+		return deletions;
+	}
+
+	/**
+	 * Number of aligned bases other than A, C, G, T and N seen so far, which were left out of the counts.
+	 */
+	public long getOtherBases() {
+		return otherBases;
+	}
+}
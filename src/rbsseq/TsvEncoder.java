@@ -0,0 +1,171 @@
+package rbsseq;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Buffered writer for tab separated records.  Fields are encoded straight into a reused byte buffer, so
+ * writing a record doesn't allocate.  Doubles are written with the same text as String.format("%f"), the
+ * handful of values that can't be encoded exactly on the fast path are handed to String.format.
+ */
+class TsvEncoder {
+	private static final int BUFFER_SIZE = 1 << 16;
+	//Longest field that is encoded without checking the buffer: a formatted double below MAX_FAST_DOUBLE
+	private static final int MAX_FIELD = 32;
+	private static final double MAX_FAST_DOUBLE = 1e8;
+	//Scaled values within this many ulps of a rounding half could round differently from String.format, which
+	//rounds the shortest decimal of the value rather than its binary value times a million
+	private static final double ROUNDING_ULPS = 4;
+	//Only use the fast path when the default locale formats numbers like the US locale
+	private static final boolean PLAIN_LOCALE = isPlainLocale();
+
+	private OutputStream os;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int length = 0;
+	private byte[] digits = new byte[20];
+
+	//Chromosome names repeat on every line, the bytes of the last name are cached
+	private String lastString = null;
+	private byte[] lastBytes = null;
+
+	public TsvEncoder(OutputStream os) {
+		this.os = os;
+	}
+
+	public TsvEncoder writeString(String value) throws IOException {
+		if (value != lastString && !value.equals(lastString)) {
+			lastBytes = new byte[value.length()];
+			for (int i=0; i<value.length(); i++) {
+				lastBytes[i] = (byte)value.charAt(i);
+			}
+		}
+		lastString = value;
+		writeBytes(lastBytes);
+		return this;
+	}
+
+	/**
+	 * Writes a string that changes from line to line, such as a status or base, without caching its bytes.
+	 * Only ASCII strings are supported.
+	 */
+	public TsvEncoder writeAscii(String value) throws IOException {
+		if (value.length() > BUFFER_SIZE) {
+			flushBuffer();
+			os.write(value.getBytes("US-ASCII"));
+			return this;
+		}
+		ensureCapacity(value.length());
+		for (int i=0; i<value.length(); i++) {
+			buffer[length++] = (byte)value.charAt(i);
+		}
+		return this;
+	}
+
+	public TsvEncoder writeBytes(byte[] value) throws IOException {
+		if (value.length > BUFFER_SIZE - length) {
+			flushBuffer();
+			if (value.length > BUFFER_SIZE) {
+				os.write(value);
+				return this;
+			}
+		}
+		System.arraycopy(value, 0, buffer, length, value.length);
+		length += value.length;
+		return this;
+	}
+
+	public TsvEncoder writeChar(char value) throws IOException {
+		ensureCapacity(1);
+		buffer[length++] = (byte)value;
+		return this;
+	}
+
+	public TsvEncoder tab() throws IOException {
+		return writeChar('\t');
+	}
+
+	public TsvEncoder newLine() throws IOException {
+		return writeChar('\n');
+	}
+
+	public TsvEncoder writeInt(int value) throws IOException {
+		ensureCapacity(MAX_FIELD);
+		writeLong(value);
+		return this;
+	}
+
+	/**
+	 * Writes the value exactly as String.format("%f", value) would: six decimal places, rounded half up.
+	 */
+	public TsvEncoder writeFixed(double value) throws IOException {
+		if (!PLAIN_LOCALE || Double.isNaN(value) || value < 0 || value >= MAX_FAST_DOUBLE) {
+			return writeAscii(String.format("%f", value));
+		}
+
+		double scaled = value * 1000000;
+		double whole = Math.floor(scaled);
+		double fraction = scaled - whole;
+		//String.format rounds the shortest decimal representation, which only matters near a half
+		if (Math.abs(fraction - 0.5) <= ROUNDING_ULPS * Math.ulp(scaled)) {
+			return writeAscii(String.format("%f", value));
+		}
+		long rounded = (long)whole;
+		if (fraction > 0.5) {
+			rounded++;
+		}
+
+		ensureCapacity(MAX_FIELD);
+		writeLong(rounded / 1000000);
+		buffer[length++] = '.';
+		int decimals = (int)(rounded % 1000000);
+		for (int divisor=100000; divisor>0; divisor/=10) {
+			buffer[length++] = (byte)('0' + (decimals / divisor) % 10);
+		}
+		return this;
+	}
+
+	public void flush() throws IOException {
+		flushBuffer();
+		os.flush();
+	}
+
+	public void close() throws IOException {
+		flushBuffer();
+		os.close();
+	}
+
+	private void writeLong(long value) {
+		if (value < 0) {
+			buffer[length++] = '-';
+			//Long.MIN_VALUE isn't reachable from an int or a fast path double
+			value = -value;
+		}
+		int count = 0;
+		do {
+			digits[count++] = (byte)('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+		while (count > 0) {
+			buffer[length++] = digits[--count];
+		}
+	}
+
+	private void ensureCapacity(int needed) throws IOException {
+		if (length + needed > BUFFER_SIZE) {
+			flushBuffer();
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (length > 0) {
+			os.write(buffer, 0, length);
+			length = 0;
+		}
+	}
+
+	private static boolean isPlainLocale() {
+		DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance();
+		return symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0';
+	}
+}